@@ -94,6 +94,7 @@ public class StudentCollectionClient extends Object {
             st = new StringTokenizer(inStr);
             opn = st.nextToken();
          }
+         sc.close();
       }catch (Exception e) {
          e.printStackTrace();
          System.out.println("Oops, you didn't enter the right stuff");
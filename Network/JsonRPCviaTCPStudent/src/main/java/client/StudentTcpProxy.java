@@ -1,10 +1,21 @@
 package client;
 
+import server.JsonLineConnection;
 import server.Student;
 import server.StudentCollection;
 import java.net.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
@@ -14,6 +25,12 @@ import org.json.JSONArray;
  * by marshalling/unmarshalling parameters and results and using a TCP
  * connection to request the method be executed on the server.
  * Byte arrays are used for communication to support multiple langs.
+ * Calls go over a pool of persistent connections, one request and one
+ * response per line (see server.JsonLineConnection). A call takes an idle
+ * connection or opens one, up to maxConnections, so any number of threads
+ * can share one proxy and a handful of sockets.
+ * Many calls can go in one round trip as a JSON-RPC batch (callBatch,
+ * addAll), and notifyMethod sends a call the server does not answer.
  *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
@@ -21,14 +38,36 @@ import org.json.JSONArray;
 public class StudentTcpProxy extends Object implements StudentCollection {
 
    private static final boolean debugOn = false;
-   private static final int buffSize = 4096;
-   private static int id = 0;
+   private static final int DEFAULT_CONNECTIONS = 4;
+   private static final int BATCH_SIZE = 2000;
+   // well below the server's idle timeout, so pooled connections are rarely stale
+   private static final long MAX_IDLE_MILLIS = 60 * 1000;
+   // calls that change nothing and may be sent twice
+   private static final Set<String> READ_ONLY =
+      new HashSet<String>(Arrays.asList("get", "getNameById", "getNames"));
+   private final AtomicInteger id = new AtomicInteger();
+   private final BlockingQueue<Pooled> idle = new LinkedBlockingQueue<>();
+   private final Semaphore connections;
    private String host;
    private int port;
    
+   private static final class Pooled {
+      final JsonLineConnection conn;
+      final long idleSince = System.currentTimeMillis();
+
+      Pooled(JsonLineConnection conn) {
+         this.conn = conn;
+      }
+   }
+
    public StudentTcpProxy (String host, int port){
+      this(host, port, DEFAULT_CONNECTIONS);
+   }
+
+   public StudentTcpProxy (String host, int port, int maxConnections){
       this.host = host;
       this.port = port;
+      this.connections = new Semaphore(maxConnections);
    }
 
    private void debug(String message) {
@@ -43,48 +82,168 @@ public class StudentTcpProxy extends Object implements StudentCollection {
     * @return
     */
    public String callMethod(String method, Object[] params){
-      // create JSON RPC message
-      JSONObject theCall = new JSONObject();
       String ret = "{}";
       try{
+         // create JSON RPC message
+         JSONObject theCall = makeCall(method, params);
+         theCall.put("id",id.incrementAndGet());
          debug("Request is: "+theCall.toString());
-         theCall.put("method",method);
-         theCall.put("id",id);
-         theCall.put("jsonrpc","2.0");
-         ArrayList<Object> al = new ArrayList();
-         for (int i=0; i<params.length; i++){
-            al.add(params[i]);
-         }
-         JSONArray paramsJson = new JSONArray(al);
-         theCall.put("params",paramsJson);
-
-         // prep connection and the byte array
-         Socket sock = new Socket(host,port);
-         OutputStream os = sock.getOutputStream();
-         InputStream is = sock.getInputStream();
-         int numBytesReceived;
-         int bufLen = 1024;
-         String strToSend = theCall.toString();
-         byte bytesReceived[] = new byte[buffSize];
-         byte bytesToSend[] = strToSend.getBytes();
-
-         // send the message
-         os.write(bytesToSend,0,bytesToSend.length);
-         // get response
-         numBytesReceived = is.read(bytesReceived,0,bufLen);
-         ret = new String(bytesReceived,0,numBytesReceived);
-         
-         // return
+
+         ret = exchange(theCall.toString(), true, READ_ONLY.contains(method));
          debug("callMethod received from server: "+ret);
-         os.close();
-         is.close();
-         sock.close();
       }catch(Exception ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
       }
       return ret;
    }
 
+   /**
+    * Calls a method as a notification, the server sends no result back
+    * and the call does not wait for it to run.
+    */
+   public void notifyMethod(String method, Object[] params){
+      try{
+         JSONObject theCall = makeCall(method, params);
+         debug("Notification is: "+theCall.toString());
+         exchange(theCall.toString(), false, false);
+      }catch(Exception ex){
+         System.out.println("exception in notifyMethod: "+ex.getMessage());
+      }
+   }
+
+   /**
+    * Sends calls made by makeCall as one batch. The calls that have no id
+    * yet get one.
+    * @return the responses in the order of the calls, notifications and
+    * calls that failed have none
+    */
+   public JSONArray callBatch(List<JSONObject> calls){
+      JSONArray ret = new JSONArray();
+      try{
+         JSONArray batch = new JSONArray();
+         boolean readOnly = true;
+         for (JSONObject theCall : calls){
+            if (!theCall.has("id")){
+               theCall.put("id",id.incrementAndGet());
+            }
+            readOnly = readOnly && READ_ONLY.contains(theCall.optString("method"));
+            batch.put(theCall);
+         }
+         JSONArray responses = new JSONArray(exchange(batch.toString(), true, readOnly));
+         // the server may answer in any order
+         Map<Object,JSONObject> byId = new HashMap<Object,JSONObject>();
+         for (int i=0; i<responses.length(); i++){
+            JSONObject res = responses.getJSONObject(i);
+            byId.put(res.opt("id"), res);
+         }
+         for (JSONObject theCall : calls){
+            JSONObject res = byId.get(theCall.get("id"));
+            if (res != null){
+               ret.put(res);
+            }
+         }
+      }catch(Exception ex){
+         System.out.println("exception in callBatch: "+ex.getMessage());
+      }
+      return ret;
+   }
+
+   /**
+    * Creates a JSON RPC call without an id.
+    */
+   public JSONObject makeCall(String method, Object[] params){
+      JSONObject theCall = new JSONObject();
+      theCall.put("method",method);
+      theCall.put("jsonrpc","2.0");
+      ArrayList<Object> al = new ArrayList<Object>();
+      for (int i=0; i<params.length; i++){
+         al.add(params[i]);
+      }
+      JSONArray paramsJson = new JSONArray(al);
+      theCall.put("params",paramsJson);
+      return theCall;
+   }
+
+   /**
+    * Sends a request on a pooled connection and reads its response.
+    * A pooled connection may have been closed by the server while it was
+    * idle. The request is then sent once more on a new connection, but
+    * only if the server cannot have executed it: the write failed, or the
+    * request is readOnly. Otherwise the error goes to the caller, sending
+    * an add or remove twice would run it twice.
+    */
+   private String exchange(String request, boolean expectResponse, boolean readOnly)
+         throws IOException, InterruptedException {
+      connections.acquire();
+      try {
+         JsonLineConnection conn = takeIdle();
+         boolean reused = conn != null;
+         while (true) {
+            if (conn == null) {
+               conn = new JsonLineConnection(new Socket(host,port));
+            }
+            boolean sent = false;
+            try {
+               conn.writeLine(request);
+               sent = true;
+               if (!expectResponse) {
+                  idle.offer(new Pooled(conn));
+                  return null;
+               }
+               String response = conn.readLine();
+               if (response == null) {
+                  throw new EOFException("Server closed the connection");
+               }
+               idle.offer(new Pooled(conn));
+               return response;
+            } catch (IOException ex) {
+               conn.close();
+               if (!reused || (sent && !readOnly)) {
+                  throw ex;
+               }
+               debug("Pooled connection failed, reconnecting: "+ex.getMessage());
+               conn = null;
+               reused = false;
+            }
+         }
+      } finally {
+         connections.release();
+      }
+   }
+
+   /**
+    * @return an idle connection that was not idle too long, null if there
+    * is none
+    */
+   private JsonLineConnection takeIdle() {
+      Pooled pooled;
+      while ((pooled = idle.poll()) != null) {
+         if (System.currentTimeMillis() - pooled.idleSince < MAX_IDLE_MILLIS) {
+            return pooled.conn;
+         }
+         closeQuietly(pooled.conn);
+      }
+      return null;
+   }
+
+   private void closeQuietly(JsonLineConnection conn) {
+      try {
+         conn.close();
+      } catch (IOException ex) {
+         debug("Closing connection failed: "+ex.getMessage());
+      }
+   }
+
+   /**
+    * Closes the idle connections, calls after this open new ones.
+    */
+   public void close() {
+      Pooled pooled;
+      while ((pooled = idle.poll()) != null) {
+         closeQuietly(pooled.conn);
+      }
+   }
+
    public boolean saveToJsonFile() {
       boolean ret = false;
       String result = callMethod("saveToJsonFile", new Object[]{});
@@ -109,6 +268,27 @@ public class StudentTcpProxy extends Object implements StudentCollection {
       return ret;
    }
    
+   /**
+    * Adds many students, BATCH_SIZE of them per round trip.
+    * @return the number of students added
+    */
+   public int addAll(List<Student> studs) {
+      int ret = 0;
+      for (int from=0; from<studs.size(); from+=BATCH_SIZE){
+         List<JSONObject> calls = new ArrayList<JSONObject>();
+         for (Student stud : studs.subList(from, Math.min(studs.size(), from+BATCH_SIZE))){
+            calls.add(makeCall("add", new Object[]{stud.toJson()}));
+         }
+         JSONArray responses = callBatch(calls);
+         for (int i=0; i<responses.length(); i++){
+            if (responses.getJSONObject(i).optBoolean("result",false)){
+               ret++;
+            }
+         }
+      }
+      return ret;
+   }
+
    public boolean remove(String aName) {
       boolean ret = false;
       String result = callMethod("remove", new Object[]{aName});
@@ -0,0 +1,87 @@
+package server;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Measures what a call costs on the server without the network:
+ *   direct     the StudentCollection methods called by hand, the baseline
+ *   dispatch   JsonRpcDispatcher.dispatch with parsed parameters, so the
+ *              difference to direct is lookup, decoding and encoding
+ *   callMethod StudentCollectionSkeleton.callMethod from request string
+ *              to response string, parsing and writing JSON included
+ *   notFound   callMethod with an unknown method, the -32601 error path
+ * Each runs a mix of get, getNameById and add. There are warmup rounds
+ * for the JIT, then the time per call of each measured round is printed.
+ *
+ * Run with: gradle JsonRPCviaTCPStudent:runDispatchBenchmark
+ */
+public class DispatchBenchmark {
+   private static final int CALLS = 300000;
+   private static final int WARMUP_ROUNDS = 5;
+   private static final int ROUNDS = 5;
+
+   private static int sink = 0;
+
+   public static void main(String args[]) throws Exception {
+      StudentCollectionImpl students = new StudentCollectionImpl();
+      students.students.clear();
+      for (int i=0; i<10; i++){
+         students.add(new Student("student"+i, 1000+i, new String[]{"Ser321","Ser322"}));
+      }
+      JsonRpcDispatcher<StudentCollection> dispatcher = StudentCollectionSkeleton.createDispatcher();
+      StudentCollectionSkeleton skeleton = new StudentCollectionSkeleton(students);
+
+      Student added = new Student("added", 2000, new String[]{"Ser321"});
+      JSONArray getParams = new JSONArray().put("student3");
+      JSONArray idParams = new JSONArray().put(1007);
+      // parsed like a request, toJson keeps takes as a Vector
+      JSONObject addedJson = new JSONObject(added.toJsonString());
+      JSONArray addParams = new JSONArray().put(addedJson);
+      String[] requests = {
+         "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"get\",\"params\":[\"student3\"]}",
+         "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"getNameById\",\"params\":[1007]}",
+         "{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"add\",\"params\":["+added.toJsonString()+"]}"
+      };
+      String notFound = "{\"jsonrpc\":\"2.0\",\"id\":4,\"method\":\"getAll\",\"params\":[]}";
+
+      for (int round=0; round<WARMUP_ROUNDS+ROUNDS; round++){
+         boolean measured = round >= WARMUP_ROUNDS;
+         long start = System.nanoTime();
+         for (int i=0; i<CALLS; i++){
+            switch (i%3){
+            case 0: sink += students.get("student3").toJson().length(); break;
+            case 1: sink += students.getNameById(1007).length(); break;
+            default: sink += students.add(new Student(addedJson))?1:0;
+            }
+         }
+         long direct = System.nanoTime()-start;
+
+         start = System.nanoTime();
+         for (int i=0; i<CALLS; i++){
+            JSONArray params = (i%3==0)?getParams:(i%3==1)?idParams:addParams;
+            String method = (i%3==0)?"get":(i%3==1)?"getNameById":"add";
+            sink += dispatcher.dispatch(students, method, params).hashCode();
+         }
+         long dispatch = System.nanoTime()-start;
+
+         start = System.nanoTime();
+         for (int i=0; i<CALLS; i++){
+            sink += skeleton.callMethod(requests[i%3]).length();
+         }
+         long call = System.nanoTime()-start;
+
+         start = System.nanoTime();
+         for (int i=0; i<CALLS; i++){
+            sink += skeleton.callMethod(notFound).length();
+         }
+         long missing = System.nanoTime()-start;
+
+         System.out.printf("%s round %d: direct %.0f ns, dispatch %.0f ns, callMethod %.0f ns,"
+                           +" notFound %.0f ns per call%n", measured?"measured":"warmup",
+                           measured?round-WARMUP_ROUNDS+1:round+1, (double)direct/CALLS,
+                           (double)dispatch/CALLS, (double)call/CALLS, (double)missing/CALLS);
+      }
+      System.out.println("(ignore: "+sink+")");
+   }
+}
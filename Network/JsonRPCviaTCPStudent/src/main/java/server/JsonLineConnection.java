@@ -0,0 +1,93 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A TCP connection carrying newline delimited JSON-RPC: every request and
+ * every response is one line of compact JSON in UTF-8, ended by '\n'.
+ * Compact JSON never contains a raw newline (inside strings it is written
+ * as \n), so the reader knows where a message ends however it was split
+ * into segments, and the connection can carry any number of calls.
+ * Clients in other languages only need to write a line and read a line.
+ */
+public class JsonLineConnection implements AutoCloseable {
+
+   /** Longer lines are refused, a broken client cannot make us buffer forever */
+   public static final int MAX_LINE = 16 * 1024 * 1024;
+
+   private final Socket sock;
+   private final InputStream in;
+   private final OutputStream out;
+   private final byte[] buffer = new byte[8192];
+   private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+   private int position = 0;
+   private int limit = 0;
+
+   public JsonLineConnection(Socket sock) throws IOException {
+      this.sock = sock;
+      // requests and responses are small, send them right away
+      sock.setTcpNoDelay(true);
+      this.in = sock.getInputStream();
+      this.out = new BufferedOutputStream(sock.getOutputStream(), 8192);
+   }
+
+   public Socket getSocket() {
+      return sock;
+   }
+
+   /**
+    * Reads the next message.
+    * @return the line without its '\n', or null if the peer closed the
+    * connection between messages
+    * @throws IOException if the connection fails, closes within a line or
+    * the line is longer than MAX_LINE
+    */
+   public String readLine() throws IOException {
+      line.reset();
+      while (true) {
+         if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit < 0) {
+               limit = 0;
+               if (line.size() == 0) {
+                  return null;
+               }
+               throw new EOFException("Connection closed within a message");
+            }
+         }
+         for (int i = position; i < limit; i++) {
+            if (buffer[i] == '\n') {
+               line.write(buffer, position, i - position);
+               position = i + 1;
+               return line.toString(StandardCharsets.UTF_8.name()).trim();
+            }
+         }
+         line.write(buffer, position, limit - position);
+         position = limit;
+         if (line.size() > MAX_LINE) {
+            throw new IOException("Message longer than " + MAX_LINE + " bytes");
+         }
+      }
+   }
+
+   /**
+    * Sends a message, which must not contain a newline.
+    */
+   public void writeLine(String json) throws IOException {
+      out.write(json.getBytes(StandardCharsets.UTF_8));
+      out.write('\n');
+      out.flush();
+   }
+
+   public void close() throws IOException {
+      sock.close();
+   }
+}
@@ -0,0 +1,159 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Calls the methods of an interface by name with JSON parameters.
+ * The table is filled once, before the first call, with one entry per
+ * method: a lambda calling the method, e.g.
+ *    (c, args) -> c.add((Student) args[0])
+ * a decoder per parameter that turns the JSON value into the declared type
+ * and an encoder that turns the result into JSON. A call then is one map
+ * lookup, the decoders and the lambda. register checks each entry against
+ * the interface, so a name or type that does not match fails when the
+ * table is built, not at the first call.
+ *
+ * Parameter types: int, boolean, String and Student (a JSON object).
+ * Result types: void, boolean, int, String, String[] and Student.
+ */
+public class JsonRpcDispatcher<T> {
+
+   /**
+    * Calls one method of target with the decoded parameters.
+    */
+   public interface Invoker<T> {
+      Object invoke(T target, Object[] args);
+   }
+
+   private interface Decoder {
+      /**
+       * @return the value as the parameter type, null if it is not one
+       */
+      Object decode(Object json);
+   }
+
+   private interface Encoder {
+      Object encode(Object result);
+   }
+
+   private static final class Handler<T> {
+      final Invoker<T> invoker;
+      final Class<?>[] types;
+      final Decoder[] decoders;
+      final Encoder encoder;
+
+      Handler(Invoker<T> invoker, Class<?>[] types, Decoder[] decoders, Encoder encoder) {
+         this.invoker = invoker;
+         this.types = types;
+         this.decoders = decoders;
+         this.encoder = encoder;
+      }
+   }
+
+   private final Class<T> iface;
+   private final Map<String, Handler<T>> handlers = new HashMap<String, Handler<T>>();
+
+   public JsonRpcDispatcher(Class<T> iface) {
+      this.iface = iface;
+   }
+
+   /**
+    * Adds the method name taking types and returning result to the table.
+    * @throws IllegalArgumentException if the interface has no such method,
+    * it is registered already or a type has no decoder or encoder
+    */
+   public JsonRpcDispatcher<T> register(String name, Class<?> result, Invoker<T> invoker,
+                                        Class<?>... types) {
+      try {
+         if (iface.getMethod(name, types).getReturnType() != result) {
+            throw new IllegalArgumentException(name + " does not return " + result);
+         }
+      } catch (NoSuchMethodException e) {
+         throw new IllegalArgumentException(iface.getSimpleName() + " has no method " + name);
+      }
+      if (handlers.containsKey(name)) {
+         throw new IllegalArgumentException(name + " is registered already");
+      }
+      Decoder[] decoders = new Decoder[types.length];
+      for (int i = 0; i < types.length; i++) {
+         decoders[i] = decoderFor(types[i], name);
+      }
+      handlers.put(name, new Handler<T>(invoker, types.clone(), decoders, encoderFor(result, name)));
+      return this;
+   }
+
+   /**
+    * Calls method on target.
+    * @param params the positional parameters, null if there are none
+    * @return the result as a JSON value
+    * @throws JsonRpcException METHOD_NOT_FOUND, INVALID_PARAMS or, if the
+    * method throws, INTERNAL_ERROR
+    */
+   public Object dispatch(T target, String method, JSONArray params) throws JsonRpcException {
+      Handler<T> handler = handlers.get(method);
+      if (handler == null) {
+         throw new JsonRpcException(JsonRpcException.METHOD_NOT_FOUND, "Method not found: " + method);
+      }
+      int count = (params == null) ? 0 : params.length();
+      if (count != handler.decoders.length) {
+         throw new JsonRpcException(JsonRpcException.INVALID_PARAMS, "Invalid params: " + method
+                                    + " takes " + handler.decoders.length + " parameters");
+      }
+      Object[] args = new Object[count];
+      for (int i = 0; i < count; i++) {
+         args[i] = handler.decoders[i].decode(params.opt(i));
+         if (args[i] == null) {
+            throw new JsonRpcException(JsonRpcException.INVALID_PARAMS, "Invalid params: parameter "
+                                       + i + " of " + method + " must be "
+                                       + handler.types[i].getSimpleName());
+         }
+      }
+      try {
+         return handler.encoder.encode(handler.invoker.invoke(target, args));
+      } catch (RuntimeException e) {
+         throw new JsonRpcException(JsonRpcException.INTERNAL_ERROR, "Internal error: " + e);
+      }
+   }
+
+   private static Decoder decoderFor(Class<?> type, String name) {
+      if (type == int.class) {
+         // org.json reads every integer that fits as an Integer
+         return json -> (json instanceof Integer) ? json : null;
+      } else if (type == boolean.class) {
+         return json -> (json instanceof Boolean) ? json : null;
+      } else if (type == String.class) {
+         return json -> (json instanceof String) ? json : null;
+      } else if (type == Student.class) {
+         // the Student constructor takes anything, check the members it needs
+         return json -> (json instanceof JSONObject && ((JSONObject) json).opt("name") instanceof String
+                         && ((JSONObject) json).opt("takes") instanceof JSONArray)
+            ? new Student((JSONObject) json) : null;
+      }
+      throw new IllegalArgumentException("No decoder for " + type + " in " + name);
+   }
+
+   private static Encoder encoderFor(Class<?> type, String name) {
+      if (type == void.class) {
+         return result -> JSONObject.NULL;
+      } else if (type == boolean.class || type == int.class || type == String.class) {
+         return result -> (result == null) ? JSONObject.NULL : result;
+      } else if (type == String[].class) {
+         return result -> {
+            JSONArray array = new JSONArray();
+            if (result != null) {
+               for (String s : (String[]) result) {
+                  array.put(s);
+               }
+            }
+            return array;
+         };
+      } else if (type == Student.class) {
+         return result -> (result == null) ? JSONObject.NULL : ((Student) result).toJson();
+      }
+      throw new IllegalArgumentException("No encoder for " + type + " in " + name);
+   }
+}
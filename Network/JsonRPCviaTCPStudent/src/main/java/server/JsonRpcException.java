@@ -0,0 +1,38 @@
+package server;
+
+import org.json.JSONObject;
+
+/**
+ * A JSON-RPC 2.0 error, sent back as the error member of a response.
+ */
+public class JsonRpcException extends Exception {
+   private static final long serialVersionUID = 1L;
+
+   public static final int PARSE_ERROR = -32700;
+   public static final int INVALID_REQUEST = -32600;
+   public static final int METHOD_NOT_FOUND = -32601;
+   public static final int INVALID_PARAMS = -32602;
+   public static final int INTERNAL_ERROR = -32603;
+
+   private final int code;
+
+   public JsonRpcException(int code, String message) {
+      // an error is an answer to the client, the stack trace is of no use
+      super(message, null, false, false);
+      this.code = code;
+   }
+
+   public int getCode() {
+      return code;
+   }
+
+   /**
+    * @return the error object of a response, {"code":..,"message":..}
+    */
+   public JSONObject toJson() {
+      JSONObject error = new JSONObject();
+      error.put("code", code);
+      error.put("message", getMessage());
+      return error;
+   }
+}
@@ -1,6 +1,5 @@
 package server;
 
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.io.File;
 import java.io.FileInputStream;
@@ -8,7 +7,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.PrintWriter;
 import java.util.Vector;
-import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -19,6 +18,8 @@ import java.io.IOException;
  * Purpose: This class is part of an example developed to demonstrate distributed
  * and mobile apps connecting to a JsonRPC server where the client and server
  * communicate using TCP/IP stream-based sockets.
+ * The collection is called from many server threads at once, also for the
+ * calls of one batch, so students are kept in a ConcurrentHashMap.
  *
  * @author Tim Lindquist
  * @version April 2020
@@ -26,13 +27,14 @@ import java.io.IOException;
  **/
 class StudentCollectionImpl extends Object implements StudentCollection{
 
-   public Hashtable<String,Student> students;
+   // replaced as a whole by resetFromJsonFile
+   public volatile ConcurrentHashMap<String,Student> students;
    private static final boolean debugOn = false;
    private static final String studentJsonFileName = "students.json";
 
    public StudentCollectionImpl() {
       debug("creating a new student collection");
-      students = new Hashtable<String,Student>();
+      students = new ConcurrentHashMap<String,Student>();
       try{
          this.resetFromJsonFile();
       }catch(Exception ex){
@@ -49,7 +51,8 @@ class StudentCollectionImpl extends Object implements StudentCollection{
    public boolean resetFromJsonFile() {
       boolean ret = true;
       try{
-         students.clear();
+         // fill a new map and swap it in, concurrent calls never see it half full
+         ConcurrentHashMap<String,Student> loaded = new ConcurrentHashMap<String,Student>();
          String fileName = studentJsonFileName;
          File f = new File(fileName);
          FileInputStream is = new FileInputStream(f);
@@ -59,10 +62,11 @@ class StudentCollectionImpl extends Object implements StudentCollection{
             String mType = it.next();
             JSONObject studentJson = studentMap.optJSONObject(mType);
             Student stud = new Student(studentJson);
-            students.put(stud.name, stud);
+            loaded.put(stud.name, stud);
             debug("added "+stud.name+" : "+stud.toJsonString()+
-                  "\nstudents.size() is: " + students.size());
+                  "\nstudents.size() is: " + loaded.size());
          }
+         students = loaded;
       }catch (Exception ex){
          System.out.println("Exception reading json file: "+ex.getMessage());
          ret = false;
@@ -75,8 +79,7 @@ class StudentCollectionImpl extends Object implements StudentCollection{
       try {
          String jsonStr;
          JSONObject obj = new JSONObject();
-         for (Enumeration<String> e = students.keys(); e.hasMoreElements();){
-            Student aStud = students.get((String)e.nextElement());
+         for (Student aStud : students.values()){
             obj.put(aStud.name,aStud.toJson());
          }
          PrintWriter out = new PrintWriter(studentJsonFileName);
@@ -115,9 +118,7 @@ class StudentCollectionImpl extends Object implements StudentCollection{
    
    public String getNameById(int id) {
       String ret = "unknown";
-      String[] keys = (String[])(students.keySet()).toArray(new String[0]);
-      for (int i=0; i< keys.length; i++){
-         Student aStud = students.get(keys[i]);
+      for (Student aStud : students.values()){
          if (aStud.studentid==id){
             ret = aStud.name;
             break;
@@ -3,8 +3,12 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import org.json.JSONException;
 
 /**
  * A class for client-server connections with a threaded server.
@@ -12,6 +16,12 @@ import org.json.JSONArray;
  * When a client request arrives, which should be a JsonRPC request, a new
  * thread is created to service the call and create the appropriate response.
  * Byte arrays are used for communication to support multiple langs.
+ * Besides single calls the skeleton takes JSON-RPC 2.0 batches, an array
+ * of calls answered by one array of responses, and notifications, calls
+ * without an id that get no response. The calls of a batch are independent,
+ * they run concurrently on batchPool and in no particular order.
+ * Methods are looked up in a JsonRpcDispatcher whose table is built once,
+ * with a lambda per method of the StudentCollection interface.
  *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
@@ -19,68 +29,177 @@ import org.json.JSONArray;
 public class StudentCollectionSkeleton extends Object {
 
    private static final boolean debugOn = false;
+   private static final int batchThreads = Runtime.getRuntime().availableProcessors();
+   private static final JsonRpcDispatcher<StudentCollection> dispatcher = createDispatcher();
+   private static final ExecutorService batchPool =
+      Executors.newFixedThreadPool(batchThreads, r -> {
+         Thread t = new Thread(r, "batch");
+         t.setDaemon(true);
+         return t;
+      });
    StudentCollection studLib;
 
    public StudentCollectionSkeleton (StudentCollection studLib){
       this.studLib = studLib;
    }
 
+   static JsonRpcDispatcher<StudentCollection> createDispatcher(){
+      return new JsonRpcDispatcher<StudentCollection>(StudentCollection.class)
+         .register("saveToJsonFile", boolean.class, (c, a) -> c.saveToJsonFile())
+         .register("resetFromJsonFile", boolean.class, (c, a) -> c.resetFromJsonFile())
+         .register("add", boolean.class, (c, a) -> c.add((Student)a[0]), Student.class)
+         .register("remove", boolean.class, (c, a) -> c.remove((String)a[0]), String.class)
+         .register("get", Student.class, (c, a) -> c.get((String)a[0]), String.class)
+         .register("getNameById", String.class, (c, a) -> c.getNameById((Integer)a[0]), int.class)
+         .register("getNames", String[].class, (c, a) -> c.getNames());
+   }
+
    private void debug(String message) {
       if (debugOn)
          System.out.println("debug: "+message);
    }
 
+   /**
+    * Executes a request: a call, a notification or a batch of them.
+    * @return the response, or null if there is none because the request
+    * held only notifications
+    */
    public String callMethod(String request){
-      JSONObject result = new JSONObject();
+      String trimmed = request.trim();
+      try{
+         if(trimmed.startsWith("[")){
+            return callBatch(new JSONArray(trimmed));
+         }
+         JSONObject response = safeCall(new JSONObject(trimmed));
+         return (response==null)?null:response.toString();
+      }catch(JSONException ex){
+         debug("Unable to parse request: "+ex.getMessage());
+         return error(JSONObject.NULL,JsonRpcException.PARSE_ERROR,"Parse error").toString();
+      }
+   }
+
+   /**
+    * Splits the batch into one slice per thread of batchPool and collects
+    * the responses in the order of the calls.
+    */
+   private String callBatch(JSONArray calls){
+      int count = calls.length();
+      if(count==0){
+         return error(JSONObject.NULL,JsonRpcException.INVALID_REQUEST,"Invalid Request").toString();
+      }
+      JSONObject[] responses = new JSONObject[count];
+      boolean[] done = new boolean[count];
+      int slice = (count+batchThreads-1)/batchThreads;
+      List<Future<?>> running = new ArrayList<Future<?>>();
+      for (int start=slice; start<count; start+=slice){
+         int from = start;
+         int to = Math.min(count,start+slice);
+         running.add(batchPool.submit(() -> callSlice(calls,responses,done,from,to)));
+      }
+      // the first slice runs on this thread
+      callSlice(calls,responses,done,0,Math.min(count,slice));
+      boolean complete = true;
+      for (Future<?> f : running){
+         try{
+            f.get();
+         }catch(Exception ex){
+            debug("batch slice failed: "+ex);
+            complete = false;
+         }
+      }
+      JSONArray result = new JSONArray();
+      for (int i=0; i<count; i++){
+         if(!complete && !done[i]){
+            // every call gets its response, also if its slice did not finish
+            responses[i] = internalError(calls.optJSONObject(i));
+         }
+         if(responses[i]!=null){
+            result.put(responses[i]);
+         }
+      }
+      return (result.length()==0)?null:result.toString();
+   }
+
+   private void callSlice(JSONArray calls, JSONObject[] responses, boolean[] done,
+                          int from, int to){
+      for (int i=from; i<to; i++){
+         JSONObject theCall = calls.optJSONObject(i);
+         responses[i] = (theCall==null)
+            ? error(JSONObject.NULL,JsonRpcException.INVALID_REQUEST,"Invalid Request")
+            : safeCall(theCall);
+         done[i] = true;
+      }
+   }
+
+   /**
+    * Executes one call, anything it throws becomes an internal error
+    * response, so one failing call cannot take others down with it.
+    */
+   private JSONObject safeCall(JSONObject theCall){
       try{
-         JSONObject theCall = new JSONObject(request);
+         return call(theCall);
+      }catch(RuntimeException ex){
+         debug("call failed: "+ex);
+         return internalError(theCall);
+      }
+   }
+
+   /**
+    * @return a -32603 response to theCall, null if it is a notification
+    */
+   private JSONObject internalError(JSONObject theCall){
+      if(theCall==null){
+         return error(JSONObject.NULL,JsonRpcException.INVALID_REQUEST,"Invalid Request");
+      }
+      if(!theCall.has("id")){
+         return null;
+      }
+      return error(theCall.opt("id"),JsonRpcException.INTERNAL_ERROR,"Internal error");
+   }
+
+   private JSONObject error(Object id, int code, String message){
+      return error(id,new JsonRpcException(code,message));
+   }
+
+   private JSONObject error(Object id, JsonRpcException ex){
+      JSONObject result = new JSONObject();
+      result.put("id",id);
+      result.put("jsonrpc","2.0");
+      result.put("error",ex.toJson());
+      return result;
+   }
+
+   /**
+    * Executes one call.
+    * @return the response, null for a notification
+    */
+   private JSONObject call(JSONObject theCall){
+      // not debug() alone, writing the request out costs more than the call
+      if(debugOn)
          debug("Request is: "+theCall.toString());
-         String method = theCall.getString("method");
-         int id = theCall.getInt("id");
-         JSONArray params = null;
-         if(!theCall.isNull("params")){
-            params = theCall.getJSONArray("params");
+      // a notification has no id at all, "id":null is still a call
+      boolean notification = !theCall.has("id");
+      Object id = theCall.opt("id");
+      if(!(theCall.opt("method") instanceof String)){
+         return notification?null:error(id,JsonRpcException.INVALID_REQUEST,"Invalid Request");
+      }
+      JSONObject result = new JSONObject();
+      try{
+         Object params = theCall.opt("params");
+         if(params!=null && params!=JSONObject.NULL && !(params instanceof JSONArray)){
+            throw new JsonRpcException(JsonRpcException.INVALID_PARAMS,
+                                       "Invalid params: only positional params are supported");
          }
+         Object value = dispatcher.dispatch(studLib, theCall.getString("method"),
+                                            (params instanceof JSONArray)?(JSONArray)params:null);
          result.put("id",id);
          result.put("jsonrpc","2.0");
-         if(method.equals("add")){
-            JSONObject studJson = params.getJSONObject(0);
-            Student studToAdd = new Student(studJson);
-            debug("adding stud: "+studToAdd.toJsonString());
-            studLib.add(studToAdd);
-            result.put("result",true);
-         }else if(method.equals("remove")){
-            String studName = params.getString(0);
-            debug("removing student named "+studName);
-            studLib.remove(studName);
-            result.put("result",true);
-         }else if(method.equals("getNameById")){
-            int studNum = params.getInt(0);
-            debug("getNameById for student number "+studNum);
-            String name = studLib.getNameById(studNum);
-            result.put("result",name);
-         }else if(method.equals("get")){
-            String studName = params.getString(0);
-            Student stud = studLib.get(studName);
-            JSONObject studJson = stud.toJson();
-            debug("get request found: "+studJson.toString());
-            result.put("result",studJson);
-         }else if(method.equals("getNames")){
-            String[] names = studLib.getNames();
-            JSONArray resArr = new JSONArray();
-            for (int i=0; i<names.length; i++){
-               resArr.put(names[i]);
-            }
-            debug("getNames request found: "+resArr.toString());
-            result.put("result",resArr);
-         }else{
-            debug("Unable to match method: "+method+". Returning 0.");
-            result.put("result",0.0);
-         }
-      }catch(Exception ex){
-         System.out.println("exception in callMethod: "+ex.getMessage());
+         result.put("result",value);
+      }catch(JsonRpcException ex){
+         debug("error calling "+theCall.opt("method")+": "+ex.getMessage());
+         return notification?null:error(id,ex);
       }
-      return result.toString();
+      return notification?null:result;
    }
 }
 
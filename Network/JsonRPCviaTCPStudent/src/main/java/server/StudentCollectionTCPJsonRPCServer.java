@@ -7,6 +7,10 @@ import java.util.*;
 /**
  * A class for TCP client-server connections with a threaded server that
  * implements JsonRPC method calls for a collection of Students.
+ * A connection stays open for any number of calls, one request and one
+ * response per line (see JsonLineConnection), until the client closes it
+ * or it is idle for IDLE_TIMEOUT milliseconds. A request holding only
+ * notifications gets no response line.
  *
  * Ser321 Foundations of Distributed Software Systems
  * @author Tim Lindquist Tim.Lindquist@asu.edu
@@ -14,6 +18,8 @@ import java.util.*;
  * @version April 2020
  */
 public class StudentCollectionTCPJsonRPCServer extends Thread {
+   private static final boolean debugOn = false;
+   private static final int IDLE_TIMEOUT = 5 * 60 * 1000;
    private Socket conn;
    private int id;
    private StudentCollectionSkeleton skeleton;
@@ -25,29 +31,34 @@ public class StudentCollectionTCPJsonRPCServer extends Thread {
       skeleton = new StudentCollectionSkeleton(stdCol);
    }
 
+   private void debug(String message) {
+      if (debugOn)
+         System.out.println("debug: "+message);
+   }
+
    public void run() {
       // setup connection
-      try {
-         OutputStream outSock = conn.getOutputStream();
-         InputStream inSock = conn.getInputStream();
-         byte clientInput[] = new byte[1024]; // up to 1024 bytes in a message.
-         
-         // receive request
-         int numr = inSock.read(clientInput,0,1024);
-         if (numr != -1) {
-            //System.out.println("read "+numr+" bytes");
-            String request = new String(clientInput,0,numr);
-            System.out.println("request is: "+request);
+      try (JsonLineConnection connection = new JsonLineConnection(conn)) {
+         conn.setSoTimeout(IDLE_TIMEOUT);
+         String request;
+         // receive requests until the client closes the connection
+         while ((request = connection.readLine()) != null) {
+            if (request.isEmpty()) {
+               continue;
+            }
+            debug("request is: "+request);
 
             // prep and send response
             String response = skeleton.callMethod(request);
-            byte clientOut[] = response.getBytes();
-	         outSock.write(clientOut,0,clientOut.length);
-            System.out.println("response is: "+response);
+            // notifications get no response
+            if (response != null) {
+               connection.writeLine(response);
+            }
+            debug("response is: "+response);
          }
-         inSock.close();
-         outSock.close();
-         conn.close();
+         System.out.println("Client "+id+" disconnected");
+      } catch (SocketTimeoutException e) {
+         System.out.println("Closing idle connection of client "+id);
       } catch (IOException e) {
          System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
       }
@@ -0,0 +1,238 @@
+package fauxSolution.codec;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A compact binary form of the same messages: no quotes, no escaping, no
+ * number formatting, and the parser never has to look for where a string
+ * ends.
+ *
+ * message: ID, value (always an object)
+ * value: a tag byte and then
+ *   NULL, FALSE, TRUE   nothing
+ *   INTEGER             the number as a zigzag varint, 1 byte for -64..63
+ *   DOUBLE              8 bytes, big endian
+ *   STRING              byte length as varint, UTF-8 bytes
+ *   OBJECT              entry count as varint, per entry a key (length and
+ *                       UTF-8 bytes like a STRING without its tag) and a value
+ *   ARRAY               element count as varint, the values
+ *   BIG                 a BigInteger or BigDecimal as a STRING without tag
+ */
+public class BinaryCodec implements MessageCodec {
+  public static final byte ID = 1;
+
+  private static final int NULL = 0;
+  private static final int FALSE = 1;
+  private static final int TRUE = 2;
+  private static final int INTEGER = 3;
+  private static final int DOUBLE = 4;
+  private static final int STRING = 5;
+  private static final int OBJECT = 6;
+  private static final int ARRAY = 7;
+  private static final int BIG = 8;
+
+  private static final int MAX_DEPTH = 512;
+
+  @Override
+  public byte getId() {
+    return ID;
+  }
+
+  @Override
+  public String getName() {
+    return "binary";
+  }
+
+  @Override
+  public void encode(JSONObject message, ByteOutput out) {
+    out.write(ID);
+    writeValue(message, out);
+  }
+
+  @Override
+  public JSONObject decode(ByteBuffer in) {
+    int start = in.position();
+    try {
+      if (in.get() != ID) {
+        throw new JSONException("Not a binary message");
+      }
+      if (in.get(in.position()) != OBJECT) {
+        throw new JSONException("A message must be an object");
+      }
+      Object message = readValue(in, 0);
+      if (in.hasRemaining()) {
+        throw new JSONException("Unexpected bytes after the message at byte " + (in.position() - start));
+      }
+      return (JSONObject) message;
+    } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+      throw new JSONException("Unexpected end of message");
+    }
+  }
+
+  private static void writeValue(Object value, ByteOutput out) {
+    if (value == null || JSONObject.NULL.equals(value)) {
+      out.write(NULL);
+    } else if (value instanceof Boolean) {
+      out.write((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+        || value instanceof Byte) {
+      out.write(INTEGER);
+      long n = ((Number) value).longValue();
+      writeVarint(n << 1 ^ n >> 63, out);
+    } else if (value instanceof Double || value instanceof Float) {
+      double d = ((Number) value).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        throw new JSONException("JSON does not allow non-finite numbers");
+      }
+      out.write(DOUBLE);
+      long bits = Double.doubleToLongBits(d);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        out.write((int) (bits >> shift));
+      }
+    } else if (value instanceof BigInteger || value instanceof BigDecimal) {
+      out.write(BIG);
+      writeText(value.toString(), out);
+    } else if (value instanceof String) {
+      out.write(STRING);
+      writeText((String) value, out);
+    } else if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      out.write(OBJECT);
+      writeVarint(object.length(), out);
+      for (String key : object.keySet()) {
+        writeText(key, out);
+        writeValue(object.opt(key), out);
+      }
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      out.write(ARRAY);
+      writeVarint(array.length(), out);
+      for (int i = 0; i < array.length(); i++) {
+        writeValue(array.opt(i), out);
+      }
+    } else {
+      // maps, collections, beans: whatever org.json makes of them
+      Object wrapped = JSONObject.wrap(value);
+      if (wrapped == null || wrapped == value) {
+        out.write(STRING);
+        writeText(value.toString(), out);
+      } else {
+        writeValue(wrapped, out);
+      }
+    }
+  }
+
+  private static void writeText(String s, ByteOutput out) {
+    writeVarint(ByteOutput.utf8Length(s), out);
+    out.writeUtf8(s);
+  }
+
+  private static void writeVarint(long n, ByteOutput out) {
+    while ((n & ~0x7fL) != 0) {
+      out.write((int) (n & 0x7f | 0x80));
+      n >>>= 7;
+    }
+    out.write((int) n);
+  }
+
+  private static Object readValue(ByteBuffer in, int depth) {
+    int tag = in.get();
+    switch (tag) {
+    case NULL:
+      return JSONObject.NULL;
+    case FALSE:
+      return Boolean.FALSE;
+    case TRUE:
+      return Boolean.TRUE;
+    case INTEGER: {
+      long zigzag = readVarint(in);
+      long n = zigzag >>> 1 ^ -(zigzag & 1);
+      // the types org.json would pick
+      return n == (int) n ? (Object) (int) n : (Object) n;
+    }
+    case DOUBLE:
+      return in.getDouble();
+    case STRING:
+      return readText(in);
+    case BIG: {
+      String text = readText(in);
+      try {
+        return text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0
+            ? new BigDecimal(text) : new BigInteger(text);
+      } catch (NumberFormatException e) {
+        throw new JSONException("Invalid number " + text);
+      }
+    }
+    case OBJECT: {
+      if (depth >= MAX_DEPTH) {
+        throw new JSONException("Nested too deeply");
+      }
+      int count = readCount(in);
+      JSONObject object = new JSONObject();
+      for (int i = 0; i < count; i++) {
+        String key = readText(in);
+        object.putOnce(key, readValue(in, depth + 1));
+      }
+      return object;
+    }
+    case ARRAY: {
+      if (depth >= MAX_DEPTH) {
+        throw new JSONException("Nested too deeply");
+      }
+      int count = readCount(in);
+      JSONArray array = new JSONArray();
+      for (int i = 0; i < count; i++) {
+        array.put(readValue(in, depth + 1));
+      }
+      return array;
+    }
+    default:
+      throw new JSONException("Unknown tag " + tag + " at byte " + (in.position() - 1));
+    }
+  }
+
+  private static String readText(ByteBuffer in) {
+    int length = readCount(in);
+    if (in.hasArray()) {
+      // decode straight from the array behind the buffer
+      String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+      in.position(in.position() + length);
+      return s;
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reads a length or count; each entry takes at least a byte, so one
+   * larger than what is left is an error, not a reason to allocate.
+   */
+  private static int readCount(ByteBuffer in) {
+    long count = readVarint(in);
+    if (count < 0 || count > in.remaining()) {
+      throw new JSONException("Invalid length " + count);
+    }
+    return (int) count;
+  }
+
+  private static long readVarint(ByteBuffer in) {
+    long n = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.get();
+      n |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return n;
+      }
+    }
+    throw new JSONException("Invalid varint");
+  }
+}
@@ -0,0 +1,142 @@
+package fauxSolution.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable byte array the codecs encode into. The result can be taken as
+ * a ByteBuffer over the same array, without copying, or as an array.
+ */
+public class ByteOutput {
+  private byte[] bytes;
+  private int length;
+
+  public ByteOutput() {
+    this(256);
+  }
+
+  public ByteOutput(int capacity) {
+    bytes = new byte[Math.max(16, capacity)];
+  }
+
+  private void ensure(int more) {
+    if (length + more > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + more));
+    }
+  }
+
+  public void write(int b) {
+    ensure(1);
+    bytes[length++] = (byte) b;
+  }
+
+  public void write(byte[] b, int offset, int count) {
+    ensure(count);
+    System.arraycopy(b, offset, bytes, length, count);
+    length += count;
+  }
+
+  /**
+   * Writes a string that is known to be ASCII, e.g. a number.
+   */
+  public void writeAscii(String s) {
+    int count = s.length();
+    ensure(count);
+    for (int i = 0; i < count; i++) {
+      bytes[length++] = (byte) s.charAt(i);
+    }
+  }
+
+  /**
+   * Writes a string as UTF-8 without building a byte array for it first.
+   * A surrogate without its other half becomes '?', as in String.getBytes.
+   */
+  public void writeUtf8(String s) {
+    int count = s.length();
+    ensure(count);
+    for (int i = 0; i < count; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        bytes[length++] = (byte) c;
+      } else {
+        i = writeUtf8(s, i);
+        ensure(count - i);
+      }
+    }
+  }
+
+  /**
+   * Writes the non ASCII character at index i, and the second half of it
+   * if it is a surrogate pair.
+   * @return the index of the last char written
+   */
+  int writeUtf8(String s, int i) {
+    char c = s.charAt(i);
+    ensure(4);
+    if (c < 0x800) {
+      bytes[length++] = (byte) (0xc0 | c >> 6);
+      bytes[length++] = (byte) (0x80 | c & 0x3f);
+    } else if (!Character.isSurrogate(c)) {
+      bytes[length++] = (byte) (0xe0 | c >> 12);
+      bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+      bytes[length++] = (byte) (0x80 | c & 0x3f);
+    } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+      int codePoint = Character.toCodePoint(c, s.charAt(++i));
+      bytes[length++] = (byte) (0xf0 | codePoint >> 18);
+      bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+      bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+      bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+    } else {
+      bytes[length++] = '?';
+    }
+    return i;
+  }
+
+  /**
+   * @return number of bytes writeUtf8 writes for s
+   */
+  public static int utf8Length(String s) {
+    int count = s.length();
+    int utf8 = count;
+    for (int i = 0; i < count; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x800) {
+        if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(s.charAt(i + 1))) {
+          utf8 += 2;
+          i++;
+        } else if (!Character.isSurrogate(c)) {
+          utf8 += 2;
+        }
+      } else if (c >= 0x80) {
+        utf8++;
+      }
+    }
+    return utf8;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Empties the output, keeping its array for the next message.
+   */
+  public void reset() {
+    length = 0;
+  }
+
+  /**
+   * @return the bytes written, backed by this output's array until more
+   *     is written to it
+   */
+  public ByteBuffer toByteBuffer() {
+    return ByteBuffer.wrap(bytes, 0, length);
+  }
+
+  /**
+   * @return the bytes written, the array itself if it happens to be full
+   */
+  public byte[] toByteArray() {
+    return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+  }
+}
@@ -0,0 +1,66 @@
+package fauxSolution.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+
+/**
+ * The codecs a message can be in, found by its first byte. JSON and the
+ * binary codec are always there, more can be registered.
+ */
+public final class Codecs {
+  public static final MessageCodec JSON = new JsonCodec();
+  public static final MessageCodec BINARY = new BinaryCodec();
+
+  private static final MessageCodec[] BY_ID = new MessageCodec[256];
+  private static final Map<String, MessageCodec> BY_NAME = new ConcurrentHashMap<>();
+
+  static {
+    register(JSON);
+    register(BINARY);
+    // JSON may start with whitespace
+    for (char c : new char[] { ' ', '\t', '\r', '\n' }) {
+      BY_ID[c] = JSON;
+    }
+  }
+
+  private Codecs() {
+  }
+
+  /**
+   * Makes a codec known by its id and name, replacing one with the same.
+   */
+  public static synchronized void register(MessageCodec codec) {
+    BY_ID[codec.getId() & 0xff] = codec;
+    BY_NAME.put(codec.getName(), codec);
+  }
+
+  /**
+   * @return the codec the message at the position of buffer is in
+   * @throws JSONException if no codec has its first byte as id
+   */
+  public static MessageCodec of(ByteBuffer message) {
+    if (!message.hasRemaining()) {
+      throw new JSONException("Empty message");
+    }
+    MessageCodec codec = BY_ID[message.get(message.position()) & 0xff];
+    if (codec == null) {
+      throw new JSONException("Unknown message format " + (message.get(message.position()) & 0xff));
+    }
+    return codec;
+  }
+
+  /**
+   * @return the codec with this name, e.g. "json" or "binary"
+   * @throws IllegalArgumentException if there is none
+   */
+  public static MessageCodec named(String name) {
+    MessageCodec codec = BY_NAME.get(name);
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown codec " + name + ", known are " + BY_NAME.keySet());
+    }
+    return codec;
+  }
+}
@@ -0,0 +1,435 @@
+package fauxSolution.codec;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+/**
+ * JSON in UTF-8, read from and written to bytes directly.
+ *
+ * new JSONObject(new String(bytes)) and toString().getBytes() copy every
+ * message three times and use the platform charset, which garbles anything
+ * that is not ASCII on a platform that is not UTF-8. Here the parser
+ * decodes UTF-8 itself while it walks the bytes and builds the JSONObject
+ * as it goes, and encode writes UTF-8 straight into the output. Numbers
+ * come out as the same types org.json would pick.
+ *
+ * The id is '{', the first byte of any JSON object, so messages of this
+ * codec are plain JSON and peers that know nothing about codecs can read
+ * them. Leading whitespace is allowed.
+ */
+public class JsonCodec implements MessageCodec {
+  /** Deeper nesting is refused, it would only overflow the stack */
+  private static final int MAX_DEPTH = 512;
+
+  @Override
+  public byte getId() {
+    return '{';
+  }
+
+  @Override
+  public String getName() {
+    return "json";
+  }
+
+  @Override
+  public void encode(JSONObject message, ByteOutput out) {
+    writeValue(message, out);
+  }
+
+  @Override
+  public JSONObject decode(ByteBuffer in) {
+    Parser parser = new Parser(in);
+    parser.skipWhitespace();
+    if (parser.peek() != '{') {
+      throw parser.error("A JSON message must be an object");
+    }
+    JSONObject message = parser.readObject(0);
+    parser.skipWhitespace();
+    if (in.hasRemaining()) {
+      throw parser.error("Unexpected bytes after the message");
+    }
+    return message;
+  }
+
+  private static void writeValue(Object value, ByteOutput out) {
+    if (value == null || JSONObject.NULL.equals(value)) {
+      out.writeAscii("null");
+    } else if (value instanceof String) {
+      writeString((String) value, out);
+    } else if (value instanceof Boolean) {
+      out.writeAscii(value.toString());
+    } else if (value instanceof Number) {
+      // also refuses NaN and infinity, which JSON has no way to write
+      out.writeAscii(JSONObject.numberToString((Number) value));
+    } else if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      out.write('{');
+      boolean first = true;
+      for (String key : object.keySet()) {
+        if (!first) {
+          out.write(',');
+        }
+        first = false;
+        writeString(key, out);
+        out.write(':');
+        writeValue(object.opt(key), out);
+      }
+      out.write('}');
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      out.write('[');
+      for (int i = 0; i < array.length(); i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        writeValue(array.opt(i), out);
+      }
+      out.write(']');
+    } else if (value instanceof JSONString) {
+      out.writeUtf8(((JSONString) value).toJSONString());
+    } else if (value instanceof Map || value instanceof Collection || value.getClass().isArray()) {
+      writeValue(JSONObject.wrap(value), out);
+    } else if (value instanceof Enum) {
+      writeString(((Enum<?>) value).name(), out);
+    } else {
+      writeString(value.toString(), out);
+    }
+  }
+
+  private static void writeString(String s, ByteOutput out) {
+    out.write('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.write('\\');
+        out.write(c);
+      } else if (c >= 0x20 && c < 0x80) {
+        out.write(c);
+      } else if (c < 0x20) {
+        switch (c) {
+        case '\n':
+          out.writeAscii("\\n");
+          break;
+        case '\r':
+          out.writeAscii("\\r");
+          break;
+        case '\t':
+          out.writeAscii("\\t");
+          break;
+        case '\b':
+          out.writeAscii("\\b");
+          break;
+        case '\f':
+          out.writeAscii("\\f");
+          break;
+        default:
+          writeEscape(c, out);
+        }
+      } else if (Character.isSurrogate(c) && !(Character.isHighSurrogate(c) && i + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(i + 1)))) {
+        // half a surrogate pair has no UTF-8 form, but JSON can still carry it
+        writeEscape(c, out);
+      } else {
+        i = out.writeUtf8(s, i);
+      }
+    }
+    out.write('"');
+  }
+
+  private static void writeEscape(char c, ByteOutput out) {
+    out.writeAscii("\\u");
+    String hex = Integer.toHexString(c);
+    for (int i = hex.length(); i < 4; i++) {
+      out.write('0');
+    }
+    out.writeAscii(hex);
+  }
+
+  /**
+   * Reads one message, a recursive descent over the bytes.
+   */
+  private static class Parser {
+    private final ByteBuffer in;
+    private final int start;
+    private final StringBuilder chars = new StringBuilder();
+
+    Parser(ByteBuffer in) {
+      this.in = in;
+      this.start = in.position();
+    }
+
+    JSONException error(String message) {
+      return new JSONException(message + " at byte " + (in.position() - start));
+    }
+
+    int peek() {
+      if (!in.hasRemaining()) {
+        throw error("Unexpected end of message");
+      }
+      return in.get(in.position()) & 0xff;
+    }
+
+    int next() {
+      if (!in.hasRemaining()) {
+        throw error("Unexpected end of message");
+      }
+      return in.get() & 0xff;
+    }
+
+    void expect(char c) {
+      if (next() != c) {
+        in.position(in.position() - 1);
+        throw error("Expected '" + c + "'");
+      }
+    }
+
+    void skipWhitespace() {
+      while (in.hasRemaining()) {
+        int b = in.get(in.position());
+        if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+          return;
+        }
+        in.get();
+      }
+    }
+
+    Object readValue(int depth) {
+      skipWhitespace();
+      switch (peek()) {
+      case '{':
+        return readObject(depth + 1);
+      case '[':
+        return readArray(depth + 1);
+      case '"':
+        return readString();
+      case 't':
+        readLiteral("true");
+        return Boolean.TRUE;
+      case 'f':
+        readLiteral("false");
+        return Boolean.FALSE;
+      case 'n':
+        readLiteral("null");
+        return JSONObject.NULL;
+      default:
+        return readNumber();
+      }
+    }
+
+    JSONObject readObject(int depth) {
+      if (depth > MAX_DEPTH) {
+        throw error("Nested too deeply");
+      }
+      expect('{');
+      JSONObject object = new JSONObject();
+      skipWhitespace();
+      if (peek() == '}') {
+        in.get();
+        return object;
+      }
+      while (true) {
+        skipWhitespace();
+        if (peek() != '"') {
+          throw error("Expected a key");
+        }
+        String key = readString();
+        skipWhitespace();
+        expect(':');
+        // putOnce: a key twice is an error, as in the org.json parser
+        object.putOnce(key, readValue(depth));
+        skipWhitespace();
+        int b = next();
+        if (b == '}') {
+          return object;
+        }
+        if (b != ',') {
+          in.position(in.position() - 1);
+          throw error("Expected ',' or '}'");
+        }
+      }
+    }
+
+    JSONArray readArray(int depth) {
+      if (depth > MAX_DEPTH) {
+        throw error("Nested too deeply");
+      }
+      expect('[');
+      JSONArray array = new JSONArray();
+      skipWhitespace();
+      if (peek() == ']') {
+        in.get();
+        return array;
+      }
+      while (true) {
+        array.put(readValue(depth));
+        skipWhitespace();
+        int b = next();
+        if (b == ']') {
+          return array;
+        }
+        if (b != ',') {
+          in.position(in.position() - 1);
+          throw error("Expected ',' or ']'");
+        }
+      }
+    }
+
+    String readString() {
+      expect('"');
+      chars.setLength(0);
+      while (true) {
+        int b = next();
+        if (b == '"') {
+          return chars.toString();
+        }
+        if (b == '\\') {
+          readEscape();
+        } else if (b < 0x20) {
+          throw error("Control character in a string");
+        } else if (b < 0x80) {
+          chars.append((char) b);
+        } else {
+          readUtf8(b);
+        }
+      }
+    }
+
+    private void readEscape() {
+      int b = next();
+      switch (b) {
+      case '"':
+      case '\\':
+      case '/':
+        chars.append((char) b);
+        break;
+      case 'n':
+        chars.append('\n');
+        break;
+      case 'r':
+        chars.append('\r');
+        break;
+      case 't':
+        chars.append('\t');
+        break;
+      case 'b':
+        chars.append('\b');
+        break;
+      case 'f':
+        chars.append('\f');
+        break;
+      case 'u':
+        int c = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(next(), 16);
+          if (digit < 0) {
+            throw error("Invalid \\u escape");
+          }
+          c = c << 4 | digit;
+        }
+        chars.append((char) c);
+        break;
+      default:
+        throw error("Invalid escape");
+      }
+    }
+
+    /**
+     * Decodes the character that starts with lead. Malformed sequences
+     * become U+FFFD, as they do in new String(bytes, UTF_8).
+     */
+    private void readUtf8(int lead) {
+      int more;
+      int codePoint;
+      int min;
+      if (lead >= 0xc2 && lead <= 0xdf) {
+        more = 1;
+        codePoint = lead & 0x1f;
+        min = 0x80;
+      } else if (lead >= 0xe0 && lead <= 0xef) {
+        more = 2;
+        codePoint = lead & 0x0f;
+        min = 0x800;
+      } else if (lead >= 0xf0 && lead <= 0xf4) {
+        more = 3;
+        codePoint = lead & 0x07;
+        min = 0x10000;
+      } else {
+        chars.append('\uFFFD');
+        return;
+      }
+      for (int i = 0; i < more; i++) {
+        if (!in.hasRemaining() || (in.get(in.position()) & 0xc0) != 0x80) {
+          chars.append('\uFFFD');
+          return;
+        }
+        codePoint = codePoint << 6 | in.get() & 0x3f;
+      }
+      if (codePoint < min || codePoint > Character.MAX_CODE_POINT
+          || codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+        chars.append('\uFFFD');
+      } else {
+        chars.appendCodePoint(codePoint);
+      }
+    }
+
+    private void readLiteral(String literal) {
+      for (int i = 0; i < literal.length(); i++) {
+        if (next() != literal.charAt(i)) {
+          throw error("Invalid value");
+        }
+      }
+    }
+
+    /**
+     * Reads a number and returns it as org.json would: Integer, Long or
+     * BigInteger for integers, Double or BigDecimal for the rest.
+     */
+    private Number readNumber() {
+      chars.setLength(0);
+      boolean decimal = false;
+      while (in.hasRemaining()) {
+        int b = in.get(in.position());
+        if (b >= '0' && b <= '9' || b == '-' || b == '+') {
+          chars.append((char) b);
+        } else if (b == '.' || b == 'e' || b == 'E') {
+          chars.append((char) b);
+          decimal = true;
+        } else {
+          break;
+        }
+        in.get();
+      }
+      if (chars.length() == 0) {
+        throw error("Invalid value");
+      }
+      String text = chars.toString();
+      try {
+        if (decimal || text.equals("-0")) {
+          if (text.length() > 14) {
+            return new BigDecimal(text);
+          }
+          Double d = Double.valueOf(text);
+          return d.isInfinite() || d.isNaN() ? new BigDecimal(text) : d;
+        }
+        BigInteger integer = new BigInteger(text);
+        if (integer.bitLength() <= 31) {
+          return integer.intValue();
+        }
+        if (integer.bitLength() <= 63) {
+          return integer.longValue();
+        }
+        return integer;
+      } catch (NumberFormatException e) {
+        throw error("Invalid number " + text);
+      }
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package fauxSolution.codec;
+
+import java.nio.ByteBuffer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A way of turning a message into bytes and back. Every encoded message
+ * starts with the codec's id, so the receiver can tell which codec to
+ * decode it with, see Codecs.
+ */
+public interface MessageCodec {
+  /**
+   * @return the first byte of every message this codec encodes
+   */
+  byte getId();
+
+  /**
+   * @return the name Codecs.named finds this codec by
+   */
+  String getName();
+
+  /**
+   * Appends a message to out.
+   * @throws JSONException if the message holds something that cannot be encoded
+   */
+  void encode(JSONObject message, ByteOutput out);
+
+  /**
+   * Reads a message from the remaining bytes of in, which must hold
+   * exactly one.
+   * @throws JSONException if the bytes are not a valid message
+   */
+  JSONObject decode(ByteBuffer in);
+}
@@ -0,0 +1,93 @@
+package fauxSolution.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct ByteBuffers in power of two sizes from MIN_SIZE to
+ * MAX_SIZE.
+ *
+ * Direct buffers are what the socket reads into and writes from; a heap
+ * buffer is copied into a temporary direct one by the JDK on every call.
+ * They are slow to allocate and only freed by the garbage collector, so
+ * they are kept and reused here. Requests above MAX_SIZE get a buffer of
+ * their own that is dropped on release.
+ */
+public class BufferPool {
+  public static final int MIN_SIZE = 4 * 1024;
+  public static final int MAX_SIZE = 16 * 1024 * 1024;
+
+  private static final BufferPool SHARED = new BufferPool(32 * 1024 * 1024);
+
+  private final List<ConcurrentLinkedQueue<ByteBuffer>> free;
+  private final AtomicInteger pooledBytes = new AtomicInteger();
+  private final int maxPooledBytes;
+
+  /**
+   * @param maxPooledBytes most bytes kept in free buffers, released buffers
+   *     over this are left to the garbage collector
+   */
+  public BufferPool(int maxPooledBytes) {
+    this.maxPooledBytes = maxPooledBytes;
+    int classes = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+    free = new ArrayList<>(classes);
+    for (int i = 0; i < classes; i++) {
+      free.add(new ConcurrentLinkedQueue<>());
+    }
+  }
+
+  /**
+   * @return the pool shared by all connections of this process
+   */
+  public static BufferPool shared() {
+    return SHARED;
+  }
+
+  /**
+   * @param size bytes needed
+   * @return a cleared buffer with at least size bytes of capacity and its
+   *     limit set to size
+   */
+  public ByteBuffer acquire(int size) {
+    int index = sizeClass(size);
+    ByteBuffer buffer = null;
+    if (index < free.size()) {
+      buffer = free.get(index).poll();
+      if (buffer != null) {
+        pooledBytes.addAndGet(-buffer.capacity());
+      } else {
+        buffer = ByteBuffer.allocateDirect(MIN_SIZE << index);
+      }
+    } else {
+      buffer = ByteBuffer.allocateDirect(size);
+    }
+    buffer.clear().limit(size);
+    return buffer;
+  }
+
+  /**
+   * Gives a buffer back. It must not be used afterwards.
+   */
+  public void release(ByteBuffer buffer) {
+    int index = sizeClass(buffer.capacity());
+    if (index >= free.size() || (MIN_SIZE << index) != buffer.capacity() || !buffer.isDirect()) {
+      return;
+    }
+    if (pooledBytes.addAndGet(buffer.capacity()) > maxPooledBytes) {
+      pooledBytes.addAndGet(-buffer.capacity());
+      return;
+    }
+    free.get(index).offer(buffer);
+  }
+
+  private static int sizeClass(int size) {
+    if (size <= MIN_SIZE) {
+      return 0;
+    }
+    // smallest power of two >= size, counted from MIN_SIZE
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+  }
+}
@@ -3,10 +3,11 @@ package fauxSolution.tcp;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.Scanner;
 
 import javax.imageio.ImageIO;
@@ -17,10 +18,13 @@ import javax.swing.JPanel;
 
 import org.json.*;
 
+import fauxSolution.codec.Codecs;
+import fauxSolution.codec.MessageCodec;
+
 public class Client {
   /*
    * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
-   * (optional)"min": <int>, (optional)"max":<int> }
+   * (optional)"min": <int>, (optional)"max":<int>, (optional)"id": <int> }
    * 
    * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke",
    * "quote", "image"> "data": <thing to return> }
@@ -42,92 +46,125 @@ public class Client {
   public static JSONObject image() {
     JSONObject request = new JSONObject();
     request.put("selected", 3);
+    // the image comes as raw bytes in a frame of its own, no Base64
+    request.put("binary", true);
     return request;
   }
 
   public static JSONObject random() {
     JSONObject request = new JSONObject();
     request.put("selected", 4);
+    request.put("binary", true);
     return request;
   }
 
   public static void main(String[] args) throws IOException {
-    Socket sock;
+    // json (default) or binary, the server answers in the same
+    MessageCodec codec = args.length > 0 ? Codecs.named(args[0]) : Codecs.JSON;
+    FrameCodec sock;
     try {
-      sock = new Socket("localhost", 9000);
-      OutputStream out = sock.getOutputStream();
-      InputStream in = sock.getInputStream();
+      sock = new FrameCodec(SocketChannel.open(new InetSocketAddress("localhost", 9000)), BufferPool.shared());
 
       Scanner input = new Scanner(System.in);
-      int choice;
+      int nextId = 1;
       System.out.println("Please select a valid option (1-5). 0 to diconnect the client");
+      System.out.println("Several options on one line, e.g. 3 1 2, are sent at once without waiting for the answers");
       do {
-        choice = input.nextInt(); // what if not int.. shoudl error handle this
-        JSONObject request = null;
-        switch (choice) {
-        case (1):
-          request = joke();
-          break;
-        case (2):
-          request = quote();
-          break;
-        case (3):
-          request = image();
-          break;
-        case (4):
-          request = random();
-          break;
-        case (5):
-          System.out.println("Jokes on you, I decided I do not like num 5: https://gph.is/g/a99OP09");
-          break;
-        case (0):
-          sock.close();
-          out.close();
-          in.close();
-          System.exit(0);
-          break;
-        default:
-          System.out.println("Please select a valid option (1-5).");
-          break;
+        // what if not int.. shoudl error handle this
+        String[] choices = input.nextLine().trim().split("\\s+");
+        List<JSONObject> requests = new ArrayList<>();
+        for (String option : choices) {
+          if (option.isEmpty()) {
+            continue;
+          }
+          int choice = Integer.parseInt(option);
+          JSONObject request = null;
+          switch (choice) {
+          case (1):
+            request = joke();
+            break;
+          case (2):
+            request = quote();
+            break;
+          case (3):
+            request = image();
+            break;
+          case (4):
+            request = random();
+            break;
+          case (5):
+            System.out.println("Jokes on you, I decided I do not like num 5: https://gph.is/g/a99OP09");
+            break;
+          case (0):
+            sock.close();
+            System.exit(0);
+            break;
+          default:
+            System.out.println("Please select a valid option (1-5).");
+            break;
+          }
+          if (request != null) {
+            // the server copies the id into the response, answers may come back in any order
+            request.put("id", nextId++);
+            requests.add(request);
+          }
         }
 
-        if (request != null) {
-          NetworkUtils.Send(out, JsonUtils.toByteArray(request));
-          byte[] responseBytes = NetworkUtils.Receive(in);
-          JSONObject response = JsonUtils.fromByteArray(responseBytes);
-          if (response.has("error")) {
-            System.out.println(response.getString("error"));
-          } else {
-            switch (response.getInt("datatype")) {
-            case (1):
-              System.out.println("Your " + response.getString("type"));
-              System.out.println(response.getString("data"));
-              break;
-            case (2): {
-              System.out.println("Your image");
-              Base64.Decoder decoder = Base64.getDecoder();
-              byte[] bytes = decoder.decode(response.getString("data"));
-              ImageIcon icon = null;
-              try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
-                BufferedImage image = ImageIO.read(bais);
-                icon = new ImageIcon(image);
-              }
-              if (icon != null) {
-                JFrame frame = new JFrame();
-                JLabel label = new JLabel();
-                label.setIcon(icon);
-                frame.add(label);
-                frame.setSize(icon.getIconWidth(), icon.getIconHeight());
-                frame.show();
-              }
-            }
-              break;
-            }
+        // pipelining: send everything first, then collect the answers as they come
+        for (JSONObject request : requests) {
+          sock.send(JsonUtils.toByteBuffer(request, codec));
+        }
+        for (int i = 0; i < requests.size(); i++) {
+          JSONObject response = JsonUtils.fromByteBuffer(sock.receive());
+          // datatype 3: the data follows in the next frame
+          byte[] data = response.optInt("datatype") == 3 ? sock.receiveBytes() : null;
+          if (requests.size() > 1) {
+            System.out.println("Answer to request " + response.opt("id") + ":");
           }
+          show(response, data);
         }
       } while (true);
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * @param data the frame after a datatype 3 response, otherwise null
+   */
+  private static void show(JSONObject response, byte[] data) throws IOException {
+    if (response.has("error")) {
+      System.out.println(response.getString("error"));
+    } else {
+      switch (response.getInt("datatype")) {
+      case (1):
+        System.out.println("Your " + response.getString("type"));
+        System.out.println(response.getString("data"));
+        break;
+      case (2):
+      case (3): {
+        System.out.println("Your image");
+        byte[] bytes = data;
+        if (bytes == null) {
+          Base64.Decoder decoder = Base64.getDecoder();
+          bytes = decoder.decode(response.getString("data"));
+        }
+        ImageIcon icon = null;
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
+          BufferedImage image = ImageIO.read(bais);
+          icon = new ImageIcon(image);
+        }
+        if (icon != null) {
+          JFrame frame = new JFrame();
+          JLabel label = new JLabel();
+          label.setIcon(icon);
+          frame.add(label);
+          frame.setSize(icon.getIconWidth(), icon.getIconHeight());
+          frame.show();
+        }
+      }
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package fauxSolution.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Length prefixed frames over a blocking SocketChannel: a 4 byte big
+ * endian length followed by that many bytes, the same format as
+ * NetworkUtils.Send and Receive, so both ends can use either.
+ *
+ * A frame goes out with one gathering write of length and payload, which
+ * the kernel sends as one segment if it fits, instead of one write each.
+ * Frames are read with loops, not recursion, into a direct buffer from a
+ * BufferPool that is kept for the next frame, so receiving allocates
+ * nothing as long as frames do not get bigger.
+ *
+ * One codec belongs to one connection. Any number of threads may send,
+ * frames are written one after the other; only one thread may receive.
+ */
+public class FrameCodec implements AutoCloseable {
+  /** Larger frames are refused, a broken or hostile peer cannot make us allocate gigabytes */
+  public static final int MAX_FRAME = 64 * 1024 * 1024;
+
+  /** Most frames one call of send can take */
+  public static final int MAX_FRAMES_PER_SEND = 8;
+
+  private final SocketChannel channel;
+  private final BufferPool pool;
+  private final ByteBuffer sendLengths = ByteBuffer.allocateDirect(4 * MAX_FRAMES_PER_SEND);
+  private final ByteBuffer receiveLength = ByteBuffer.allocateDirect(4);
+  private final ByteBuffer[] gather = new ByteBuffer[2 * MAX_FRAMES_PER_SEND];
+  private final Object sendLock = new Object();
+  private ByteBuffer frame;
+
+  /**
+   * @param channel a connected channel in blocking mode
+   * @param pool where the receive buffer comes from
+   */
+  public FrameCodec(SocketChannel channel, BufferPool pool) {
+    this.channel = channel;
+    this.pool = pool;
+  }
+
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Sends a frame, copying the payload into a pooled direct buffer first.
+   */
+  public void send(byte[] payload) throws IOException {
+    ByteBuffer buffer = pool.acquire(payload.length);
+    try {
+      buffer.put(payload).flip();
+      send(buffer);
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  /**
+   * Sends the remaining bytes of every payload as one frame each, all in
+   * one gathering write. Frames of one call are never separated by frames
+   * another thread sends, so e.g. a header and the data it announces stay
+   * together.
+   */
+  public void send(ByteBuffer... payloads) throws IOException {
+    if (payloads.length > MAX_FRAMES_PER_SEND) {
+      throw new IllegalArgumentException("At most " + MAX_FRAMES_PER_SEND + " frames per send");
+    }
+    synchronized (sendLock) {
+      sendLengths.clear();
+      for (int i = 0; i < payloads.length; i++) {
+        sendLengths.limit(4 * i + 4).position(4 * i);
+        gather[2 * i] = sendLengths.slice().putInt(payloads[i].remaining()).flip();
+        gather[2 * i + 1] = payloads[i];
+      }
+      int count = 2 * payloads.length;
+      try {
+        // a blocking channel may still write less than everything; the
+        // buffers are written in order, so all is written once the last is
+        while (count > 0 && (gather[count - 2].hasRemaining() || gather[count - 1].hasRemaining())) {
+          channel.write(gather, 0, count);
+        }
+      } finally {
+        Arrays.fill(gather, null);
+      }
+    }
+  }
+
+  /**
+   * Reads the next frame.
+   * @return the payload, only valid until the next call of receive
+   * @throws EOFException if the peer closed the connection between frames
+   * @throws IOException if the connection fails or the frame is too large
+   */
+  public ByteBuffer receive() throws IOException {
+    receiveLength.clear();
+    if (!readFully(receiveLength) && receiveLength.position() == 0) {
+      throw new EOFException("Connection closed");
+    }
+    if (receiveLength.hasRemaining()) {
+      throw new EOFException("Connection closed within a frame");
+    }
+    int length = receiveLength.getInt(0);
+    if (length < 0 || length > MAX_FRAME) {
+      throw new IOException("Invalid frame length " + length);
+    }
+
+    if (frame == null || frame.capacity() < length) {
+      if (frame != null) {
+        pool.release(frame);
+      }
+      frame = pool.acquire(length);
+    }
+    frame.clear().limit(length);
+    if (!readFully(frame)) {
+      throw new EOFException("Connection closed within a frame");
+    }
+    return frame.flip();
+  }
+
+  /**
+   * Reads the next frame into a new array.
+   */
+  public byte[] receiveBytes() throws IOException {
+    ByteBuffer payload = receive();
+    byte[] bytes = new byte[payload.remaining()];
+    payload.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * @return false if the stream ended before the buffer was full
+   */
+  private boolean readFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Closes the channel and returns the receive buffer to the pool.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      channel.close();
+    } finally {
+      if (frame != null) {
+        pool.release(frame);
+        frame = null;
+      }
+    }
+  }
+}
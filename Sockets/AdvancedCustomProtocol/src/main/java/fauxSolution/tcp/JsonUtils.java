@@ -1,14 +1,57 @@
 package fauxSolution.tcp;
 
+import java.nio.ByteBuffer;
+
 import org.json.JSONObject;
 
+import fauxSolution.codec.ByteOutput;
+import fauxSolution.codec.Codecs;
+import fauxSolution.codec.MessageCodec;
+
+/**
+ * Messages to bytes and back, in UTF-8 JSON unless another codec is given.
+ * Reading finds the codec by the first byte, see Codecs.
+ */
 public class JsonUtils {
   public static JSONObject fromByteArray(byte[] bytes) {
-    String jsonString = new String(bytes);
-    return new JSONObject(jsonString);
+    return fromByteBuffer(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Decodes the remaining bytes of buffer, without copying them first.
+   */
+  public static JSONObject fromByteBuffer(ByteBuffer buffer) {
+    return Codecs.of(buffer).decode(buffer);
+  }
+
+  /**
+   * @return the codec a message is in, JSON if it is in none so an error
+   *     can still be answered
+   */
+  public static MessageCodec codecOf(ByteBuffer buffer) {
+    try {
+      return Codecs.of(buffer);
+    } catch (RuntimeException e) {
+      return Codecs.JSON;
+    }
   }
-  
+
   public static byte[] toByteArray(JSONObject object) {
-    return object.toString().getBytes();
+    return toByteArray(object, Codecs.JSON);
+  }
+
+  public static byte[] toByteArray(JSONObject object, MessageCodec codec) {
+    ByteOutput out = new ByteOutput();
+    codec.encode(object, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the message in the given codec, backed by a new array
+   */
+  public static ByteBuffer toByteBuffer(JSONObject object, MessageCodec codec) {
+    ByteOutput out = new ByteOutput();
+    codec.encode(object, out);
+    return out.toByteBuffer();
   }
 }
@@ -1,5 +1,6 @@
 package fauxSolution.tcp;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -16,26 +17,28 @@ public class NetworkUtils {
     return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | ((bytes[3] & 0xFF) << 0);
   }
 
+  // length and message go out in one write, two writes can mean two TCP segments
+  // FrameCodec does the same without the copy for connections with a SocketChannel
   public static void Send(OutputStream out, byte... bytes) throws IOException {
-    out.write(intToBytes(bytes.length));
-    out.write(bytes);
+    byte[] frame = new byte[4 + bytes.length];
+    System.arraycopy(intToBytes(bytes.length), 0, frame, 0, 4);
+    System.arraycopy(bytes, 0, frame, 4, bytes.length);
+    out.write(frame);
     out.flush();
   }
 
   // read the bytes on the stream
-  // read the bytes on the stream
+  // a read may return fewer bytes than asked for, so keep reading until we have them all
   private static byte[] Read(InputStream in, int length) throws IOException {
     byte[] bytes = new byte[length];
     System.out.println("Read in bytes: " + length);
     int bytesRead = 0;
-    try {
-      bytesRead = in.read(bytes, 0, length);
-    } catch (IOException e1) {
-      e1.printStackTrace();
-    }
-    if (bytesRead < length && bytesRead > 0) {
-      byte[] newBytes = Read(in, length-bytesRead);
-      System.arraycopy(newBytes, 0, bytes, bytesRead, newBytes.length);
+    while (bytesRead < length) {
+      int read = in.read(bytes, bytesRead, length - bytesRead);
+      if (read < 0) {
+        throw new EOFException("Connection closed after " + bytesRead + " of " + length + " bytes");
+      }
+      bytesRead += read;
     }
     return bytes;
   }
@@ -44,12 +47,10 @@ public class NetworkUtils {
   // next we call read again with the length of the actual bytes in the data we are interested in 
   public static byte[] Receive(InputStream in) throws IOException {
     byte[] lengthBytes = Read(in, 4);
-    if (lengthBytes == null)
-      return new byte[0];
     int length = NetworkUtils.bytesToInt(lengthBytes);
-    byte[] message = Read(in, length);
-    if (message == null)
-      return new byte[0];
-    return message;
+    if (length < 0 || length > FrameCodec.MAX_FRAME) {
+      throw new IOException("Invalid message length " + length);
+    }
+    return Read(in, length);
   }
 }
@@ -1,29 +1,43 @@
 package fauxSolution.tcp;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
 import java.util.Base64;
 import java.util.Random;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 import org.json.*;
 
+import fauxSolution.codec.MessageCodec;
+
 public class Server {
+  // threads working on requests in concurrent mode
+  private static final int WORKERS = Runtime.getRuntime().availableProcessors() * 2;
+
+  // requests of one client worked on at the same time in concurrent mode
+  private static final int MAX_IN_FLIGHT = 16;
+
   /*
-   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random> }
+   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
+   * (optional)"id": <anything, copied into the response>,
+   * (optional)"binary": <true to get images as datatype 3> }
    * 
-   * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke",
-   * "quote", "image">, "data": <thing to return> }
+   * response: {"datatype": <int: 1-string, 2-byte array, 3-binary frame>, "type": <"joke",
+   * "quote", "image">, "data": <thing to return>, "id": <id of the request> }
+   *
+   * datatype 3 has no "data" but a "length", the next frame holds that
+   * many bytes of the raw file, no Base64 and no JSON around it.
    * 
-   * error response: {"error": <error string> }
+   * error response: {"error": <error string>, "id": <id of the request> }
    */
 
   public static JSONObject joke() {
@@ -43,33 +57,53 @@ public class Server {
     return json;
   }
 
-  public static JSONObject image() throws IOException {
-    JSONObject json = new JSONObject();
-    json.put("datatype", 2);
-
-    json.put("type", "image");
+  // the image file is read once, every request is answered from memory
+  private static ByteBuffer imageBytes;
+  private static String imageBase64;
 
+  private static synchronized void loadImage() throws IOException {
+    if (imageBytes != null) {
+      return;
+    }
     File file = new File("img/To-Funny-For-Words1.png");
     if (!file.exists()) {
       System.err.println("Cannot find file: " + file.getAbsolutePath());
       System.exit(-1);
     }
-    // Read in image
-    BufferedImage img = ImageIO.read(file);
-    byte[] bytes = null;
-    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-      ImageIO.write(img, "png", out);
-      bytes = out.toByteArray();
-    }
-    if (bytes != null) {
-      Base64.Encoder encoder = Base64.getEncoder();
-      json.put("data", encoder.encodeToString(bytes));
-      return json;
+    // the file already is a PNG, no need to decode and encode it again
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    imageBytes = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+    Base64.Encoder encoder = Base64.getEncoder();
+    imageBase64 = encoder.encodeToString(bytes);
+  }
+
+  public static JSONObject image() throws IOException {
+    return image(false);
+  }
+
+  /**
+   * @param binary true to send the file as a frame of its own after the
+   *     JSON (datatype 3), false to send it Base64 encoded in it (datatype 2)
+   */
+  public static JSONObject image(boolean binary) throws IOException {
+    loadImage();
+    JSONObject json = new JSONObject();
+    json.put("type", "image");
+    if (binary) {
+      json.put("datatype", 3);
+      json.put("length", imageBytes.remaining());
+    } else {
+      json.put("datatype", 2);
+      json.put("data", imageBase64);
     }
-    return error("Unable to save image to byte array");
+    return json;
   }
 
   public static JSONObject random() throws IOException {
+    return random(false);
+  }
+
+  public static JSONObject random(boolean binary) throws IOException {
     Random rand = new Random();
     int random = rand.nextInt(3);
     JSONObject json = new JSONObject();
@@ -78,61 +112,120 @@ public class Server {
     } else if (random == 1) {
       json = quote();
     } else if (random == 2) {
-      json = image();
+      json = image(binary);
     }
     return json;
   }
 
+  /**
+   * Sends a response in the codec the request came in; for datatype 3 the
+   * JSON and the file go out together in one write, as two frames.
+   */
+  public static void reply(FrameCodec sock, JSONObject response, MessageCodec codec) throws IOException {
+    sock.send(frames(response, codec));
+  }
+
+  /**
+   * @return the frames of a response, ready for FrameCodec.send
+   */
+  private static ByteBuffer[] frames(JSONObject response, MessageCodec codec) {
+    // the codec writes the JSON object straight into a buffer
+    ByteBuffer output = JsonUtils.toByteBuffer(response, codec);
+    if (response.optInt("datatype") != 3) {
+      return new ByteBuffer[] { output };
+    }
+    return new ByteBuffer[] { output, imageBytes.duplicate() };
+  }
+
   public static JSONObject error(String err) {
     JSONObject json = new JSONObject();
     json.put("error", err);
     return json;
   }
 
+  /**
+   * Answers one request. A request may carry an "id", which is copied into
+   * the response so a client with several requests in flight can tell the
+   * responses apart.
+   * @param messageBytes the request, decoded without copying it first
+   */
+  public static JSONObject handle(ByteBuffer messageBytes) throws IOException {
+    JSONObject message;
+    try {
+      message = JsonUtils.fromByteBuffer(messageBytes);
+    } catch (JSONException e) {
+      return error("Invalid message received");
+    }
+    return handle(message);
+  }
+
+  public static JSONObject handle(JSONObject message) throws IOException {
+    JSONObject returnMessage;
+    boolean binary = message.optBoolean("binary");
+    if (message.has("selected")) {
+      if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
+        int choice = message.getInt("selected");
+        switch (choice) {
+        case (1):
+          returnMessage = joke();
+          break;
+        case (2):
+          returnMessage = quote();
+          break;
+        case (3):
+          returnMessage = image(binary);
+          break;
+        case (4):
+          returnMessage = random(binary);
+          break;
+        default:
+          returnMessage = error("Invalid selection: " + choice + " is not an option");
+        }
+      } else {
+        returnMessage = error("Selection must be an integer");
+      }
+    } else {
+      returnMessage = error("Invalid message received");
+    }
+    if (message.has("id")) {
+      returnMessage.put("id", message.get("id"));
+    }
+    return returnMessage;
+  }
+
+  /**
+   * @return the request, or null if it is not valid
+   */
+  private static JSONObject decode(ByteBuffer messageBytes) {
+    try {
+      return JsonUtils.fromByteBuffer(messageBytes);
+    } catch (JSONException e) {
+      return null;
+    }
+  }
+
   public static void main(String[] args) throws IOException {
-    ServerSocket serv = null;
+    boolean concurrent = args.length > 0 && args[0].equals("concurrent");
+    loadImage();
+    ServerSocketChannel serv = null;
     try {
-      serv = new ServerSocket(9000);
+      serv = ServerSocketChannel.open();
+      serv.bind(new InetSocketAddress(9000));
+      if (concurrent) {
+        serveConcurrently(serv);
+        return;
+      }
       // NOTE: SINGLE-THREADED, only one connection at a time
       while (true) {
-        Socket sock = null;
+        FrameCodec sock = null;
         try {
-          sock = serv.accept(); // blocking wait
-          OutputStream out = sock.getOutputStream();
-          InputStream in = sock.getInputStream();
+          // blocking wait, the codec frames the messages like NetworkUtils.Send/Receive
+          sock = new FrameCodec(serv.accept(), BufferPool.shared());
           while (true) {
-            byte[] messageBytes = NetworkUtils.Receive(in);
-            JSONObject message = JsonUtils.fromByteArray(messageBytes);
-            JSONObject returnMessage;
-            if (message.has("selected")) {
-              if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
-                int choice = message.getInt("selected");
-                switch (choice) {
-                case (1):
-                  returnMessage = joke();
-                  break;
-                case (2):
-                  returnMessage = quote();
-                  break;
-                case (3):
-                  returnMessage = image();
-                  break;
-                case (4):
-                  returnMessage = random();
-                  break;
-                default:
-                  returnMessage = error("Invalid selection: " + choice + " is not an option");
-                }
-              } else {
-                returnMessage = error("Selection must be an integer");
-              }
-            } else {
-              returnMessage = error("Invalid message received");
-            }
-
-            // we are converting the JSON object we have to a byte[]
-            byte[] output = JsonUtils.toByteArray(returnMessage);
-            NetworkUtils.Send(out, output);
+            ByteBuffer messageBytes = sock.receive();
+            MessageCodec codec = JsonUtils.codecOf(messageBytes);
+            JSONObject returnMessage = handle(messageBytes);
+            reply(sock, returnMessage, codec);
           }
         } catch (Exception e) {
           System.out.println("Client disconnect");
@@ -150,4 +243,91 @@ public class Server {
       }
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Serves any number of clients at the same time. Every connection gets a
+   * thread that only reads requests and hands them to a shared pool of
+   * workers, so a client can send several requests without waiting for the
+   * answers (pipelining). A worker queues its answer for the connection's
+   * writer thread as soon as it is done, a quick joke can overtake an image
+   * requested before it; clients match them up by the "id" they put in the
+   * request. Workers never write to a socket, so a client that does not
+   * read its answers only stalls its own writer, not the pool. At most
+   * MAX_IN_FLIGHT requests of one client are worked on or waiting to be
+   * sent, after that its reader stops reading until an answer has been sent.
+   * A client that closes its side after the last request still gets every
+   * answer, the writer closes the socket once they are sent.
+   */
+  private static void serveConcurrently(ServerSocketChannel serv) throws IOException {
+    ExecutorService readers = Executors.newCachedThreadPool();
+    ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+    System.out.println("Serving clients concurrently with " + WORKERS + " workers");
+    while (true) {
+      FrameCodec sock = new FrameCodec(serv.accept(), BufferPool.shared());
+      Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+      BlockingQueue<ByteBuffer[]> outbound = new LinkedBlockingQueue<>();
+      readers.execute(() -> write(sock, outbound, inFlight));
+      readers.execute(() -> {
+        try {
+          while (true) {
+            // decoded here, the frame buffer is reused for the next request
+            ByteBuffer messageBytes = sock.receive();
+            MessageCodec codec = JsonUtils.codecOf(messageBytes);
+            JSONObject message = decode(messageBytes);
+            inFlight.acquire();
+            workers.execute(() -> {
+              try {
+                outbound.add(frames(message == null ? error("Invalid message received") : handle(message), codec));
+              } catch (IOException e) {
+                // nothing to send
+                inFlight.release();
+              }
+            });
+          }
+        } catch (EOFException e) {
+          // the client is done sending, wait until the answers to what it sent are out
+          inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+          System.out.println("Client disconnect");
+        } catch (IOException | InterruptedException e) {
+          System.out.println("Client disconnect");
+          // let the answers still being worked on fail quickly instead of writing to nobody
+          closeQuietly(sock);
+        } finally {
+          outbound.add(NO_MORE_FRAMES);
+        }
+      });
+    }
+  }
+
+  private static final ByteBuffer[] NO_MORE_FRAMES = new ByteBuffer[0];
+
+  /**
+   * Sends the answers of one connection in the order they are done, until
+   * its reader is finished or the client is gone, then closes the socket.
+   */
+  private static void write(FrameCodec sock, BlockingQueue<ByteBuffer[]> outbound, Semaphore inFlight) {
+    try {
+      while (true) {
+        ByteBuffer[] frames = outbound.take();
+        if (frames == NO_MORE_FRAMES) {
+          closeQuietly(sock);
+          return;
+        }
+        sock.send(frames);
+        inFlight.release();
+      }
+    } catch (IOException | InterruptedException e) {
+      closeQuietly(sock);
+      // a reader waiting for a permit goes on and finds the socket closed
+      inFlight.release(MAX_IN_FLIGHT);
+    }
+  }
+
+  private static void closeQuietly(FrameCodec sock) {
+    try {
+      sock.close();
+    } catch (IOException e) {
+      // closing anyway
+    }
+  }
+}
@@ -19,6 +19,9 @@ import javax.swing.JPanel;
 
 import org.json.*;
 
+import fauxSolution.codec.Codecs;
+import fauxSolution.codec.MessageCodec;
+
 public class Client {
 	  /*
 	   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
@@ -54,11 +57,14 @@ public static JSONObject random() {
 }
 
   public static void main(String[] args) throws IOException {
-    DatagramSocket sock;
+    // json (default) or binary, the server answers in the same
+    MessageCodec codec = args.length > 0 ? Codecs.named(args[0]) : Codecs.JSON;
+    ReliableTransport transport;
     try {
       InetAddress address = InetAddress.getByName("localhost");
       int port = 9000;
-      sock = new DatagramSocket();
+      // as large as the way to the server allows
+      transport = new ReliableTransport(new DatagramSocket(), NetworkUtils.packetSizeFor(address));
 
       Scanner input = new Scanner(System.in);
       int choice;
@@ -88,8 +94,8 @@ public static JSONObject random() {
         }
 
         if (request != null) {
-          NetworkUtils.Send(sock, address, port, JsonUtils.toByteArray(request));
-          NetworkUtils.Tuple responseTuple = NetworkUtils.Receive(sock);
+          transport.send(address, port, JsonUtils.toByteArray(request, codec));
+          NetworkUtils.Tuple responseTuple = transport.receive();
           JSONObject response = JsonUtils.fromByteArray(responseTuple.Payload);
           if (response.has("error")) {
               System.out.println(response.getString("error"));
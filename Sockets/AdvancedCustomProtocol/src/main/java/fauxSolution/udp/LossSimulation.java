@@ -0,0 +1,157 @@
+package fauxSolution.udp;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends messages between two ReliableTransports in this process over
+ * LossyDatagramSocket, in both directions, and checks that every one
+ * arrives complete and unchanged. Before that it feeds a ReassemblyTable
+ * fragments out of order and fragments a broken or forged sender could
+ * send, and checks what the table takes and how much memory it holds.
+ * Any failed check ends it with an exception, so `gradle check` fails
+ * (UDPSimulationCheck).
+ *
+ * usage: LossSimulation [loss [reorder [duplicate [kilobytes [messages [packetSize|mtu]]]]]]
+ *   defaults: 0.05 0.05 0.01 1024 8 1024
+ */
+public class LossSimulation {
+  public static void main(String[] args) throws Exception {
+    double loss = args.length > 0 ? Double.parseDouble(args[0]) : 0.05;
+    double reorder = args.length > 1 ? Double.parseDouble(args[1]) : 0.05;
+    double duplicate = args.length > 2 ? Double.parseDouble(args[2]) : 0.01;
+    int size = (args.length > 3 ? Integer.parseInt(args[3]) : 1024) * 1024;
+    int messages = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+    InetAddress localhost = InetAddress.getLoopbackAddress();
+    int packetSize = args.length <= 5 ? ReliableTransport.DEFAULT_PACKET_SIZE
+        : args[5].equals("mtu") ? NetworkUtils.packetSizeFor(localhost) : Integer.parseInt(args[5]);
+
+    checkReassembly(localhost);
+    System.out.println("reassembly checks passed");
+
+    LossyDatagramSocket aSocket = new LossyDatagramSocket(0, loss, duplicate, reorder, 20, 1);
+    LossyDatagramSocket bSocket = new LossyDatagramSocket(0, loss, duplicate, reorder, 20, 2);
+    ReassemblyTable bTable = new ReassemblyTable(ReliableTransport.MAX_BUFFERED,
+        ReliableTransport.MAX_BUFFERED_PER_SENDER, ReliableTransport.REASSEMBLY_TIMEOUT);
+    try (ReliableTransport a = new ReliableTransport(aSocket, packetSize);
+        ReliableTransport b = new ReliableTransport(bSocket, packetSize, bTable)) {
+      Random random = new Random(3);
+      long bytes = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < messages; i++) {
+        byte[] request = new byte[size];
+        random.nextBytes(request);
+        a.send(localhost, bSocket.getLocalPort(), request);
+        NetworkUtils.Tuple received = b.receive();
+        check("request " + i, request, received.Payload);
+        // taken out by receive, so nothing is held for it any more
+        check(bTable.getReservedBytes() == 0, "request " + i + " still holds "
+            + bTable.getReservedBytes() + " bytes");
+
+        // and back, like a server answering
+        byte[] response = new byte[random.nextInt(size + 1)];
+        random.nextBytes(response);
+        b.send(received.Address, received.Port, response);
+        check("response " + i, response, a.receive().Payload);
+        bytes += request.length + response.length;
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      System.out.printf("%d messages, %.1f MB in %.2f s, %.2f MB/s, %d byte packets%n", 2 * messages,
+          bytes / 1e6, seconds, bytes / 1e6 / seconds, packetSize);
+      print("a", a, aSocket, localhost, bSocket.getLocalPort());
+      print("b", b, bSocket, localhost, aSocket.getLocalPort());
+    }
+  }
+
+  /**
+   * Checks ReassemblyTable on its own, no network involved.
+   */
+  private static void checkReassembly(InetAddress sender) {
+    long now = System.nanoTime();
+    ReassemblyTable table = new ReassemblyTable(ReliableTransport.MAX_BUFFERED,
+        ReliableTransport.MAX_BUFFERED_PER_SENDER, ReliableTransport.REASSEMBLY_TIMEOUT);
+
+    // one forged packet announcing the largest message costs only its own bytes
+    ReassemblyTable.Message forged = table.open(new ReassemblyTable.Key(sender, 1, 1), 1000,
+        ReliableTransport.MAX_MESSAGE, now);
+    check(forged != null, "forged message not opened");
+    check(table.add(forged, 999, ByteBuffer.allocate(100), now), "forged last fragment refused");
+    check(table.getReservedBytes() <= 100, "forged packet holds " + table.getReservedBytes() + " bytes");
+    check(!table.add(forged, 5, ByteBuffer.allocate(1000), now) && !table.add(forged, 1000,
+        ByteBuffer.allocate(1), now), "fragments contradicting the forged one taken");
+    check(table.open(new ReassemblyTable.Key(sender, 1, 1), 999, ReliableTransport.MAX_MESSAGE, now) == null,
+        "other fragment count taken");
+
+    // the last fragment must end the message exactly
+    ReassemblyTable.Message message = table.open(new ReassemblyTable.Key(sender, 1, 2), 3, 2500, now);
+    check(table.add(message, 0, ByteBuffer.allocate(1000), now), "first fragment refused");
+    check(!table.add(message, 2, ByteBuffer.allocate(400), now), "too short last fragment taken");
+    check(!table.add(message, 2, ByteBuffer.allocate(600), now), "too long last fragment taken");
+    check(!table.add(message, 1, ByteBuffer.allocate(999), now), "fragment of another size taken");
+    check(table.add(message, 2, ByteBuffer.allocate(500), now), "last fragment refused");
+    message = table.open(new ReassemblyTable.Key(sender, 1, 3), 3, 2500, now);
+    check(table.add(message, 2, ByteBuffer.allocate(500), now), "last fragment first refused");
+    check(!table.add(message, 0, ByteBuffer.allocate(900), now), "fragment not fitting the last taken");
+    message = table.open(new ReassemblyTable.Key(sender, 1, 4), 3, 2000, now);
+    check(!table.add(message, 0, ByteBuffer.allocate(1000), now), "fragment leaving the last empty taken");
+
+    // fragments in any order make up the message
+    Random random = new Random(5);
+    for (int round = 0; round < 20; round++) {
+      int fragmentSize = 1 + random.nextInt(2000);
+      int total = 1 + random.nextInt(300);
+      byte[] bytes = new byte[(total - 1) * fragmentSize + 1 + random.nextInt(fragmentSize)];
+      random.nextBytes(bytes);
+      List<Integer> order = new ArrayList<>();
+      for (int i = 0; i < total; i++) {
+        order.add(i);
+      }
+      Collections.shuffle(order, random);
+      ReassemblyTable.Message shuffled = table.open(new ReassemblyTable.Key(sender, 2, round), total,
+          bytes.length, now);
+      for (int fragment : order) {
+        int offset = fragment * fragmentSize;
+        check(table.add(shuffled, fragment, ByteBuffer.wrap(bytes, offset,
+            Math.min(fragmentSize, bytes.length - offset)), now), "fragment " + fragment + " refused");
+        check(table.getReservedBytes() <= 3L * bytes.length + 6000, "holds "
+            + table.getReservedBytes() + " bytes for " + bytes.length);
+      }
+      check(shuffled.isComplete(), "shuffled message not complete");
+      NetworkUtils.Tuple done = table.complete(shuffled);
+      check("shuffled message " + round, bytes, done.Payload);
+      table.release(done);
+    }
+
+    // messages that never finish give their memory back when they expire
+    table.expire(now + ReliableTransport.REASSEMBLY_TIMEOUT + 1);
+    check(table.size() == 0 && table.getReservedBytes() == 0, "expire left " + table.size()
+        + " messages with " + table.getReservedBytes() + " bytes");
+  }
+
+  private static void check(boolean ok, String failure) {
+    if (!ok) {
+      throw new IllegalStateException(failure);
+    }
+  }
+
+  private static void check(String what, byte[] sent, byte[] received) {
+    if (!Arrays.equals(sent, received)) {
+      throw new IllegalStateException(what + " arrived changed: " + sent.length + " bytes sent, "
+          + received.length + " received");
+    }
+  }
+
+  private static void print(String name, ReliableTransport transport, LossyDatagramSocket sock,
+      InetAddress peer, int port) {
+    System.out.printf("%s: %d packets sent, %d dropped, %d reordered, %d duplicated, %d retransmitted, "
+        + "%d timeouts, window %d, srtt %.2f ms%n", name, transport.getPacketsSent(), sock.getDropped(),
+        sock.getReordered(), sock.getDuplicated(), transport.getRetransmissions(), transport.getTimeouts(),
+        transport.getWindow(peer, port), transport.getSmoothedRtt(peer, port) / 1e6);
+  }
+}
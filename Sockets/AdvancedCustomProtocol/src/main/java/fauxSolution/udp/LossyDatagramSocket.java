@@ -0,0 +1,108 @@
+package fauxSolution.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A DatagramSocket that behaves like a bad network when sending: packets
+ * are dropped, sent twice or held back for a while so later ones overtake
+ * them, each with its own probability. Everything happens in this process,
+ * so ReliableTransport can be tried out on localhost, see LossSimulation.
+ *
+ * A seed makes the losses repeatable as long as one thread sends.
+ */
+public class LossyDatagramSocket extends DatagramSocket {
+  private final double loss;
+  private final double duplicate;
+  private final double reorder;
+  private final int maxDelayMillis;
+  private final Random random;
+  private final ScheduledExecutorService delayed = Executors.newSingleThreadScheduledExecutor(task -> {
+    Thread thread = new Thread(task, "lossy-delay");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder duplicated = new LongAdder();
+  private final LongAdder reordered = new LongAdder();
+
+  /**
+   * @param port local port, 0 for any free one
+   * @param loss probability a packet is dropped
+   * @param duplicate probability a packet is sent twice
+   * @param reorder probability a packet is held back
+   * @param maxDelayMillis longest time a packet is held back
+   * @param seed for the random decisions
+   */
+  public LossyDatagramSocket(int port, double loss, double duplicate, double reorder, int maxDelayMillis,
+      long seed) throws SocketException {
+    super(port);
+    this.loss = loss;
+    this.duplicate = duplicate;
+    this.reorder = reorder;
+    this.maxDelayMillis = Math.max(1, maxDelayMillis);
+    this.random = new Random(seed);
+  }
+
+  @Override
+  public void send(DatagramPacket packet) throws IOException {
+    boolean drop;
+    boolean twice;
+    int delay;
+    synchronized (random) {
+      drop = random.nextDouble() < loss;
+      twice = random.nextDouble() < duplicate;
+      delay = random.nextDouble() < reorder ? 1 + random.nextInt(maxDelayMillis) : 0;
+    }
+    if (drop) {
+      dropped.increment();
+      return;
+    }
+    // the caller may reuse its buffer as soon as we return
+    byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+    DatagramPacket copy = new DatagramPacket(data, data.length, packet.getSocketAddress());
+    if (delay > 0) {
+      reordered.increment();
+      delayed.schedule(() -> {
+        try {
+          LossyDatagramSocket.super.send(copy);
+        } catch (IOException e) {
+          // closed meanwhile, the packet is lost like any other
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } else {
+      super.send(copy);
+    }
+    if (twice) {
+      duplicated.increment();
+      super.send(copy);
+    }
+  }
+
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  public long getDuplicated() {
+    return duplicated.sum();
+  }
+
+  public long getReordered() {
+    return reordered.sum();
+  }
+
+  @Override
+  public void close() {
+    delayed.shutdownNow();
+    super.close();
+  }
+}
@@ -3,8 +3,12 @@ package fauxSolution.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.util.ArrayList;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 
 public class NetworkUtils {
   // https://mkyong.com/java/java-convert-byte-to-int-and-vice-versa/
@@ -18,44 +22,70 @@ public class NetworkUtils {
     return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | ((bytes[3] & 0xFF) << 0);
   }
 
-  /* packet (1024 max)
+  /** Largest UDP payload over IPv4 */
+  public static final int MAX_PACKET_SIZE = 65507;
+  public static final int DEFAULT_PACKET_SIZE = 1024;
+  /** Refused by Receive, a broken packet must not make us allocate gigabytes */
+  public static final int MAX_MESSAGE = 64 * 1024 * 1024;
+  private static final int HEADER = 12;
+
+  /**
+   * Largest packet that leaves through the interface towards destination
+   * without being fragmented by IP: its MTU less the IP and UDP headers.
+   * Routers further on may have a smaller MTU, which Java cannot find out,
+   * so across the internet 1472 or less is safer.
+   */
+  public static int packetSizeFor(InetAddress destination) throws IOException {
+    try (DatagramSocket probe = new DatagramSocket()) {
+      // connecting a datagram socket sends nothing, it only picks the route
+      probe.connect(destination, 9);
+      NetworkInterface nic = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+      int mtu = nic == null || nic.getMTU() <= 0 ? 576 : nic.getMTU();
+      int headers = (destination instanceof Inet6Address ? 40 : 20) + 8;
+      return Math.min(MAX_PACKET_SIZE, mtu - headers);
+    }
+  }
+
+  /* packet (packetSize max, 1024 unless given)
    * [ 
    *   totalPackets(4-byte int), 
    *   currentPacket#(4-byte int), 
    *   payloadLength(4-byte int),
    *   payload(byte[])
    * ]
+   * Nothing is resent: a lost packet makes Receive wait forever. Server and
+   * Client use ReliableTransport.
    */
   public static void Send(DatagramSocket sock, InetAddress addr, int port, byte... bytes) throws IOException {
-    int maxBufferLength = 1024 - 12;
-    int packetsTotal = bytes.length / maxBufferLength + 1;
-    
-    int offset = 0;
-    int packetNum = 0;
-    while (offset < bytes.length) {
-      int bytesLeftToSend = bytes.length - offset;
-      int length = Math.min(maxBufferLength, bytesLeftToSend);
-      
-      byte[] totalBytes = NetworkUtils.intToBytes(packetsTotal);
-      byte[] currentBytes = NetworkUtils.intToBytes(packetNum);
-      byte[] lengthBytes = NetworkUtils.intToBytes(length);
-     
-      byte[] buffer = new byte[12 + length];
-      System.arraycopy(totalBytes, 0, buffer, 0, 4);
-      System.arraycopy(currentBytes, 0, buffer, 4, 4);
-      System.arraycopy(lengthBytes, 0, buffer, 8, 4);
-      System.arraycopy(bytes, offset, buffer, 12, length);
-      
-      DatagramPacket packet = new DatagramPacket(buffer, buffer.length, addr, port);
+    Send(sock, addr, port, DEFAULT_PACKET_SIZE, bytes);
+  }
+
+  public static void Send(DatagramSocket sock, InetAddress addr, int port, int packetSize, byte[] bytes)
+      throws IOException {
+    int maxBufferLength = packetSize - HEADER;
+    int packetsTotal = Math.max(1, (bytes.length + maxBufferLength - 1) / maxBufferLength);
+
+    // one buffer for all packets, the header is written in place
+    byte[] buffer = new byte[Math.min(packetSize, HEADER + bytes.length)];
+    ByteBuffer header = ByteBuffer.wrap(buffer);
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length, addr, port);
+    for (int packetNum = 0; packetNum < packetsTotal; packetNum++) {
+      int offset = packetNum * maxBufferLength;
+      int length = Math.min(maxBufferLength, bytes.length - offset);
+      header.clear();
+      header.putInt(packetsTotal).putInt(packetNum).putInt(length);
+      System.arraycopy(bytes, offset, buffer, HEADER, length);
+      packet.setLength(HEADER + length);
       sock.send(packet);
-      
-      packetNum++;
-      offset += length;
     }
   }
 
+  /**
+   * View of a received packet: the header is read in place and the payload
+   * stays in the receive buffer until copyPayload puts it where it belongs.
+   */
   static class Packet {
-    /* packet (1024 max)
+    /* packet
      * [ 
      *   totalPackets(4-byte int), 
      *   currentPacket#(4-byte int), 
@@ -67,26 +97,37 @@ public class NetworkUtils {
     public final int Total;
     public final int Current;
     public final int Length;
-    public final byte[] Payload;
     
-    public Packet(DatagramPacket packet) {
+    public Packet(DatagramPacket packet) throws IOException {
       Packet = packet;
-      
-      byte[] totalBytes = new byte[4];
-      System.arraycopy(packet.getData(), 0, totalBytes, 0, 4);
-      Total = NetworkUtils.bytesToInt(totalBytes);
-      
-      byte[] currentBytes = new byte[4];
-      System.arraycopy(packet.getData(), 4, currentBytes, 0, 4);
-      Current = NetworkUtils.bytesToInt(currentBytes);
-      
-      byte[] lengthBytes = new byte[4];
-      System.arraycopy(packet.getData(), 8, lengthBytes, 0, 4);
-      Length = NetworkUtils.bytesToInt(lengthBytes);
-      
-      int payloadLength = packet.getLength() - 12;
-      Payload = new byte[payloadLength];
-      System.arraycopy(packet.getData(), 12, Payload, 0, payloadLength);
+      if (packet.getLength() < HEADER) {
+        throw new IOException("Packet too short: " + packet.getLength() + " bytes");
+      }
+      ByteBuffer header = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+      Total = header.getInt();
+      Current = header.getInt();
+      Length = header.getInt();
+      if (Length < 0 || Length > header.remaining()) {
+        throw new IOException("Invalid payload length: " + Length);
+      }
+    }
+
+    /**
+     * @return whether this is one of total packets of maxBufferLength
+     *     payload bytes each, the last one shorter but not empty
+     */
+    public boolean fits(int total, int maxBufferLength) {
+      if (Current < 0 || Current >= total) {
+        return false;
+      }
+      if (Current < total - 1) {
+        return Length == maxBufferLength;
+      }
+      return Length <= maxBufferLength && (Length > 0 || total == 1);
+    }
+
+    public void copyPayload(byte[] dest, int offset) {
+      System.arraycopy(Packet.getData(), Packet.getOffset() + HEADER, dest, offset, Length);
     }
   }
   
@@ -101,33 +142,58 @@ public class NetworkUtils {
       Payload = payload;
     }
   }
-  
-  private static Packet Read(DatagramSocket sock, int length) throws IOException {
-    byte[] buff = new byte[length];
-    DatagramPacket request = new DatagramPacket(buff, length);
-    sock.receive(request);
-    return new Packet(request);
-  }
  
-  // reading in all the packets and adding them to "packets"
-  // collecting packets as long as the size of the packets is smaller then the total ones we are supposed to receice
   public static Tuple Receive(DatagramSocket sock) throws IOException {
-    ArrayList<Packet> packets = new ArrayList<Packet>();
+    return Receive(sock, DEFAULT_PACKET_SIZE);
+  }
+
+  // reading in all the packets of one message, each payload is copied from the one receive buffer
+  // straight to its place in the message; duplicates and packets of other senders are skipped.
+  // Broken packets are dropped before anything is copied or allocated for them.
+  // The sender must use the same packet size.
+  public static Tuple Receive(DatagramSocket sock, int packetSize) throws IOException {
+    byte[] buff = new byte[packetSize];
+    DatagramPacket datagram = new DatagramPacket(buff, buff.length);
+    int maxBufferLength = packetSize - HEADER;
+
+    byte[] buffer = null;
+    BitSet received = null;
+    InetAddress address = null;
+    int port = 0;
+    int total = 0;
+    int count = 0;
+    int length = 0;
     do {
-      packets.add(Read(sock, 1024));
-    } while (packets.size() > 0 && packets.size() < packets.get(0).Total);
-    
-    packets.sort((p1, p2) -> p1.Current - p2.Current); // sorting the packages by package number
-    int totalBufferLength = packets.stream().mapToInt((p)->p.Length).sum(); // summing up how long the payload is
-    byte[] buffer = new byte[totalBufferLength]; // creating big enough buffer
-    int offset = 0;
-    
-    // interating through all packets, adding the paylod of each package to the buffer, make sure offset is used to not overwrite things
-    for(var p : packets) {
-      System.arraycopy(p.Payload, 0, buffer, offset, p.Length);
-      offset += p.Length;
-    }
-    DatagramPacket first = packets.get(0).Packet;
-    return new Tuple(first.getAddress(), first.getPort(), buffer);
+      datagram.setLength(buff.length);
+      sock.receive(datagram);
+      Packet p;
+      try {
+        p = new Packet(datagram);
+      } catch (IOException e) {
+        continue;
+      }
+      if (buffer == null) {
+        if (p.Total < 1 || (long) p.Total * maxBufferLength > MAX_MESSAGE || !p.fits(p.Total, maxBufferLength)) {
+          continue;
+        }
+        total = p.Total;
+        // all but the last packet are full, the buffer is trimmed once at the end
+        buffer = new byte[total * maxBufferLength];
+        received = new BitSet(total);
+        address = datagram.getAddress();
+        port = datagram.getPort();
+      } else if (p.Total != total || datagram.getPort() != port || !datagram.getAddress().equals(address)) {
+        continue;
+      }
+      if (!p.fits(total, maxBufferLength) || received.get(p.Current)) {
+        continue;
+      }
+      received.set(p.Current);
+      p.copyPayload(buffer, p.Current * maxBufferLength);
+      length += p.Length;
+      count++;
+    } while (buffer == null || count < total);
+
+    return new Tuple(address, port, length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
   }
 }
@@ -0,0 +1,413 @@
+package fauxSolution.udp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Messages being put together from their fragments, one per sender address,
+ * port and message id, so fragments of messages from different clients, or
+ * of two messages of one client, never end up in the same message.
+ *
+ * The length a sender announces is not trusted with memory: a single
+ * forged packet must not make us allocate 64 MB. A message is put together
+ * in an array that grows as its fragments arrive, to at most twice the
+ * bytes received so far; fragments are copied from the receive buffer
+ * straight to their place there. A fragment too far ahead for that is kept
+ * in an array of its own until the message array has grown to it.
+ * Fragment lengths must agree with each other and with the announced
+ * length: all but the last have the same length, and the last one ends the
+ * message exactly.
+ *
+ * Memory is limited in two ways. Every byte allocated for a message is
+ * reserved first, and a fragment is refused while its bytes do not fit
+ * into maxBytes overall or into maxBytesPerSender for its sender; it is
+ * then dropped without an ACK and the sender tries again later. A complete
+ * message keeps its bytes reserved until release is called for it, so
+ * messages nobody takes out hold back new ones. A message that got no
+ * fragment for the timeout is dropped by expire.
+ *
+ * Only one thread may use a table, except for release, which any thread
+ * may call.
+ */
+public class ReassemblyTable {
+  /** Finished messages remembered so late duplicates are recognised */
+  private static final int COMPLETED_REMEMBERED = 4096;
+
+  /**
+   * Identifies a message: who sent it and its id at that sender.
+   */
+  public static final class Key {
+    private final InetAddress address;
+    private final int port;
+    private final int messageId;
+
+    public Key(InetAddress address, int port, int messageId) {
+      this.address = address;
+      this.port = port;
+      this.messageId = messageId;
+    }
+
+    InetSocketAddress sender() {
+      return new InetSocketAddress(address, port);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return messageId == key.messageId && port == key.port && address.equals(key.address);
+    }
+
+    @Override
+    public int hashCode() {
+      return (31 * address.hashCode() + port) * 31 + messageId;
+    }
+
+    @Override
+    public String toString() {
+      return address.getHostAddress() + ":" + port + "#" + messageId;
+    }
+  }
+
+  /**
+   * Fragments of one message received so far.
+   */
+  public static final class Message {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Key key;
+    private final int total;
+    /** Length the sender announced */
+    private final int length;
+    /** The message from its first byte on, grown as fragments arrive */
+    private byte[] bytes = EMPTY;
+    /** Fragments beyond what bytes could grow to when they arrived */
+    private Map<Integer, byte[]> ahead;
+    private final BitSet received = new BitSet();
+    /** Length of all fragments but the last, -1 until one of them arrived */
+    private int fragmentSize = -1;
+    /** Length of the last fragment, -1 until it arrived */
+    private int lastSize = -1;
+    private long receivedBytes = 0;
+    /** Bytes reserved for bytes and ahead */
+    private long reserved = 0;
+    private int count = 0;
+    private int allBelow = 0;
+    private long lastFragment;
+    /** Missing fragments below this were NACKed already */
+    int nackedBelow = 0;
+
+    private Message(Key key, int total, int length, long now) {
+      this.key = key;
+      this.total = total;
+      this.length = length;
+      this.lastFragment = now;
+    }
+
+    /**
+     * @return true if a fragment of size bytes at this index agrees with
+     *     the announced length and the fragments received so far
+     */
+    private boolean fits(int fragment, int size) {
+      if (fragment < 0 || fragment >= total) {
+        return false;
+      }
+      int fullSize = fragmentSize;
+      int last = lastSize;
+      if (fragment == total - 1) {
+        if (size == 0 && length > 0 || size > length || total == 1 && size != length) {
+          return false;
+        }
+        last = size;
+      } else {
+        if (size == 0 || fullSize >= 0 && size != fullSize) {
+          return false;
+        }
+        fullSize = size;
+      }
+      // the fragments before the last leave it at least one byte
+      if (fullSize >= 0 && (long) (total - 1) * fullSize >= length) {
+        return false;
+      }
+      return fullSize < 0 || last < 0 || (long) (total - 1) * fullSize + last == length;
+    }
+
+    private int offsetOf(int fragment, int size) {
+      return fragment == total - 1 ? length - size : fragment * fragmentSize;
+    }
+
+    public int getTotal() {
+      return total;
+    }
+
+    public boolean has(int fragment) {
+      return received.get(fragment);
+    }
+
+    public BitSet getReceived() {
+      return received;
+    }
+
+    /**
+     * @return number of fragments from 0 on that all arrived
+     */
+    public int getAllBelow() {
+      return allBelow;
+    }
+
+    public boolean isComplete() {
+      return count == total;
+    }
+  }
+
+  private final long maxBytes;
+  private final long maxBytesPerSender;
+  private final long timeoutNanos;
+  private final Map<Key, Message> incoming = new HashMap<>();
+  private final Map<Key, Boolean> completed = new LinkedHashMap<Key, Boolean>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+      return size() > COMPLETED_REMEMBERED;
+    }
+  };
+  private final AtomicLong reservedBytes = new AtomicLong();
+  private final Map<InetSocketAddress, Long> reservedBySender = new ConcurrentHashMap<>();
+
+  private final LongAdder refused = new LongAdder();
+  private final LongAdder expired = new LongAdder();
+
+  /**
+   * @param maxBytes most bytes reserved for all messages
+   * @param maxBytesPerSender most bytes reserved for the messages of one sender
+   * @param timeoutNanos how long a message may go without a new fragment
+   */
+  public ReassemblyTable(long maxBytes, long maxBytesPerSender, long timeoutNanos) {
+    this.maxBytes = maxBytes;
+    this.maxBytesPerSender = maxBytesPerSender;
+    this.timeoutNanos = timeoutNanos;
+  }
+
+  /**
+   * @return true if the message was completed recently
+   */
+  public boolean isCompleted(Key key) {
+    return completed.containsKey(key);
+  }
+
+  /**
+   * Finds a message or starts it.
+   * @param total number of fragments the message has
+   * @param length bytes in the whole message
+   * @return the message, or null if the sender contradicts itself about
+   *     the number of fragments or the length
+   */
+  public Message open(Key key, int total, int length, long now) {
+    Message message = incoming.get(key);
+    if (message != null) {
+      return message.total == total && message.length == length ? message : null;
+    }
+    // nothing is allocated or reserved before fragments arrive
+    message = new Message(key, total, length, now);
+    incoming.put(key, message);
+    return message;
+  }
+
+  /**
+   * Copies the remaining bytes of payload into the message as the given
+   * fragment. All fragments but the last must have the same length, the
+   * last ends the message.
+   * @return false if it is a duplicate, does not fit the message or there
+   *     is no room for it
+   */
+  public boolean add(Message message, int fragment, ByteBuffer payload, long now) {
+    if (message.received.get(fragment)) {
+      message.lastFragment = now;
+      return false;
+    }
+    int size = payload.remaining();
+    if (!message.fits(fragment, size)) {
+      return false;
+    }
+    if (fragment == message.total - 1) {
+      message.lastSize = size;
+    } else {
+      message.fragmentSize = size;
+    }
+    int offset = message.offsetOf(fragment, size);
+    int end = offset + size;
+    if (end > message.bytes.length) {
+      // grow in doublings, but never past twice what has arrived
+      int capacity = (int) Math.min(message.length, Math.max(end, 2L * message.bytes.length));
+      if (capacity <= 2 * (message.receivedBytes + size)) {
+        if (!grow(message, capacity)) {
+          return false;
+        }
+      } else {
+        if (!reserve(message, size)) {
+          return false;
+        }
+        byte[] part = new byte[size];
+        payload.get(part);
+        if (message.ahead == null) {
+          message.ahead = new HashMap<>();
+        }
+        message.ahead.put(fragment, part);
+      }
+    }
+    if (payload.hasRemaining()) {
+      payload.get(message.bytes, offset, size);
+    }
+    message.receivedBytes += size;
+    message.lastFragment = now;
+    message.received.set(fragment);
+    message.count++;
+    while (message.allBelow < message.total && message.received.get(message.allBelow)) {
+      message.allBelow++;
+    }
+    return true;
+  }
+
+  /**
+   * Makes the array of a message capacity bytes long and moves the
+   * fragments kept aside that now fit into it.
+   * @return false if there is no room
+   */
+  private boolean grow(Message message, int capacity) {
+    if (!reserve(message, capacity - message.bytes.length)) {
+      return false;
+    }
+    message.bytes = Arrays.copyOf(message.bytes, capacity);
+    if (message.ahead != null) {
+      for (Iterator<Map.Entry<Integer, byte[]>> it = message.ahead.entrySet().iterator(); it.hasNext();) {
+        Map.Entry<Integer, byte[]> part = it.next();
+        int offset = message.offsetOf(part.getKey(), part.getValue().length);
+        if (offset + part.getValue().length <= capacity) {
+          System.arraycopy(part.getValue(), 0, message.bytes, offset, part.getValue().length);
+          unreserve(message, part.getValue().length);
+          it.remove();
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean reserve(Message message, long size) {
+    if (!reserve(message.key.sender(), size)) {
+      refused.increment();
+      return false;
+    }
+    message.reserved += size;
+    return true;
+  }
+
+  private void unreserve(Message message, long size) {
+    unreserve(message.key.sender(), size);
+    message.reserved -= size;
+  }
+
+  /**
+   * Takes a complete message out of the table. Its bytes stay reserved
+   * until release is called with the returned tuple.
+   */
+  public NetworkUtils.Tuple complete(Message message) {
+    incoming.remove(message.key);
+    if (message.bytes.length < message.length) {
+      // everything arrived, so what is reserved covers the whole message
+      byte[] bytes = Arrays.copyOf(message.bytes, message.length);
+      for (Map.Entry<Integer, byte[]> part : message.ahead.entrySet()) {
+        System.arraycopy(part.getValue(), 0, bytes, message.offsetOf(part.getKey(), part.getValue().length),
+            part.getValue().length);
+      }
+      message.bytes = bytes;
+      message.ahead = null;
+    }
+    // the message keeps exactly its length reserved until release
+    unreserve(message, message.reserved - message.length);
+    completed.put(message.key, Boolean.TRUE);
+    return new NetworkUtils.Tuple(message.key.address, message.key.port, message.bytes);
+  }
+
+  /**
+   * Frees the bytes of a completed message once it has been taken out.
+   */
+  public void release(NetworkUtils.Tuple message) {
+    unreserve(new InetSocketAddress(message.Address, message.Port), message.Payload.length);
+  }
+
+  /**
+   * Drops messages that got no fragment for the timeout.
+   * @return number of messages dropped
+   */
+  public int expire(long now) {
+    int count = 0;
+    for (Iterator<Message> it = incoming.values().iterator(); it.hasNext();) {
+      Message message = it.next();
+      if (now - message.lastFragment > timeoutNanos) {
+        it.remove();
+        unreserve(message.key.sender(), message.reserved);
+        count++;
+      }
+    }
+    expired.add(count);
+    return count;
+  }
+
+  private boolean reserve(InetSocketAddress sender, long size) {
+    if (reservedBytes.addAndGet(size) > maxBytes) {
+      reservedBytes.addAndGet(-size);
+      return false;
+    }
+    boolean[] fits = { true };
+    reservedBySender.compute(sender, (key, reserved) -> {
+      long sum = (reserved == null ? 0 : reserved) + size;
+      fits[0] = sum <= maxBytesPerSender;
+      return fits[0] ? sum : reserved;
+    });
+    if (!fits[0]) {
+      reservedBytes.addAndGet(-size);
+    }
+    return fits[0];
+  }
+
+  private void unreserve(InetSocketAddress sender, long size) {
+    reservedBytes.addAndGet(-size);
+    reservedBySender.computeIfPresent(sender, (key, reserved) -> reserved - size == 0 ? null : reserved - size);
+  }
+
+  /**
+   * @return messages being put together
+   */
+  public int size() {
+    return incoming.size();
+  }
+
+  public long getReservedBytes() {
+    return reservedBytes.get();
+  }
+
+  /**
+   * @return fragments dropped because their message did not fit
+   */
+  public long getRefused() {
+    return refused.sum();
+  }
+
+  /**
+   * @return messages dropped by expire
+   */
+  public long getExpired() {
+    return expired.sum();
+  }
+}
@@ -0,0 +1,556 @@
+package fauxSolution.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reliable messages over UDP with selective repeat.
+ *
+ * A message is cut into numbered fragments. The receiver acknowledges
+ * every fragment it gets (ACK, with the number below which it has them all)
+ * and asks again for fragments that are missing while NACK_THRESHOLD later
+ * ones already arrived (NACK), so a lost fragment is sent again without
+ * waiting for its timer and without sending the ones that did arrive. The
+ * sender also takes a fragment as lost once one sent noticeably later is
+ * acknowledged, which catches lost retransmissions and lost NACKs.
+ * Duplicates are recognised by their number and dropped.
+ *
+ * The sender keeps at most a congestion window of fragments unacknowledged.
+ * The window starts small, doubles every round trip (slow start) up to a
+ * threshold and then grows by one fragment per round trip; a NACK halves
+ * it and a timeout drops it back to one fragment. Round trip times are
+ * measured from fragments that were only sent once (Karn) and smoothed the
+ * way TCP does it, the retransmission timeout is the smoothed time plus
+ * four deviations and doubles with every timeout in a row. Window and
+ * timers are kept per peer, so the next message starts where the last
+ * one ended.
+ *
+ * One thread receives everything: fragments of incoming messages, which
+ * are put together and handed out by receive(), and ACKs and NACKs, which
+ * go to the send() waiting for them.
+ *
+ * Packets are at most packetSize bytes, DEFAULT_PACKET_SIZE unless set;
+ * NetworkUtils.packetSizeFor gives the largest size that is not fragmented
+ * by IP on the first hop. Fragments of a message except the last have the
+ * same length and the message length is in every one, so the receiver
+ * knows where each fragment goes in the message before all arrived and
+ * copies it there directly from the one buffer it receives into. Packets
+ * of any size are accepted, the two ends need not agree on one.
+ *
+ * packets
+ *   DATA [ type=1, messageId(4), fragment(4), fragments(4), messageLength(4), payload ]
+ *   ACK  [ type=2, messageId(4), fragment(4), allBelow(4) ]
+ *   NACK [ type=3, messageId(4), count(2), fragment(4) * count ]
+ */
+public class ReliableTransport implements AutoCloseable {
+  public static final int DEFAULT_PACKET_SIZE = 1024;
+  /** Smallest packet size, a NACK must have room for a few fragments */
+  public static final int MIN_PACKET_SIZE = 64;
+  public static final int MAX_MESSAGE = 64 * 1024 * 1024;
+
+  private static final byte DATA = 1;
+  private static final byte ACK = 2;
+  private static final byte NACK = 3;
+  private static final int DATA_HEADER = 17;
+  private static final int NACK_HEADER = 7;
+
+  /** Fragments that must arrive after a missing one before it is NACKed, as reordering is common */
+  private static final int NACK_THRESHOLD = 3;
+
+  /** How much earlier than an acknowledged fragment one must have been sent to count as lost */
+  private static final long MIN_REORDER = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static final int INITIAL_WINDOW = 4;
+  private static final int MAX_WINDOW = 1024;
+  /** The window is also kept below this many bytes, which matters for large packets */
+  private static final int MAX_WINDOW_BYTES = 4 * 1024 * 1024;
+  private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+  private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(3);
+  /** Timeouts in a row without any ACK before send gives up */
+  private static final int MAX_TIMEOUTS = 8;
+  /** Incoming messages may hold this many bytes in all and per sender, see ReassemblyTable */
+  public static final long MAX_BUFFERED = 256L * 1024 * 1024;
+  public static final long MAX_BUFFERED_PER_SENDER = 2L * MAX_MESSAGE;
+  /** An incoming message is dropped after this long without a fragment */
+  public static final long REASSEMBLY_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+  private static final int SWEEP_MILLIS = 1000;
+
+  // fragment states on the sending side
+  private static final byte UNSENT = 0;
+  private static final byte IN_FLIGHT = 1;
+  private static final byte LOST = 2;
+  private static final byte ACKED = 3;
+
+  private final DatagramSocket sock;
+  private final int packetSize;
+  private final int payloadSize;
+  private final int maxWindow;
+  private final AtomicInteger nextMessageId = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+  private final Map<Integer, BlockingQueue<int[]>> sending = new ConcurrentHashMap<>();
+  private final Map<InetSocketAddress, Peer> peers = new ConcurrentHashMap<>();
+  private final BlockingQueue<NetworkUtils.Tuple> delivered = new LinkedBlockingQueue<>();
+
+  // used by the receiver thread only, except for release
+  private final ReassemblyTable incoming;
+
+  private final LongAdder packetsSent = new LongAdder();
+  private final LongAdder retransmissions = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+
+  /**
+   * Congestion window and round trip estimate for one peer.
+   */
+  private static class Peer {
+    private final int maxWindow;
+    private double window = INITIAL_WINDOW;
+    private double threshold;
+    private long smoothedRtt = -1;
+    private long rttDeviation;
+    private long rto = INITIAL_RTO;
+
+    Peer(int maxWindow) {
+      this.maxWindow = maxWindow;
+      this.threshold = maxWindow;
+    }
+
+    int window() {
+      return (int) Math.max(1, Math.min(window, maxWindow));
+    }
+
+    void sample(long rtt) {
+      if (smoothedRtt < 0) {
+        smoothedRtt = rtt;
+        rttDeviation = rtt / 2;
+      } else {
+        rttDeviation = (3 * rttDeviation + Math.abs(smoothedRtt - rtt)) / 4;
+        smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+      }
+      rto = Math.max(MIN_RTO, Math.min(MAX_RTO, smoothedRtt + 4 * rttDeviation));
+    }
+
+    void acked() {
+      window += window < threshold ? 1 : 1 / window;
+      window = Math.min(window, maxWindow);
+    }
+
+    void lost() {
+      threshold = Math.max(window / 2, 2);
+      window = threshold;
+    }
+
+    void timedOut() {
+      threshold = Math.max(window / 2, 2);
+      window = 1;
+      rto = Math.min(rto * 2, MAX_RTO);
+    }
+  }
+
+  /**
+   * @param sock the socket to use, its receive timeout is changed
+   */
+  public ReliableTransport(DatagramSocket sock) throws SocketException {
+    this(sock, DEFAULT_PACKET_SIZE);
+  }
+
+  /**
+   * @param sock the socket to use, its receive timeout is changed
+   * @param packetSize largest packet sent, see NetworkUtils.packetSizeFor
+   */
+  public ReliableTransport(DatagramSocket sock, int packetSize) throws SocketException {
+    this(sock, packetSize, new ReassemblyTable(MAX_BUFFERED, MAX_BUFFERED_PER_SENDER, REASSEMBLY_TIMEOUT));
+  }
+
+  /**
+   * @param sock the socket to use, its receive timeout is changed
+   * @param packetSize largest packet sent, see NetworkUtils.packetSizeFor
+   * @param incoming where incoming messages are put together, not shared
+   *     with another transport
+   */
+  public ReliableTransport(DatagramSocket sock, int packetSize, ReassemblyTable incoming) throws SocketException {
+    if (packetSize < MIN_PACKET_SIZE || packetSize > NetworkUtils.MAX_PACKET_SIZE) {
+      throw new IllegalArgumentException("Packet size must be between " + MIN_PACKET_SIZE + " and "
+          + NetworkUtils.MAX_PACKET_SIZE + ": " + packetSize);
+    }
+    this.sock = sock;
+    this.packetSize = packetSize;
+    this.payloadSize = packetSize - DATA_HEADER;
+    this.maxWindow = Math.max(INITIAL_WINDOW, Math.min(MAX_WINDOW, MAX_WINDOW_BYTES / packetSize));
+    this.incoming = incoming;
+    // wake up now and then to drop messages that stopped arriving
+    sock.setSoTimeout(SWEEP_MILLIS);
+    // a whole window may arrive at once
+    sock.setReceiveBufferSize(4 * 1024 * 1024);
+    Thread receiver = new Thread(this::receiveLoop, "udp-receiver");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  public DatagramSocket getSocket() {
+    return sock;
+  }
+
+  public int getPacketSize() {
+    return packetSize;
+  }
+
+  /**
+   * Sends a message and waits until the peer has all of it.
+   * @throws IOException if the peer stops answering
+   */
+  public void send(InetAddress address, int port, byte... bytes) throws IOException {
+    if (bytes.length > MAX_MESSAGE) {
+      throw new IOException("Message too large: " + bytes.length + " bytes");
+    }
+    int messageId = nextMessageId.getAndIncrement();
+    BlockingQueue<int[]> events = new LinkedBlockingQueue<>();
+    sending.put(messageId, events);
+    Peer peer = peers.computeIfAbsent(new InetSocketAddress(address, port), key -> new Peer(maxWindow));
+    try {
+      // one message per peer at a time, they share its window
+      synchronized (peer) {
+        transfer(address, port, messageId, bytes, peer, events);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while sending", e);
+    } finally {
+      sending.remove(messageId);
+    }
+  }
+
+  /**
+   * Waits for the next complete message. Messages from all senders arrive
+   * here in the order they were completed, any number of threads may wait.
+   */
+  public NetworkUtils.Tuple receive() throws IOException {
+    try {
+      NetworkUtils.Tuple message = delivered.take();
+      incoming.release(message);
+      return message;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while receiving", e);
+    }
+  }
+
+  private void transfer(InetAddress address, int port, int messageId, byte[] bytes, Peer peer,
+      BlockingQueue<int[]> events) throws IOException, InterruptedException {
+    int total = Math.max(1, (bytes.length + payloadSize - 1) / payloadSize);
+    byte[] state = new byte[total];
+    long[] sentAt = new long[total];
+    boolean[] resent = new boolean[total];
+    // fragments in the order they were sent, the head has the oldest timer
+    ArrayDeque<long[]> flight = new ArrayDeque<>();
+    ArrayDeque<Integer> lost = new ArrayDeque<>();
+    int next = 0;
+    int inFlight = 0;
+    int acked = 0;
+    int allBelow = 0;
+    // losses of fragments sent before this are part of the last loss event
+    long recoverySince = Long.MIN_VALUE;
+    long newestAckedSend = Long.MIN_VALUE;
+    int timeoutsInARow = 0;
+    // one buffer for all packets, only the payload is copied into it
+    byte[] buffer = new byte[Math.min(packetSize, DATA_HEADER + bytes.length)];
+    ByteBuffer header = ByteBuffer.wrap(buffer);
+    header.put(DATA).putInt(messageId).putInt(0).putInt(total).putInt(bytes.length);
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, port);
+
+    while (acked < total) {
+      // fill the window, fragments known to be lost first
+      while (inFlight < peer.window()) {
+        int fragment;
+        if (!lost.isEmpty()) {
+          fragment = lost.poll();
+          if (state[fragment] != LOST) {
+            continue;
+          }
+          resent[fragment] = true;
+          retransmissions.increment();
+        } else if (next < total) {
+          fragment = next++;
+        } else {
+          break;
+        }
+        int offset = fragment * payloadSize;
+        int length = Math.min(payloadSize, bytes.length - offset);
+        header.putInt(5, fragment);
+        System.arraycopy(bytes, offset, buffer, DATA_HEADER, length);
+        packet.setLength(DATA_HEADER + length);
+        sock.send(packet);
+        packetsSent.increment();
+        state[fragment] = IN_FLIGHT;
+        sentAt[fragment] = System.nanoTime();
+        flight.add(new long[] { fragment, sentAt[fragment] });
+        inFlight++;
+      }
+
+      // drop timers of fragments that were acknowledged or sent again since
+      while (!flight.isEmpty() && (state[(int) flight.peek()[0]] != IN_FLIGHT
+          || sentAt[(int) flight.peek()[0]] != flight.peek()[1])) {
+        flight.poll();
+      }
+      long now = System.nanoTime();
+      long wait = flight.isEmpty() ? peer.rto : flight.peek()[1] + peer.rto - now;
+
+      int[] event = wait > 0 ? events.poll(wait, TimeUnit.NANOSECONDS) : events.poll();
+      if (event == null) {
+        if (flight.isEmpty() || flight.peek()[1] + peer.rto > System.nanoTime()) {
+          continue;
+        }
+        // the oldest fragment timed out: assume everything in flight is lost
+        timeouts.increment();
+        if (++timeoutsInARow > MAX_TIMEOUTS) {
+          throw new IOException("No answer from " + address + ":" + port);
+        }
+        peer.timedOut();
+        for (long[] entry : flight) {
+          int fragment = (int) entry[0];
+          if (state[fragment] == IN_FLIGHT && sentAt[fragment] == entry[1]) {
+            state[fragment] = LOST;
+            lost.add(fragment);
+          }
+        }
+        flight.clear();
+        inFlight = 0;
+        recoverySince = System.nanoTime();
+        continue;
+      }
+
+      for (; event != null; event = events.poll()) {
+        now = System.nanoTime();
+        if (event[0] == ACK) {
+          timeoutsInARow = 0;
+          int fragment = event[1];
+          if (fragment >= 0 && fragment < total && state[fragment] != ACKED) {
+            if (state[fragment] == IN_FLIGHT) {
+              inFlight--;
+            }
+            if (!resent[fragment]) {
+              peer.sample(now - sentAt[fragment]);
+            }
+            newestAckedSend = Math.max(newestAckedSend, sentAt[fragment]);
+            state[fragment] = ACKED;
+            acked++;
+            peer.acked();
+          }
+          // everything below allBelow arrived even if its own ACK got lost
+          for (int below = Math.min(event[2], total); allBelow < below; allBelow++) {
+            if (state[allBelow] != ACKED) {
+              if (state[allBelow] == IN_FLIGHT) {
+                inFlight--;
+              }
+              state[allBelow] = ACKED;
+              acked++;
+              peer.acked();
+            }
+          }
+        } else if (event[0] == NACK) {
+          for (int i = 1; i < event.length; i++) {
+            int fragment = event[i];
+            // a fragment sent again is left to its timer, the NACK may be older than it
+            if (fragment >= 0 && fragment < total && state[fragment] == IN_FLIGHT && !resent[fragment]) {
+              state[fragment] = LOST;
+              inFlight--;
+              lost.add(fragment);
+              // halve the window once per loss event, not once per lost fragment
+              if (sentAt[fragment] > recoverySince) {
+                peer.lost();
+                recoverySince = now;
+              }
+            }
+          }
+        }
+      }
+
+      // a fragment sent a while before one that was acknowledged is lost as
+      // well; this also finds lost retransmissions, which are never NACKed
+      long lostBefore = newestAckedSend - Math.max(MIN_REORDER, peer.smoothedRtt / 4);
+      while (newestAckedSend != Long.MIN_VALUE && !flight.isEmpty()) {
+        long[] oldest = flight.peek();
+        int fragment = (int) oldest[0];
+        if (state[fragment] == IN_FLIGHT && sentAt[fragment] == oldest[1]) {
+          if (oldest[1] >= lostBefore) {
+            break;
+          }
+          state[fragment] = LOST;
+          inFlight--;
+          lost.add(fragment);
+          if (oldest[1] > recoverySince) {
+            peer.lost();
+            recoverySince = System.nanoTime();
+          }
+        }
+        flight.poll();
+      }
+    }
+  }
+
+  /**
+   * Runs on the receiver thread until the socket is closed.
+   */
+  private void receiveLoop() {
+    // large enough for packets of any size the peer chose
+    byte[] buffer = new byte[NetworkUtils.MAX_PACKET_SIZE];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    long nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWEEP_MILLIS);
+    while (!sock.isClosed()) {
+      try {
+        if (System.nanoTime() - nextSweep > 0) {
+          incoming.expire(System.nanoTime());
+          nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWEEP_MILLIS);
+        }
+        packet.setLength(buffer.length);
+        sock.receive(packet);
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, packet.getLength());
+        if (data.remaining() < 5) {
+          continue;
+        }
+        byte type = data.get();
+        int messageId = data.getInt();
+        if (type == DATA && data.remaining() >= 12) {
+          onData(packet.getAddress(), packet.getPort(), messageId, data);
+        } else if (type == ACK && data.remaining() >= 8) {
+          BlockingQueue<int[]> events = sending.get(messageId);
+          if (events != null) {
+            events.add(new int[] { ACK, data.getInt(), data.getInt() });
+          }
+        } else if (type == NACK && data.remaining() >= 2) {
+          BlockingQueue<int[]> events = sending.get(messageId);
+          int count = Math.min(data.getShort() & 0xffff, data.remaining() / 4);
+          if (events != null) {
+            int[] event = new int[count + 1];
+            event[0] = NACK;
+            for (int i = 1; i <= count; i++) {
+              event[i] = data.getInt();
+            }
+            events.add(event);
+          }
+        }
+        // anything else, e.g. packets of NetworkUtils.Send, is ignored
+      } catch (SocketTimeoutException e) {
+        // time to sweep
+      } catch (IOException e) {
+        if (sock.isClosed()) {
+          return;
+        }
+      }
+    }
+  }
+
+  private void onData(InetAddress address, int port, int messageId, ByteBuffer data) throws IOException {
+    int fragment = data.getInt();
+    int total = data.getInt();
+    int length = data.getInt();
+    if (length < 0 || length > MAX_MESSAGE || total < 1 || total > Math.max(1, length)
+        || fragment < 0 || fragment >= total) {
+      return;
+    }
+    ReassemblyTable.Key key = new ReassemblyTable.Key(address, port, messageId);
+    if (incoming.isCompleted(key)) {
+      // our last ACK got lost, say again that we have everything
+      sendAck(address, port, messageId, fragment, total);
+      return;
+    }
+    long now = System.nanoTime();
+    ReassemblyTable.Message message = incoming.open(key, total, length, now);
+    if (message == null) {
+      // contradicts what the sender said before about the message
+      return;
+    }
+
+    if (!message.has(fragment) && !incoming.add(message, fragment, data, now)) {
+      // does not fit the message or no room, without an ACK the sender tries again later
+      return;
+    }
+    sendAck(address, port, messageId, fragment, message.getAllBelow());
+
+    // fragments NACK_THRESHOLD or more behind this one that are still missing are lost
+    int nackEnd = fragment - NACK_THRESHOLD + 1;
+    int from = Math.max(message.getAllBelow(), message.nackedBelow);
+    if (nackEnd > from) {
+      sendNack(address, port, messageId, message.getReceived(), from, nackEnd);
+      message.nackedBelow = nackEnd;
+    }
+
+    if (message.isComplete()) {
+      delivered.add(incoming.complete(message));
+    }
+  }
+
+  private void sendAck(InetAddress address, int port, int messageId, int fragment, int allBelow) throws IOException {
+    byte[] ack = ByteBuffer.allocate(13).put(ACK).putInt(messageId).putInt(fragment).putInt(allBelow).array();
+    sock.send(new DatagramPacket(ack, ack.length, address, port));
+  }
+
+  private void sendNack(InetAddress address, int port, int messageId, BitSet received, int from, int to)
+      throws IOException {
+    ByteBuffer nack = ByteBuffer.allocate(packetSize);
+    nack.put(NACK).putInt(messageId).putShort((short) 0);
+    int count = 0;
+    int maxCount = Math.min(0xffff, (packetSize - NACK_HEADER) / 4);
+    for (int fragment = received.nextClearBit(from); fragment < to && count < maxCount;
+        fragment = received.nextClearBit(fragment + 1)) {
+      nack.putInt(fragment);
+      count++;
+    }
+    if (count > 0) {
+      nack.putShort(5, (short) count);
+      sock.send(new DatagramPacket(nack.array(), nack.position(), address, port));
+    }
+  }
+
+  public long getPacketsSent() {
+    return packetsSent.sum();
+  }
+
+  public long getRetransmissions() {
+    return retransmissions.sum();
+  }
+
+  public long getTimeouts() {
+    return timeouts.sum();
+  }
+
+  public ReassemblyTable getIncoming() {
+    return incoming;
+  }
+
+  /**
+   * @return the congestion window towards a peer in fragments, 0 if unknown
+   */
+  public int getWindow(InetAddress address, int port) {
+    Peer peer = peers.get(new InetSocketAddress(address, port));
+    return peer == null ? 0 : peer.window();
+  }
+
+  /**
+   * @return the smoothed round trip time to a peer in nanoseconds, -1 if unknown
+   */
+  public long getSmoothedRtt(InetAddress address, int port) {
+    Peer peer = peers.get(new InetSocketAddress(address, port));
+    return peer == null ? -1 : peer.smoothedRtt;
+  }
+
+  @Override
+  public void close() {
+    sock.close();
+  }
+}
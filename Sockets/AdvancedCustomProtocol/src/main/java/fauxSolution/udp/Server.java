@@ -5,14 +5,22 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
 import java.util.Base64;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
 
 import org.json.*;
 
+import fauxSolution.codec.MessageCodec;
+
 public class Server {
+  /** Threads answering requests, each one waits for its answer to be acknowledged */
+  private static final int WORKERS = Runtime.getRuntime().availableProcessors() * 2;
+
   /*
    * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
    * (optional)"min": <int>, (optional)"max":<int> }
@@ -86,55 +94,67 @@ public class Server {
     return json;
   }
 
+  /**
+   * Works out the answer to one request.
+   */
+  public static JSONObject handle(byte[] request) throws IOException {
+    JSONObject message;
+    try {
+      message = JsonUtils.fromByteArray(request);
+    } catch (JSONException e) {
+      return error("Invalid message received");
+    }
+    if (!message.has("selected")) {
+      return error("Invalid message received");
+    }
+    if (!(message.get("selected") instanceof Long || message.get("selected") instanceof Integer)) {
+      return error("Selection must be an integer");
+    }
+    int choice = message.getInt("selected");
+    switch (choice) {
+    case (1):
+      return joke();
+    case (2):
+      return quote();
+    case (3):
+      return image();
+    case (4):
+      return random();
+    default:
+      return error("Invalid selection: " + choice + " is not an option");
+    }
+  }
+
   public static void main(String[] args) throws IOException {
-    DatagramSocket sock = null;
+    ReliableTransport transport = null;
+    ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
     try {
-      sock = new DatagramSocket(9000);
-      // NOTE: SINGLE-THREADED, only one connection at a time
+      // lost, duplicated and reordered packets are handled in there, and
+      // fragments of different clients are put together separately
+      int packetSize = args.length > 0 ? Integer.parseInt(args[0]) : ReliableTransport.DEFAULT_PACKET_SIZE;
+      transport = new ReliableTransport(new DatagramSocket(9000), packetSize);
+      ReliableTransport replies = transport;
+      System.out.println("Serving clients concurrently with " + WORKERS + " workers");
       while (true) {
-        try {
-          while (true) {
-            NetworkUtils.Tuple messageTuple = NetworkUtils.Receive(sock);
-            JSONObject message = JsonUtils.fromByteArray(messageTuple.Payload);
-            JSONObject returnMessage;
-            if (message.has("selected")) {
-              if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
-                int choice = message.getInt("selected");
-                switch (choice) {
-                case (1):
-                  returnMessage = joke();
-                  break;
-                case (2):
-                  returnMessage = quote();
-                  break;
-                case (3):
-                  returnMessage = image();
-                  break;
-                case (4):
-                  returnMessage = random();
-                  break;
-                default:
-                  returnMessage = error("Invalid selection: " + choice + " is not an option");
-                }
-              } else {
-                returnMessage = error("Selection must be an integer");
-              }
-            } else {
-              returnMessage = error("Invalid message received");
-            }
-
-            byte[] output = JsonUtils.toByteArray(returnMessage);
-            NetworkUtils.Send(sock, messageTuple.Address, messageTuple.Port, output);
+        NetworkUtils.Tuple messageTuple = transport.receive();
+        // a worker answers, so a large answer to one client does not hold up the others
+        workers.execute(() -> {
+          try {
+            MessageCodec codec = JsonUtils.codecOf(ByteBuffer.wrap(messageTuple.Payload));
+            byte[] output = JsonUtils.toByteArray(handle(messageTuple.Payload), codec);
+            replies.send(messageTuple.Address, messageTuple.Port, output);
+          } catch (IOException e) {
+            System.out.println("Could not answer " + messageTuple.Address + ":" + messageTuple.Port + ": "
+                + e.getMessage());
           }
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+        });
       }
     } catch (IOException e) {
       e.printStackTrace();
     } finally {
-      if (sock != null) {
-        sock.close();
+      workers.shutdown();
+      if (transport != null) {
+        transport.close();
       }
     }
   }
@@ -0,0 +1,215 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for the execution modes of SimpleWebServer.
+ *
+ * For every mode a SimpleWebServer is started in its own JVM, so its memory
+ * can be measured on its own. A number of client threads then open a
+ * connection, send a GET for index.html, read the whole answer and start
+ * over, as fast as they can. At the end the harness prints completed
+ * connections per second, the p50/p99/max time for a connection, the
+ * highest resident set size (RSS) and thread count of the server process.
+ *
+ * RSS and threads are read from /proc and are only reported on Linux.
+ *
+ * Run through
+ *   gradle LoadTest -Pmodes=thread,pool,virtual -Pclients=200 -Pseconds=10
+ */
+public class LoadTest {
+
+    private static final String REQUEST = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    private static final int WARMUP_SECONDS = 2;
+
+    public static void main(String args[]) throws Exception {
+        String[] modes = (args.length > 0 ? args[0] : "thread,pool,virtual").split(",");
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        System.out.println(clients + " clients, " + seconds + " seconds per mode");
+        System.out.printf("%-10s %12s %10s %10s %10s %10s %8s %8s%n",
+                "mode", "conn/s", "p50 ms", "p99 ms", "max ms", "RSS MB", "threads", "errors");
+        for (String mode : modes) {
+            run(mode.trim(), clients, seconds);
+        }
+    }
+
+    /**
+     * Starts a server in the given mode, loads it and prints one result line.
+     */
+    private static void run(String mode, int clients, int seconds) throws Exception {
+        int port = freePort();
+        Process server = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "SimpleWebServer", String.valueOf(port), mode)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            waitForServer(port, server);
+
+            // let the server JIT compile before we start counting
+            load(port, clients, WARMUP_SECONDS, server.pid(), new long[2]);
+
+            long[] peak = new long[2];
+            Result result = load(port, clients, seconds, server.pid(), peak);
+            long[] latencies = result.latencies;
+            Arrays.sort(latencies);
+            System.out.printf("%-10s %12.0f %10.2f %10.2f %10.2f %10s %8s %8d%n",
+                    mode,
+                    (double) latencies.length / seconds,
+                    percentile(latencies, 0.50) / 1e6,
+                    percentile(latencies, 0.99) / 1e6,
+                    latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6,
+                    peak[0] < 0 ? "n/a" : String.format("%.1f", peak[0] / 1024.0),
+                    peak[1] < 0 ? "n/a" : String.valueOf(peak[1]),
+                    result.errors);
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /** Latencies of all completed connections and the number of failed ones */
+    private static class Result {
+        long[] latencies;
+        long errors;
+    }
+
+    /**
+     * Runs the clients for the given time while sampling the server's memory.
+     *
+     * @param peak receives the highest RSS in KB and thread count seen, -1 if unknown
+     */
+    private static Result load(int port, int clients, int seconds, long pid, long[] peak)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        AtomicLong errors = new AtomicLong();
+        // filled in by each client when it is done, join() makes them visible
+        long[][] perClient = new long[clients][];
+        int[] counts = new int[clients];
+        List<Thread> threads = new ArrayList<>();
+
+        for (int c = 0; c < clients; c++) {
+            int index = c;
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                long[] mine = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    if (fetch(port, buffer)) {
+                        if (count == mine.length) {
+                            mine = Arrays.copyOf(mine, count * 2);
+                        }
+                        mine[count++] = System.nanoTime() - start;
+                    } else {
+                        errors.incrementAndGet();
+                    }
+                }
+                perClient[index] = mine;
+                counts[index] = count;
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        peak[0] = -1;
+        peak[1] = -1;
+        while (System.nanoTime() < deadline) {
+            peak[0] = Math.max(peak[0], procStatus(pid, "VmRSS:"));
+            peak[1] = Math.max(peak[1], procStatus(pid, "Threads:"));
+            Thread.sleep(100);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Result result = new Result();
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        result.latencies = new long[total];
+        int at = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(perClient[c], 0, result.latencies, at, counts[c]);
+            at += counts[c];
+        }
+        result.errors = errors.get();
+        return result;
+    }
+
+    /**
+     * One connection: send the request and read until the server closes.
+     *
+     * @return true if a response arrived
+     */
+    private static boolean fetch(int port, byte[] buffer) {
+        try (Socket sock = new Socket("localhost", port)) {
+            sock.setSoTimeout(30_000);
+            sock.getOutputStream().write(REQUEST.getBytes());
+            InputStream in = sock.getInputStream();
+            int total = 0;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                total += read;
+            }
+            return total > 0;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the value of a numeric field in /proc/pid/status, -1 if not available
+     */
+    private static long procStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            // not on Linux or the process is gone
+        }
+        return -1;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitForServer(int port, Process server) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            if (!server.isAlive()) {
+                throw new IllegalStateException("server exited with " + server.exitValue());
+            }
+            try {
+                // connecting is all we want to know, close right away
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException ex) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("server did not start on port " + port);
+    }
+}
@@ -1,15 +1,35 @@
 import java.io.*;
 import java.net.*;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class SimpleWebServer {
 
+    /** Default number of threads in "pool" mode */
+    private static final int POOL_SIZE = 64;
+
+    /** Connections that may wait for a pool thread before accept slows down */
+    private static final int POOL_QUEUE = 1024;
+
+    /** Connections the OS queues for us while we are busy accepting */
+    private static final int BACKLOG = 1024;
+
+    // runs the ClientHandler of every accepted connection, see createExecutor
+    private final Executor executor;
+
+    private static final String USAGE = "Expected arguments: <port(int)> [thread|pool[:size]|virtual]";
+
     // 
     public static void main(String args[]) {
         int port = 9099; // default port
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
 
-            System.out.println("Expected arguments: <port(int)>");
+            System.out.println(USAGE);
             System.exit(1);
         }
         System.out.println("running");
@@ -20,11 +40,30 @@ try {
             System.exit(2);
         }
 
-        SimpleWebServer server = new SimpleWebServer(port);
+        String mode = args.length == 2 ? args[1] : "thread";
+        try {
+            SimpleWebServer server = new SimpleWebServer(port, mode);
+        } catch (IllegalArgumentException ex) {
+            // an unknown mode or a pool size that is not a positive integer
+            System.out.println(ex.getMessage());
+            System.out.println(USAGE);
+            System.exit(1);
+        }
 
     }
 
     public SimpleWebServer(int port) {
+        this(port, "thread");
+    }
+
+    /**
+     * @param port port to listen on
+     * @param mode how connections are run: "thread" starts a new platform
+     *     thread for each one, "pool" or "pool:size" hands them to a bounded
+     *     pool, "virtual" starts a virtual thread for each one
+     */
+    public SimpleWebServer(int port, String mode) {
+        executor = createExecutor(mode);
 
         ServerSocket server = null;
         Socket sock = null;
@@ -37,7 +76,7 @@ try {
             //***   Write the bytes to the socket's output stream
             //***   close streams and socket appropriately
 
-            server = new ServerSocket(port);
+            server = new ServerSocket(port, BACKLOG);
 
         } catch (IOException ex) {
             ex.printStackTrace();
@@ -55,15 +94,76 @@ try {
     }
 
     /**
-     * Take the newly accepted socket and make it a thread by passing it to
-     * inner class ClientHandler which implements Runnable; subsequently start
-     * the thread up so it can be processed.
+     * Take the newly accepted socket and pass it to inner class ClientHandler
+     * which implements Runnable; the executor picked by the mode then runs
+     * it, on a new thread, a pool thread or a virtual thread.
      *
      * @param sock
      */
     private void createClientThread(Socket sock) {
-        Thread thread = new Thread(new ClientHandler(sock));
-        thread.start();
+        executor.execute(new ClientHandler(sock));
+    }
+
+    /**
+     * @param mode "thread", "pool", "pool:size" or "virtual"
+     * @return executor that runs one ClientHandler per connection
+     * @throws IllegalArgumentException if the mode is unknown or the pool
+     *     size is not a positive integer
+     */
+    static Executor createExecutor(String mode) {
+        if (mode.equals("virtual")) {
+            Executor virtual = virtualThreadExecutor();
+            if (virtual != null) {
+                System.out.println("Mode: one virtual thread per connection");
+                return virtual;
+            }
+            System.out.println("Virtual threads need Java 21 (or 19/20 with --enable-preview), "
+                    + "using one platform thread per connection");
+            return command -> new Thread(command).start();
+        }
+        if (mode.equals("pool") || mode.startsWith("pool:")) {
+            int size = mode.equals("pool") ? POOL_SIZE : poolSize(mode.substring("pool:".length()));
+            System.out.println("Mode: pool of " + size + " threads");
+            // when all threads are busy and the queue is full the accept loop
+            // runs the client itself, so we stop accepting instead of
+            // queueing without limit
+            return new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(POOL_QUEUE), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        if (!mode.equals("thread")) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        System.out.println("Mode: one platform thread per connection");
+        return command -> new Thread(command).start();
+    }
+
+    private static int poolSize(String size) {
+        try {
+            int threads = Integer.parseInt(size);
+            if (threads > 0) {
+                return threads;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below like any other bad size
+        }
+        throw new IllegalArgumentException("Pool size must be a positive integer: " + size);
+    }
+
+    /**
+     * Virtual threads are looked up by reflection so this still compiles
+     * and runs on JDKs without them.
+     *
+     * @return Executors.newVirtualThreadPerTaskExecutor() or null if the
+     *     JVM does not support virtual threads
+     */
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            // no such method before Java 19, preview only in 19 and 20
+            return null;
+        }
     }
 }
 
@@ -0,0 +1,261 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A response body that is produced while it is being sent.
+ *
+ * Any thread writes pieces of the body with write() and ends it with
+ * close(). The selector thread takes the pieces out with writeTo() and
+ * frames every piece as one chunk of "Transfer-Encoding: chunked", so the
+ * client gets the first bytes as soon as they exist and no length has to
+ * be known up front. For clients that cannot take chunks the pieces are
+ * sent as they are and the end of the body is marked by closing the
+ * connection.
+ *
+ * At most MAX_BUFFERED bytes wait to be sent. A producer that gets ahead of
+ * the client blocks in write() until the socket has taken some, if it runs
+ * in a ForkJoinPool the pool is told so it can compensate. When the
+ * connection goes away the stream is aborted and every later write throws
+ * an IOException, so producers stop working for nobody.
+ */
+class BodyStream {
+  /** Bytes that may be queued before write() blocks */
+  public static final int MAX_BUFFERED = 1024 * 1024;
+
+  private static final byte[] CRLF = { '\r', '\n' };
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+  private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+  private int buffered = 0;
+  private boolean closed = false;
+  private boolean aborted = false;
+  private Throwable failure;
+  private volatile Runnable listener;
+
+  // owned by the selector thread: the chunk currently being written and
+  // whether the end of the body has been taken from the queue
+  private ByteBuffer[] current;
+  private boolean finished = false;
+  private long bytesWritten = 0;
+
+  /**
+   * Queues a piece of the body, blocking while too much is waiting.
+   * @param bytes the piece, empty pieces are ignored
+   * @throws IOException if the stream was closed or the client went away
+   */
+  public void write(byte[] bytes) throws IOException {
+    if (bytes.length == 0) {
+      return;
+    }
+    synchronized (this) {
+      if (buffered >= MAX_BUFFERED && !aborted && !closed) {
+        awaitSpace();
+      }
+      if (aborted) {
+        throw new IOException("Client connection closed");
+      }
+      if (closed) {
+        throw new IOException("Stream already closed");
+      }
+      queue.add(ByteBuffer.wrap(bytes));
+      buffered += bytes.length;
+    }
+    signal();
+  }
+
+  public void write(String text) throws IOException {
+    write(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Ends the body normally. Safe to call more than once.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    signal();
+  }
+
+  /**
+   * Ends the body because the producer failed. The head has already gone
+   * out with a success status, so the connection is dropped without the
+   * final chunk and the client can tell the body is incomplete.
+   * @param error what went wrong
+   */
+  public void fail(Throwable error) {
+    synchronized (this) {
+      if (!closed) {
+        failure = error;
+        closed = true;
+      }
+    }
+    signal();
+  }
+
+  /**
+   * Called when the connection is gone. Wakes a blocked producer.
+   */
+  public synchronized void abort() {
+    aborted = true;
+    queue.clear();
+    buffered = 0;
+    notifyAll();
+  }
+
+  /**
+   * @return true once the producer is done and failed or closed without failing
+   */
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * @param listener run on the producing thread whenever data or the end of
+   *     the body becomes available
+   */
+  public void setListener(Runnable listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * @return true if writeTo has nothing to do until the producer writes more
+   */
+  public synchronized boolean isWaiting() {
+    return current == null && queue.isEmpty() && !closed && !finished;
+  }
+
+  /**
+   * Writes queued pieces to the channel without blocking.
+   * @param channel the socket
+   * @param chunked frame pieces as chunks and end with the last chunk
+   * @return true once the whole body including the end marker is written
+   * @throws IOException if the socket fails or the producer failed
+   */
+  public boolean writeTo(GatheringByteChannel channel, boolean chunked) throws IOException {
+    while (true) {
+      if (current == null) {
+        if (finished) {
+          return true;
+        }
+        ByteBuffer data;
+        synchronized (this) {
+          data = queue.poll();
+          if (data != null) {
+            buffered -= data.remaining();
+            notifyAll();
+          } else if (failure != null) {
+            throw new IOException("Response body failed", failure);
+          } else if (!closed) {
+            return false;
+          }
+        }
+        if (data == null) {
+          finished = true;
+          if (!chunked) {
+            return true;
+          }
+          current = new ByteBuffer[] { ByteBuffer.wrap(LAST_CHUNK) };
+        } else if (chunked) {
+          byte[] size = (Integer.toHexString(data.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+          current = new ByteBuffer[] { ByteBuffer.wrap(size), data, ByteBuffer.wrap(CRLF) };
+        } else {
+          current = new ByteBuffer[] { data };
+        }
+      }
+
+      bytesWritten += channel.write(current);
+      if (current[current.length - 1].hasRemaining()) {
+        // socket buffer is full, wait for the next writable event
+        return false;
+      }
+      current = null;
+    }
+  }
+
+  /**
+   * @return bytes written by writeTo so far, chunk framing included
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Blocks until the producer is done and returns the whole body, for
+   * callers that need the body in one piece.
+   * @return the complete body
+   * @throws IOException if the producer failed
+   */
+  public byte[] readFully() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    synchronized (this) {
+      while (true) {
+        ByteBuffer data;
+        while ((data = queue.poll()) != null) {
+          bytes.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+          buffered -= data.remaining();
+        }
+        notifyAll();
+        if (failure != null) {
+          throw new IOException("Response body failed", failure);
+        }
+        if (closed) {
+          return bytes.toByteArray();
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while reading the body", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits on this monitor until there is room again, as a managed block so
+   * a ForkJoinPool producer does not starve its pool.
+   */
+  private void awaitSpace() throws IOException {
+    try {
+      ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+        @Override
+        public boolean block() throws InterruptedException {
+          synchronized (BodyStream.this) {
+            if (!isReleasable()) {
+              BodyStream.this.wait();
+            }
+          }
+          return isReleasable();
+        }
+
+        @Override
+        public boolean isReleasable() {
+          synchronized (BodyStream.this) {
+            return buffered < MAX_BUFFERED || aborted || closed;
+          }
+        }
+      });
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing the body", e);
+    }
+  }
+
+  private void signal() {
+    synchronized (this) {
+      notifyAll();
+    }
+    Runnable listener = this.listener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes text into a BodyStream as UTF-8, optionally compressed.
+ *
+ * Text is collected until CHUNK_SIZE bytes are ready and then handed to the
+ * stream as one chunk, so a page written character by character still goes
+ * out in reasonably sized pieces. flush() sends whatever is collected right
+ * away, e.g. the top of a page before the slow part is produced. With a
+ * compressor every flush() is a sync flush, so the client can decompress
+ * everything it has received so far.
+ *
+ * close() sends the rest and ends the body. A producer that fails must not
+ * close the writer but call BodyStream.fail, so the client can tell the body
+ * is incomplete.
+ */
+class BodyWriter extends Writer {
+  /** Bytes collected before they are sent as one chunk */
+  public static final int CHUNK_SIZE = 16 * 1024;
+
+  private final BodyStream stream;
+  private final ChunkSink sink;
+  private final OutputStream compressor;
+  private final Writer chars;
+
+  /**
+   * @param stream body to write to
+   * @param encoding Compression.GZIP, Compression.DEFLATE or null for none
+   */
+  public BodyWriter(BodyStream stream, String encoding) throws IOException {
+    this.stream = stream;
+    this.sink = new ChunkSink(stream);
+    if (Compression.GZIP.equals(encoding)) {
+      compressor = new GZIPOutputStream(sink, 8192, true);
+    } else if (Compression.DEFLATE.equals(encoding)) {
+      compressor = new DeflaterOutputStream(sink, true);
+    } else {
+      compressor = null;
+    }
+    this.chars = new OutputStreamWriter(compressor != null ? compressor : sink, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void write(char[] buffer, int offset, int length) throws IOException {
+    chars.write(buffer, offset, length);
+  }
+
+  @Override
+  public void write(String text, int offset, int length) throws IOException {
+    chars.write(text, offset, length);
+  }
+
+  /**
+   * Sends everything written so far to the client.
+   */
+  @Override
+  public void flush() throws IOException {
+    chars.flush();
+    if (compressor != null) {
+      compressor.flush();
+    }
+    sink.send();
+  }
+
+  /**
+   * Sends the rest and ends the body.
+   */
+  @Override
+  public void close() throws IOException {
+    // closes the compressor too, which writes its trailer into the sink
+    chars.close();
+    sink.send();
+    stream.close();
+  }
+
+  /**
+   * Collects bytes and passes them to the stream in chunks.
+   */
+  private static class ChunkSink extends OutputStream {
+    private final BodyStream stream;
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private int length = 0;
+
+    ChunkSink(BodyStream stream) {
+      this.stream = stream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (length == buffer.length) {
+        send();
+      }
+      buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+      while (count > 0) {
+        if (length == buffer.length) {
+          send();
+        }
+        int copy = Math.min(count, buffer.length - length);
+        System.arraycopy(bytes, offset, buffer, length, copy);
+        length += copy;
+        offset += copy;
+        count -= copy;
+      }
+    }
+
+    /**
+     * Hands the collected bytes to the stream, which keeps the array.
+     */
+    void send() throws IOException {
+      if (length > 0) {
+        stream.write(length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+        buffer = new byte[CHUNK_SIZE];
+        length = 0;
+      }
+    }
+
+    @Override
+    public void flush() {
+      // chunks are only sent by BodyWriter.flush or when full, a compressor
+      // flushing on every block must not make us send tiny chunks
+    }
+
+    @Override
+    public void close() {
+      // the stream is ended by BodyWriter.close
+    }
+  }
+}
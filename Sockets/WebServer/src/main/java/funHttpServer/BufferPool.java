@@ -0,0 +1,58 @@
+package funHttpServer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of equally sized direct ByteBuffers. A connection only borrows
+ * a buffer while it is actually reading, so idle connections hold no buffer
+ * at all and the number of live buffers tracks the number of busy sockets.
+ */
+class BufferPool {
+  private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger();
+  private final int bufferSize;
+  private final int maxPooled;
+
+  /**
+   * @param bufferSize capacity of every buffer handed out
+   * @param maxPooled how many released buffers are kept for reuse
+   */
+  public BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * @return a cleared buffer, either recycled or freshly allocated
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    pooled.decrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Hands a buffer back. Buffers beyond the pool limit are left to the GC.
+   * @param buffer a buffer previously returned by acquire
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() != bufferSize) {
+      return;
+    }
+    if (pooled.incrementAndGet() <= maxPooled) {
+      buffer.clear();
+      free.offer(buffer);
+    } else {
+      pooled.decrementAndGet();
+    }
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+}
@@ -0,0 +1,87 @@
+package funHttpServer;
+
+/**
+ * A single byte range from a Range request header, e.g. "bytes=0-499",
+ * "bytes=500-" or the suffix form "bytes=-500". Only single ranges are
+ * supported; for anything else the header is ignored and the whole file is
+ * sent, which is what RFC 7233 allows a server to do.
+ */
+class ByteRange {
+  /** Returned when the range lies completely outside the file */
+  public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+  private final long start;
+  private final long end;
+
+  private ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  /** @return first byte of the range */
+  public long getStart() {
+    return start;
+  }
+
+  /** @return last byte of the range, inclusive */
+  public long getEnd() {
+    return end;
+  }
+
+  /** @return number of bytes in the range */
+  public long getLength() {
+    return end - start + 1;
+  }
+
+  /**
+   * @param length size of the whole file
+   * @return the value for the Content-Range header
+   */
+  public String contentRange(long length) {
+    if (this == UNSATISFIABLE) {
+      return "bytes */" + length;
+    }
+    return "bytes " + start + "-" + end + "/" + length;
+  }
+
+  /**
+   * @param header value of the Range header, may be null
+   * @param length size of the whole file
+   * @return the range, UNSATISFIABLE, or null if the header should be ignored
+   */
+  public static ByteRange parse(String header, long length) {
+    if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      if (first.isEmpty()) {
+        // suffix range: the last N bytes
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0 || length == 0) {
+          return UNSATISFIABLE;
+        }
+        return new ByteRange(Math.max(0, length - suffix), length - 1);
+      }
+
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+      if (start >= length) {
+        return UNSATISFIABLE;
+      }
+      if (end < start) {
+        return null;
+      }
+      return new ByteRange(start, Math.min(end, length - 1));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content negotiation and compression for response bodies. Supports the
+ * gzip and deflate content codings, chosen from the client's
+ * Accept-Encoding header by quality value with gzip winning ties.
+ */
+class Compression {
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+
+  /** Bodies smaller than this are not worth the CPU and the header overhead */
+  public static final int MIN_SIZE = 1024;
+
+  private Compression() {
+  }
+
+  /**
+   * @param acceptEncoding value of the Accept-Encoding header, may be null
+   * @return GZIP, DEFLATE or null if the client accepts neither
+   */
+  public static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    double gzip = -1;
+    double deflate = -1;
+    double any = -1;
+    for (String part : acceptEncoding.split(",")) {
+      String[] params = part.trim().split(";");
+      String coding = params[0].trim().toLowerCase();
+      double q = 1.0;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+        gzip = q;
+      } else if (coding.equals(DEFLATE)) {
+        deflate = q;
+      } else if (coding.equals("*")) {
+        any = q;
+      }
+    }
+    // codings not listed by name take the quality of "*"
+    if (gzip < 0) {
+      gzip = any;
+    }
+    if (deflate < 0) {
+      deflate = any;
+    }
+
+    if (gzip > 0 && gzip >= deflate) {
+      return GZIP;
+    }
+    if (deflate > 0) {
+      return DEFLATE;
+    }
+    return null;
+  }
+
+  /**
+   * @param contentType value of the Content-Type header, may be null
+   * @return true for text like types that compress well
+   */
+  public static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String type = contentType.toLowerCase();
+    return type.startsWith("text/")
+        || type.startsWith("application/json")
+        || type.startsWith("application/javascript")
+        || type.startsWith("application/xml")
+        || type.startsWith("image/svg+xml");
+  }
+
+  /**
+   * @param encoding GZIP or DEFLATE
+   * @param data bytes to compress
+   * @return the compressed bytes
+   */
+  public static byte[] encode(String encoding, byte[] data) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 3));
+    try (OutputStream compressor = encoding.equals(GZIP)
+        ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out)) {
+      compressor.write(data);
+    } catch (IOException e) {
+      // cannot happen with an in-memory stream
+      throw new IllegalStateException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @param etag the ETag of the uncompressed body
+   * @param encoding GZIP or DEFLATE
+   * @return the ETag of the encoded variant, e.g. "abc-gzip"
+   */
+  public static String etag(String etag, String encoding) {
+    if (etag == null || !etag.endsWith("\"")) {
+      return etag;
+    }
+    return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+  }
+
+  /**
+   * Compresses a byte body produced by a route if the client accepts it and
+   * it is worth it. Responses that are already encoded, partial or backed
+   * by a file are left alone.
+   * @param request the request with the client's Accept-Encoding
+   * @param response the response to compress in place
+   * @return the same response
+   */
+  public static HttpResponse apply(HttpRequest request, HttpResponse response) {
+    if (response.getStatus() != 200 || response.getHeader("Content-Encoding") != null
+        || !response.hasByteBody() || !isCompressible(response.getHeader("Content-Type"))) {
+      return response;
+    }
+    response.setHeader("Vary", "Accept-Encoding");
+    byte[] body = response.getBody();
+    String encoding = negotiate(request.getHeader("Accept-Encoding"));
+    if (encoding == null || body.length < MIN_SIZE) {
+      return response;
+    }
+
+    byte[] compressed = encode(encoding, body);
+    if (compressed.length >= body.length) {
+      return response;
+    }
+    String etag = response.getHeader("ETag");
+    if (etag != null) {
+      response.setHeader("ETag", etag(etag, encoding));
+    }
+    return response
+        .setHeader("Content-Encoding", encoding)
+        .setBody(compressed);
+  }
+}
@@ -0,0 +1,265 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * In-memory cache of file contents, bounded by the total number of bytes
+ * held and evicting the least recently used file first. An entry is
+ * validated against the file's modification time and size on every lookup,
+ * so an edited file is picked up on the next request. Each entry carries a
+ * precomputed ETag and Last-Modified value for conditional requests, and
+ * keeps the compressed variants of the file once they have been asked for,
+ * so a file is compressed once per change instead of once per request.
+ */
+class FileCache {
+
+  /**
+   * A cached file.
+   */
+  static class Entry {
+    private final String key;
+    private final byte[] bytes;
+    private final long lastModified;
+    private final String etag;
+    private final String lastModifiedHeader;
+    private final Map<String, byte[]> variants = new ConcurrentHashMap<>();
+
+    Entry(String key, byte[] bytes, long lastModified) {
+      this.key = key;
+      this.bytes = bytes;
+      this.lastModified = lastModified;
+      this.etag = etag(bytes);
+      this.lastModifiedHeader = httpDate(lastModified);
+    }
+
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    public String getLastModifiedHeader() {
+      return lastModifiedHeader;
+    }
+
+    /** @return bytes held by this entry including its compressed variants */
+    private long size() {
+      long size = bytes.length;
+      for (byte[] variant : variants.values()) {
+        size += variant.length;
+      }
+      return size;
+    }
+  }
+
+  private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final long maxBytes;
+  private final long maxFileSize;
+  private long size = 0;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxBytes total bytes the cache may hold
+   * @param maxFileSize files larger than this are read but never cached
+   */
+  public FileCache(long maxBytes, long maxFileSize) {
+    this.maxBytes = maxBytes;
+    this.maxFileSize = Math.min(maxFileSize, maxBytes);
+  }
+
+  /**
+   * Returns the contents of a file, from memory when the cached copy is
+   * still current.
+   * @param file file to read
+   * @return the entry for the file
+   * @throws IOException if the file does not exist or cannot be read
+   */
+  public Entry get(File file) throws IOException {
+    String key = file.toPath().normalize().toString();
+    long lastModified = file.lastModified();
+    long length = file.length();
+
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.lastModified == lastModified && entry.bytes.length == length) {
+        hits.incrementAndGet();
+        return entry;
+      }
+    }
+
+    misses.incrementAndGet();
+    Entry entry = new Entry(key, Files.readAllBytes(file.toPath()), lastModified);
+    if (entry.bytes.length <= maxFileSize) {
+      put(key, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the file compressed with the given coding, compressing it only
+   * the first time it is asked for.
+   * @param entry entry returned by get
+   * @param encoding Compression.GZIP or Compression.DEFLATE
+   * @return the compressed bytes
+   */
+  public byte[] variant(Entry entry, String encoding) {
+    byte[] variant = entry.variants.get(encoding);
+    if (variant != null) {
+      return variant;
+    }
+    variant = Compression.encode(encoding, entry.bytes);
+    byte[] raced = entry.variants.putIfAbsent(encoding, variant);
+    if (raced != null) {
+      return raced;
+    }
+    synchronized (this) {
+      if (entries.get(entry.key) == entry) {
+        size += variant.length;
+        evict(entry);
+      }
+    }
+    return variant;
+  }
+
+  /**
+   * @return lookups answered from memory
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return lookups that had to read the file
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return bytes currently held
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * @return number of files currently held
+   */
+  public synchronized int getCount() {
+    return entries.size();
+  }
+
+  private synchronized void put(String key, Entry entry) {
+    Entry old = entries.put(key, entry);
+    if (old != null) {
+      size -= old.size();
+    }
+    size += entry.size();
+    evict(entry);
+  }
+
+  /**
+   * Evicts from the least recently used end until we fit again.
+   * @param keep entry that was just used and must stay
+   */
+  private synchronized void evict(Entry keep) {
+    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (size > maxBytes && eldest.hasNext()) {
+      Map.Entry<String, Entry> victim = eldest.next();
+      if (victim.getValue() != keep) {
+        size -= victim.getValue().size();
+        eldest.remove();
+      }
+    }
+  }
+
+  /**
+   * @param bytes content to tag
+   * @return a strong ETag derived from the content
+   */
+  public static String etag(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return "\"" + Long.toHexString(bytes.length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+  }
+
+  /**
+   * ETag for files too big to hash on every change, derived from size and
+   * modification time the way most servers do it
+   * @param length file size
+   * @param lastModified modification time
+   * @return a strong ETag
+   */
+  public static String etag(long length, long lastModified) {
+    return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+  }
+
+  /**
+   * @param millis time since the epoch
+   * @return the time formatted for Last-Modified and Date headers
+   */
+  public static String httpDate(long millis) {
+    return HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+  }
+
+  /**
+   * Decides whether the client already has the current version.
+   * If-None-Match wins over If-Modified-Since when both are sent.
+   * @param request the request with the client's validators
+   * @param etag current ETag
+   * @param lastModified current modification time, or -1 if unknown
+   * @return true if a 304 Not Modified answer is enough
+   */
+  public static boolean notModified(HttpRequest request, String etag, long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if (candidate.startsWith("W/")) {
+          candidate = candidate.substring(2);
+        }
+        // a compressed variant is the same version of the resource
+        if (candidate.equals("*") || candidate.equals(etag)
+            || candidate.equals(Compression.etag(etag, Compression.GZIP))
+            || candidate.equals(Compression.etag(etag, Compression.DEFLATE))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    String ifModifiedSince = request.getHeader("If-Modified-Since");
+    if (ifModifiedSince != null && lastModified >= 0) {
+      try {
+        long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toInstant().toEpochMilli();
+        // HTTP dates only have second precision
+        return lastModified / 1000 <= since / 1000;
+      } catch (DateTimeParseException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+}
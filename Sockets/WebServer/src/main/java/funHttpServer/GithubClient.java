@@ -0,0 +1,144 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Non-blocking client for the GitHub REST API used by the "/github" route.
+ *
+ * Requests go through one shared java.net.http.HttpClient, which keeps
+ * connections to the upstream open and reuses them. Successful answers are
+ * cached per query for a fixed time, and while a query is in flight every
+ * other request for the same query waits on the same future, so a burst of
+ * identical requests costs a single upstream call.
+ *
+ * The base URI is a constructor argument so the client can be pointed at a
+ * local stub server instead of api.github.com.
+ *
+ * java.net.http types are written out in full, HttpRequest and HttpResponse
+ * in this package are the server side classes.
+ */
+class GithubClient {
+  public static final URI GITHUB = URI.create("https://api.github.com/");
+
+  /** Upper bound on cached queries, expired ones are dropped first */
+  private static final int MAX_ENTRIES = 1024;
+
+  /**
+   * A cached upstream answer.
+   */
+  private static class Cached {
+    private final String body;
+    private final long expiresAt;
+
+    Cached(String body, long expiresAt) {
+      this.body = body;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final HttpClient client;
+  private final URI baseUri;
+  private final long ttlNanos;
+  private final Duration requestTimeout;
+  private final Map<String, Cached> cache = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * @param baseUri URI the query is resolved against, e.g. GITHUB
+   * @param ttl how long a successful answer is reused
+   * @param requestTimeout how long to wait for the upstream before failing
+   */
+  public GithubClient(URI baseUri, Duration ttl, Duration requestTimeout) {
+    this.client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(requestTimeout)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+    this.baseUri = baseUri;
+    this.ttlNanos = ttl.toNanos();
+    this.requestTimeout = requestTimeout;
+  }
+
+  /**
+   * Fetches baseUri + query, from the cache when possible. The query is
+   * appended, not resolved, so it can never point at a different host.
+   * @param query path below the base URI, e.g. users/amehlhase316/repos
+   * @return a future completed with the response body, or failed if the
+   *     upstream could not be reached or did not answer 200
+   */
+  public CompletableFuture<String> fetch(String query) {
+    Cached cached = cache.get(query);
+    if (cached != null && cached.expiresAt - System.nanoTime() > 0) {
+      return CompletableFuture.completedFuture(cached.body);
+    }
+
+    CompletableFuture<String> promise = new CompletableFuture<>();
+    CompletableFuture<String> running = inFlight.putIfAbsent(query, promise);
+    if (running != null) {
+      // somebody already asked for this, share their upstream call
+      return running;
+    }
+    cached = cache.get(query);
+    if (cached != null && cached.expiresAt - System.nanoTime() > 0) {
+      // the call we missed above finished in between
+      inFlight.remove(query, promise);
+      promise.complete(cached.body);
+      return promise;
+    }
+
+    try {
+      java.net.http.HttpRequest request = java.net.http.HttpRequest.newBuilder(URI.create(baseUri + query))
+          .timeout(requestTimeout)
+          .header("Accept", "application/vnd.github+json")
+          .GET()
+          .build();
+      client.sendAsync(request, java.net.http.HttpResponse.BodyHandlers.ofString())
+          .whenComplete((response, error) -> {
+            // cache first, then leave inFlight, so a request for the query always finds one of them
+            if (error == null && response.statusCode() == 200) {
+              store(query, response.body());
+            }
+            inFlight.remove(query, promise);
+            if (error != null) {
+              promise.completeExceptionally(error);
+            } else if (response.statusCode() != 200) {
+              promise.completeExceptionally(new IOException("Upstream answered " + response.statusCode()));
+            } else {
+              promise.complete(response.body());
+            }
+          });
+    } catch (RuntimeException e) {
+      // the query does not make a valid URI
+      inFlight.remove(query, promise);
+      promise.completeExceptionally(e);
+    }
+    return promise;
+  }
+
+  /**
+   * @return number of queries currently cached, expired ones included
+   */
+  public int getCacheSize() {
+    return cache.size();
+  }
+
+  private void store(String query, String body) {
+    long now = System.nanoTime();
+    if (cache.size() >= MAX_ENTRIES) {
+      cache.values().removeIf(cached -> cached.expiresAt - now <= 0);
+      Iterator<String> keys = cache.keySet().iterator();
+      while (cache.size() >= MAX_ENTRIES && keys.hasNext()) {
+        keys.next();
+        keys.remove();
+      }
+    }
+    cache.put(query, new Cached(body, now + ttlNanos));
+  }
+}
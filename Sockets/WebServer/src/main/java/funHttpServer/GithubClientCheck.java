@@ -0,0 +1,162 @@
+package funHttpServer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks GithubClient against a stub of the GitHub API in this process:
+ * answers arrive and are cached, a burst of identical queries costs one
+ * upstream call, failures are not cached, cached answers expire and a
+ * slow upstream times out. Any failed check ends it with an exception.
+ *
+ * Run through
+ *   gradle GithubClientCheck
+ */
+class GithubClientCheck {
+  private static final String REPOS = "[{\"name\":\"ser321examples\"}]";
+
+  private static final AtomicInteger calls = new AtomicInteger();
+  // the stub holds answers back until the burst has been sent
+  private static volatile CountDownLatch release = new CountDownLatch(0);
+
+  public static void main(String args[]) throws Exception {
+    HttpServer stub = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    stub.createContext("/users/", exchange -> {
+      calls.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      answer(exchange, 200, REPOS);
+    });
+    stub.createContext("/missing", exchange -> {
+      calls.incrementAndGet();
+      answer(exchange, 404, "{\"message\":\"Not Found\"}");
+    });
+    stub.createContext("/slow", exchange -> {
+      try {
+        Thread.sleep(2000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      answer(exchange, 200, REPOS);
+    });
+    stub.setExecutor(Executors.newCachedThreadPool(task -> {
+      Thread thread = new Thread(task, "github-stub");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    stub.start();
+    URI base = URI.create("http://localhost:" + stub.getAddress().getPort() + "/");
+
+    try {
+      GithubClient client = new GithubClient(base, Duration.ofMinutes(1), Duration.ofMillis(500));
+
+      // the first fetch goes upstream, the second comes from the cache
+      check(REPOS.equals(get(client.fetch("users/a/repos"))), "wrong body");
+      check(REPOS.equals(get(client.fetch("users/a/repos"))), "wrong cached body");
+      check(calls.get() == 1, "cached query went upstream, " + calls.get() + " calls");
+      check(client.getCacheSize() == 1, "cache holds " + client.getCacheSize() + " queries");
+
+      // identical queries in flight at the same time share one call
+      calls.set(0);
+      release = new CountDownLatch(1);
+      List<CompletableFuture<String>> burst = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        burst.add(client.fetch("users/b/repos"));
+      }
+      release.countDown();
+      for (CompletableFuture<String> future : burst) {
+        check(REPOS.equals(get(future)), "wrong body in burst");
+      }
+      check(calls.get() == 1, "burst made " + calls.get() + " upstream calls");
+
+      // threads asking over and over while the call finishes never start a second one
+      calls.set(0);
+      List<Thread> threads = new ArrayList<>();
+      AtomicInteger wrong = new AtomicInteger();
+      for (int t = 0; t < 8; t++) {
+        Thread thread = new Thread(() -> {
+          for (int i = 0; i < 2000; i++) {
+            if (!REPOS.equals(client.fetch("users/d/repos").join())) {
+              wrong.incrementAndGet();
+            }
+          }
+        });
+        threads.add(thread);
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      check(wrong.get() == 0, wrong.get() + " wrong bodies");
+      check(calls.get() == 1, "repeated fetches made " + calls.get() + " upstream calls");
+
+      // an error fails the future and is asked for again next time
+      calls.set(0);
+      checkFails(client.fetch("missing"), IOException.class);
+      checkFails(client.fetch("missing"), IOException.class);
+      check(calls.get() == 2, "failed answer was cached, " + calls.get() + " calls");
+
+      // an upstream slower than the request timeout fails instead of hanging
+      checkFails(client.fetch("slow"), java.net.http.HttpTimeoutException.class);
+
+      // answers are reused only for the ttl
+      GithubClient shortLived = new GithubClient(base, Duration.ofMillis(50), Duration.ofMillis(500));
+      calls.set(0);
+      get(shortLived.fetch("users/c/repos"));
+      Thread.sleep(100);
+      get(shortLived.fetch("users/c/repos"));
+      check(calls.get() == 2, "expired answer was reused, " + calls.get() + " calls");
+    } finally {
+      stub.stop(0);
+    }
+    System.out.println("GithubClient checks passed");
+  }
+
+  private static void answer(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static String get(CompletableFuture<String> future) throws Exception {
+    return future.get(5, TimeUnit.SECONDS);
+  }
+
+  private static void checkFails(CompletableFuture<String> future, Class<? extends Exception> expected)
+      throws Exception {
+    try {
+      get(future);
+    } catch (ExecutionException e) {
+      check(expected.isInstance(e.getCause()), "failed with " + e.getCause() + ", not " + expected.getSimpleName());
+      return;
+    }
+    throw new IllegalStateException("did not fail, expected " + expected.getSimpleName());
+  }
+
+  private static void check(boolean ok, String failure) {
+    if (!ok) {
+      throw new IllegalStateException(failure);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package funHttpServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A parsed HTTP request head: the request line and the header fields.
+ * Header names are stored in lower case so lookups do not depend on how
+ * the client spelled them.
+ */
+class HttpRequest {
+  private final String method;
+  private final String target;
+  private final byte[] rawTarget;
+  private final String version;
+  private final Map<String, String> headers;
+  private final String path;
+  private final String query;
+  private Map<String, String> queryParams;
+
+  /**
+   * @param method request method, e.g. GET
+   * @param target request target as sent, e.g. /multiply?num1=3&num2=4
+   * @param version protocol version, e.g. HTTP/1.1
+   * @param headers header fields keyed by lower case name
+   */
+  public HttpRequest(String method, String target, String version, Map<String, String> headers) {
+    this(method, target, target.getBytes(StandardCharsets.UTF_8), version, headers);
+  }
+
+  /**
+   * @param method request method, e.g. GET
+   * @param target request target as sent, e.g. /multiply?num1=3&num2=4
+   * @param rawTarget the bytes of the target as they were received
+   * @param version protocol version, e.g. HTTP/1.1
+   * @param headers header fields keyed by lower case name
+   */
+  public HttpRequest(String method, String target, byte[] rawTarget, String version, Map<String, String> headers) {
+    this.method = method;
+    this.target = target;
+    this.rawTarget = rawTarget;
+    this.version = version;
+    this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+
+    int question = target.indexOf('?');
+    this.path = question < 0 ? target : target.substring(0, question);
+    this.query = question < 0 ? "" : target.substring(question + 1);
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public String getTarget() {
+    return target;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  /**
+   * @return the target up to the query string, e.g. /multiply
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return the raw query string without the '?', empty if there is none
+   */
+  public String getQuery() {
+    return query;
+  }
+
+  /**
+   * @return the target as it was received, not decoded in any way
+   */
+  public byte[] getRawTarget() {
+    return rawTarget;
+  }
+
+  /**
+   * Points a parser at the query of this request. Routes that only need a
+   * few numbers use this with a parser they reuse instead of building the
+   * parameter map.
+   * @param parser parser to reset
+   * @return the parser
+   */
+  public QueryParser parseQuery(QueryParser parser) {
+    return parser.reset(rawTarget);
+  }
+
+  /**
+   * The decoded query parameters. They are parsed on first use and kept, so
+   * every route works with the same map instead of splitting the query again.
+   * A parameter without '=' maps to an empty string, a broken '%' escape is
+   * kept as it is.
+   * @return parameters in the order they appear in the query
+   */
+  public Map<String, String> getQueryParams() {
+    if (queryParams == null) {
+      QueryParser parser = parseQuery(new QueryParser());
+      Map<String, String> params = new LinkedHashMap<>();
+      for (int i = 0; i < parser.size(); i++) {
+        params.put(parser.name(i), parser.value(i));
+      }
+      queryParams = Collections.unmodifiableMap(params);
+    }
+    return queryParams;
+  }
+
+  /**
+   * @param name header name, any case
+   * @return the header value or null if the header was not sent
+   */
+  public String getHeader(String name) {
+    return headers.get(name.toLowerCase());
+  }
+
+  /**
+   * The target without its leading '/', which is the form the routes in
+   * WebServer work with (e.g. "multiply?num1=3&num2=4").
+   * @return the request resource
+   */
+  public String getResource() {
+    return target.startsWith("/") ? target.substring(1) : target;
+  }
+
+  @Override
+  public String toString() {
+    return method + " " + target + " " + version;
+  }
+}
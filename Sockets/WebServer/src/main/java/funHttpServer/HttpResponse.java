@@ -0,0 +1,297 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP response: status line, header fields and a body. The head is
+ * serialized with a Content-Length so the connection can stay open for the
+ * next request.
+ *
+ * The body is either a byte array, a region of a file or a BodyStream. A
+ * file region is never copied onto the heap, writeTo hands it to the socket
+ * with FileChannel.transferTo, which the OS can turn into a sendfile. A
+ * stream has no length up front, it is sent with Transfer-Encoding: chunked
+ * while it is being produced.
+ */
+class HttpResponse {
+  private static final byte[] EMPTY = new byte[0];
+
+  private final int status;
+  private final String reason;
+  private final Map<String, String> headers = new LinkedHashMap<>();
+  private byte[] body = EMPTY;
+  private FileChannel file;
+  private long filePosition;
+  private long fileRemaining;
+  private BodyStream stream;
+  private boolean chunked = true;
+  private ByteBuffer head;
+  private ByteBuffer bodyBuffer;
+  private long bytesWritten = 0;
+
+  /**
+   * @param status status code, e.g. 200
+   * @param reason reason phrase, e.g. OK
+   */
+  public HttpResponse(int status, String reason) {
+    this.status = status;
+    this.reason = reason;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+
+  /**
+   * Sets a header, replacing any header with the same name in any case.
+   * @return this response so calls can be chained
+   */
+  public HttpResponse setHeader(String name, String value) {
+    removeHeader(name);
+    headers.put(name, value);
+    return this;
+  }
+
+  /**
+   * @param name header name, any case
+   * @return the header value or null if it is not set
+   */
+  public String getHeader(String name) {
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  public void removeHeader(String name) {
+    headers.keySet().removeIf(key -> key.equalsIgnoreCase(name));
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * @return this response so calls can be chained
+   */
+  public HttpResponse setBody(byte[] body) {
+    this.body = body == null ? EMPTY : body;
+    return this;
+  }
+
+  public HttpResponse setBody(String body) {
+    return setBody(body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Uses a region of an open file as the body. The response owns the
+   * channel from now on and closes it in release().
+   * @param channel open file
+   * @param position first byte to send
+   * @param count number of bytes to send
+   * @return this response so calls can be chained
+   */
+  public HttpResponse setBody(FileChannel channel, long position, long count) {
+    this.body = EMPTY;
+    this.file = channel;
+    this.filePosition = position;
+    this.fileRemaining = count;
+    return this;
+  }
+
+  /**
+   * Uses a stream as the body. The producer keeps writing to it after the
+   * response has been handed to the server.
+   * @param stream the body, the producer closes it when done
+   * @return this response so calls can be chained
+   */
+  public HttpResponse setBody(BodyStream stream) {
+    this.body = EMPTY;
+    this.stream = stream;
+    return this;
+  }
+
+  /**
+   * @return the stream body or null if the body is not a stream
+   */
+  public BodyStream getStream() {
+    return stream;
+  }
+
+  /**
+   * Chooses how a stream body is framed. Chunks are the default; without
+   * them the body ends when the connection closes, which is the only way
+   * to send it to an HTTP/1.0 client.
+   * @param chunked true for Transfer-Encoding: chunked
+   */
+  public void setChunked(boolean chunked) {
+    this.chunked = chunked;
+  }
+
+  /**
+   * @return true if the body is held in memory rather than in a file or stream
+   */
+  public boolean hasByteBody() {
+    return file == null && stream == null;
+  }
+
+  /**
+   * @return the number of body bytes that will be sent, -1 for a stream
+   */
+  public long getContentLength() {
+    if (stream != null) {
+      return -1;
+    }
+    return file != null ? fileRemaining : body.length;
+  }
+
+  /**
+   * @return true while a stream body has nothing to send, the server then
+   *     waits for the stream's listener instead of for the socket
+   */
+  public boolean isWaiting() {
+    return head != null && !head.hasRemaining() && stream != null && stream.isWaiting();
+  }
+
+  /**
+   * @return false for statuses that never carry a body, e.g. 304 Not Modified
+   */
+  public boolean hasBody() {
+    return status >= 200 && status != 204 && status != 304;
+  }
+
+  /**
+   * @return the status line and headers including the terminating empty line
+   */
+  public ByteBuffer headBuffer() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("HTTP/1.1 ").append(status).append(" ").append(reason).append("\r\n");
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      if (!header.getKey().equalsIgnoreCase("Content-Length")
+          && !header.getKey().equalsIgnoreCase("Transfer-Encoding")) {
+        builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+      }
+    }
+    if (hasBody() && stream != null) {
+      if (chunked) {
+        builder.append("Transfer-Encoding: chunked\r\n");
+      }
+    } else if (hasBody()) {
+      builder.append("Content-Length: ").append(getContentLength()).append("\r\n");
+    }
+    builder.append("\r\n");
+    return ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  /**
+   * Head and body in one array, for writing to a plain OutputStream. A file
+   * body is read into memory here and a stream body is waited for, so this
+   * is only meant for small answers.
+   * @return the byte encoded response
+   */
+  public byte[] toBytes() throws IOException {
+    if (stream != null) {
+      BodyStream waitFor = stream;
+      stream = null;
+      setBody(waitFor.readFully());
+    }
+    ByteBuffer head = headBuffer();
+    ByteBuffer bytes = ByteBuffer.allocate((int) (head.remaining() + getContentLength()));
+    bytes.put(head);
+    if (file != null) {
+      long position = filePosition;
+      int read;
+      while (bytes.hasRemaining() && (read = file.read(bytes, position)) > 0) {
+        position += read;
+      }
+      release();
+    } else {
+      bytes.put(body);
+    }
+    return bytes.array();
+  }
+
+  /**
+   * Writes as much of the response as the channel takes without blocking.
+   * Call again when the channel is writable until it returns true.
+   * @param channel the socket to write to
+   * @return true once the whole response has been written
+   * @throws IOException if the socket or the file fails
+   */
+  public boolean writeTo(GatheringByteChannel channel) throws IOException {
+    if (head == null) {
+      head = headBuffer();
+      bodyBuffer = ByteBuffer.wrap(hasBody() ? body : EMPTY);
+    }
+
+    if (stream != null && hasBody()) {
+      if (head.hasRemaining()) {
+        bytesWritten += channel.write(head);
+        if (head.hasRemaining()) {
+          return false;
+        }
+      }
+      return stream.writeTo(channel, chunked);
+    }
+
+    if (file == null || !hasBody()) {
+      // one gathering write for head and body, no copy into a joint buffer
+      bytesWritten += channel.write(new ByteBuffer[] { head, bodyBuffer });
+      return !head.hasRemaining() && !bodyBuffer.hasRemaining();
+    }
+
+    if (head.hasRemaining()) {
+      bytesWritten += channel.write(head);
+      if (head.hasRemaining()) {
+        return false;
+      }
+    }
+    while (fileRemaining > 0) {
+      long written = file.transferTo(filePosition, fileRemaining, channel);
+      if (written <= 0) {
+        // socket buffer is full, wait for the next writable event
+        return false;
+      }
+      filePosition += written;
+      bytesWritten += written;
+      fileRemaining -= written;
+    }
+    return true;
+  }
+
+  /**
+   * @return bytes of head and body written by writeTo so far
+   */
+  public long getBytesWritten() {
+    return bytesWritten + (stream != null ? stream.getBytesWritten() : 0);
+  }
+
+  /**
+   * Closes the file behind a file body and stops the producer of a stream
+   * body that has not finished. Safe to call more than once.
+   */
+  public void release() {
+    if (stream != null) {
+      stream.abort();
+    }
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        // the response is finished or abandoned, nothing else to do
+      }
+    }
+  }
+}
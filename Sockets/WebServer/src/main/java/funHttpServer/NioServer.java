@@ -0,0 +1,502 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.AsyncLog;
+import metrics.Metrics;
+
+/**
+ * Selector driven front end for the fun web server.
+ *
+ * One thread owns the Selector and does all accepting, reading and writing
+ * with non-blocking channels. Requests are parsed incrementally from pooled
+ * buffers and once a request head is complete it is handed to a bounded
+ * worker pool, which runs the (possibly slow) handler. The finished response
+ * is passed back to the selector thread to be written. A slow client or a
+ * slow route therefore never blocks any other connection, and an idle
+ * connection costs nothing but its channel and a small parser.
+ *
+ * Connections are persistent (HTTP/1.1 keep-alive). Responses are framed
+ * with Content-Length, or sent chunked while their BodyStream is still
+ * being produced; the connection then only asks for writable events while
+ * the stream has data. A connection is closed after IDLE_TIMEOUT_MILLIS
+ * without traffic, when its client has not taken any of a response for
+ * IDLE_TIMEOUT_MILLIS or after MAX_REQUESTS_PER_CONNECTION requests, and
+ * pipelined requests are queued per connection and answered strictly in
+ * the order they arrived.
+ *
+ * Connections and bytes in both directions are counted in the Metrics
+ * passed in, requests are counted by the handler, which knows the route.
+ */
+class NioServer implements Runnable {
+
+  /**
+   * Turns a complete request into a response. Handlers that wait on other
+   * services return an incomplete future and release the worker thread.
+   */
+  interface Handler {
+    CompletableFuture<HttpResponse> handle(HttpRequest request);
+  }
+
+  /** Keep-alive connections without traffic for this long are closed */
+  public static final int IDLE_TIMEOUT_MILLIS = 15 * 1000;
+
+  /** After this many requests a connection is answered with Connection: close */
+  public static final int MAX_REQUESTS_PER_CONNECTION = 100;
+
+  /** Pipelined requests buffered per connection before we stop reading from it */
+  public static final int MAX_PIPELINED = 16;
+
+  private final int port;
+  private final Handler handler;
+  private final ThreadPoolExecutor workers;
+  private final BufferPool buffers;
+  private final Metrics metrics;
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder malformed = new LongAdder();
+  private final ConcurrentLinkedQueue<Connection> finished = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Connection> resumed = new ConcurrentLinkedQueue<>();
+  private Selector selector;
+  private volatile boolean running = true;
+
+  /**
+   * @param port port to listen on
+   * @param handler called on a worker thread for every request
+   * @param workerCount number of worker threads
+   * @param queueDepth requests that may wait for a worker before we answer 503
+   * @param metrics counts connections and bytes
+   */
+  public NioServer(int port, Handler handler, int workerCount, int queueDepth, Metrics metrics) {
+    this.port = port;
+    this.handler = handler;
+    this.metrics = metrics;
+    this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueDepth));
+    this.buffers = new BufferPool(16 * 1024, 1024);
+  }
+
+  /**
+   * Runs the selector loop until stop() is called.
+   */
+  @Override
+  public void run() {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      selector = Selector.open();
+      server.configureBlocking(false);
+      server.bind(new InetSocketAddress(port), 1024);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+      AsyncLog.println("Listening on port " + port);
+
+      long nextSweep = System.currentTimeMillis() + 1000;
+      while (running) {
+        selector.select(1000);
+        registerFinished();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept(server);
+            } else {
+              Connection connection = (Connection) key.attachment();
+              if (key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.write();
+              }
+            }
+          } catch (IOException e) {
+            if (key.attachment() != null) {
+              ((Connection) key.attachment()).close();
+            }
+          }
+        }
+
+        long now = System.currentTimeMillis();
+        if (now >= nextSweep) {
+          closeIdle(now);
+          nextSweep = now + 1000;
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      workers.shutdown();
+      try {
+        if (selector != null) {
+          selector.close();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * @return requests answered with 503 because every worker was busy
+   */
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  /**
+   * @return requests answered with 400 or 431 because they could not be parsed
+   */
+  public long getMalformed() {
+    return malformed.sum();
+  }
+
+  /**
+   * @return requests waiting for a worker
+   */
+  public int getQueuedRequests() {
+    return workers.getQueue().size();
+  }
+
+  /**
+   * Stops the selector loop and the worker pool.
+   */
+  public void stop() {
+    running = false;
+    if (selector != null) {
+      selector.wakeup();
+    }
+  }
+
+  private void accept(ServerSocketChannel server) throws IOException {
+    SocketChannel channel;
+    while ((channel = server.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      Connection connection = new Connection(channel);
+      metrics.connectionOpened();
+      connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+  }
+
+  /**
+   * Picks up responses produced by workers and streams that have new data.
+   * Only the selector thread touches interest ops and connection state.
+   */
+  private void registerFinished() {
+    Connection connection;
+    while ((connection = finished.poll()) != null) {
+      if (connection.key.isValid()) {
+        connection.responseReady();
+      } else if (connection.produced != null) {
+        // the client went away while the worker was busy
+        connection.produced.release();
+      }
+    }
+    while ((connection = resumed.poll()) != null) {
+      connection.resumePending.set(false);
+      connection.updateInterest();
+    }
+  }
+
+  /**
+   * Closes connections that have been waiting for a request for too long,
+   * and connections whose client stopped reading a response. Connections
+   * whose request is still being answered are left alone.
+   */
+  private void closeIdle(long now) {
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+        Connection connection = (Connection) key.attachment();
+        if (connection.isIdle() ? now - connection.lastActivity > IDLE_TIMEOUT_MILLIS
+            : connection.isStalled(now)) {
+          connection.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * State of a single client connection. Everything but the produced field
+   * is only touched by the selector thread.
+   */
+  private class Connection {
+    private final SocketChannel channel;
+    private final RequestParser parser = new RequestParser();
+    private final List<HttpRequest> completed = new ArrayList<>(1);
+    private final ArrayDeque<HttpRequest> pending = new ArrayDeque<>();
+    private SelectionKey key;
+    private long lastActivity = System.currentTimeMillis();
+    // when outbound was set or last had bytes taken by the socket
+    private long lastProgress;
+    private int requestCount = 0;
+    private boolean busy = false;
+    private boolean inputClosed = false;
+    private boolean closeAfterWrite = false;
+    private HttpResponse outbound;
+    private volatile HttpResponse produced;
+    private volatile boolean producedClose;
+    private final AtomicBoolean resumePending = new AtomicBoolean();
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() throws IOException {
+      lastActivity = System.currentTimeMillis();
+      ByteBuffer buffer = buffers.acquire();
+      try {
+        int read = channel.read(buffer);
+        if (read < 0) {
+          // the client is done sending, still answer what it already asked for
+          inputClosed = true;
+          if (!busy && pending.isEmpty() && outbound == null) {
+            close();
+          } else {
+            updateInterest();
+          }
+          return;
+        }
+        metrics.addBytesIn(read);
+        buffer.flip();
+        parser.feed(buffer, completed);
+      } catch (RequestParser.ParseException e) {
+        malformed.increment();
+        pending.clear();
+        if (!busy) {
+          send(errorResponse(e.getStatus(), e.getMessage()), true);
+        } else {
+          // let the request in progress finish, nothing after it can be trusted
+          inputClosed = true;
+          updateInterest();
+        }
+        return;
+      } finally {
+        buffers.release(buffer);
+      }
+
+      pending.addAll(completed);
+      completed.clear();
+      dispatchNext();
+      updateInterest();
+    }
+
+    void write() throws IOException {
+      lastActivity = System.currentTimeMillis();
+      long before = outbound.getBytesWritten();
+      boolean done;
+      try {
+        done = outbound.writeTo(channel);
+      } finally {
+        if (outbound.getBytesWritten() != before) {
+          lastProgress = lastActivity;
+        }
+        metrics.addBytesOut(outbound.getBytesWritten() - before);
+      }
+      if (!done) {
+        if (outbound.isWaiting()) {
+          // the stream is drained, stop asking for writable events until it has more
+          updateInterest();
+        }
+        return;
+      }
+      outbound.release();
+      outbound = null;
+      if (closeAfterWrite) {
+        close();
+        return;
+      }
+      busy = false;
+      dispatchNext();
+      if (!busy && pending.isEmpty() && inputClosed) {
+        close();
+        return;
+      }
+      updateInterest();
+    }
+
+    void close() {
+      if (key.isValid()) {
+        metrics.connectionClosed();
+      }
+      if (outbound != null) {
+        outbound.release();
+        outbound = null;
+      }
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing left to do with a broken channel
+      }
+    }
+
+    boolean isIdle() {
+      return !busy && outbound == null && pending.isEmpty();
+    }
+
+    /**
+     * @return true if a response has bytes to send but the client has not
+     *     taken any for IDLE_TIMEOUT_MILLIS; a stream waiting for its
+     *     producer is not the client's fault
+     */
+    boolean isStalled(long now) {
+      return outbound != null && !outbound.isWaiting() && now - lastProgress > IDLE_TIMEOUT_MILLIS;
+    }
+
+    /** Runs on the selector thread once a worker has produced the response */
+    void responseReady() {
+      outbound = produced;
+      lastProgress = System.currentTimeMillis();
+      closeAfterWrite = producedClose;
+      produced = null;
+      if (outbound.getStream() != null) {
+        outbound.getStream().setListener(this::resume);
+      }
+      updateInterest();
+    }
+
+    /** Runs on the producing thread when a stream body has more to send */
+    private void resume() {
+      if (resumePending.compareAndSet(false, true)) {
+        resumed.add(this);
+        selector.wakeup();
+      }
+    }
+
+    private void updateInterest() {
+      if (!key.isValid()) {
+        return;
+      }
+      int ops = 0;
+      if (!inputClosed && !closeAfterWrite && pending.size() < MAX_PIPELINED) {
+        ops |= SelectionKey.OP_READ;
+      }
+      if (outbound != null && !outbound.isWaiting()) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(ops);
+    }
+
+    /**
+     * Starts the next queued request unless one is already being answered,
+     * which keeps pipelined responses in request order.
+     */
+    private void dispatchNext() {
+      if (busy || outbound != null || pending.isEmpty()) {
+        return;
+      }
+      HttpRequest request = pending.poll();
+      busy = true;
+      requestCount++;
+      boolean close = !wantsKeepAlive(request) || requestCount >= MAX_REQUESTS_PER_CONNECTION;
+      int remaining = MAX_REQUESTS_PER_CONNECTION - requestCount;
+
+      try {
+        workers.execute(() -> {
+          CompletableFuture<HttpResponse> future;
+          try {
+            future = handler.handle(request);
+          } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+          }
+          future.whenComplete((response, error) -> {
+            boolean closeAfter = close;
+            if (error != null) {
+              Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+              AsyncLog.println("Handler failed: " + cause);
+              response = errorResponse(500, cause.getMessage());
+            } else if (response.getStream() != null && !request.getVersion().equals("HTTP/1.1")) {
+              // HTTP/1.0 has no chunks, the end of the body is the end of the connection
+              response.setChunked(false);
+              closeAfter = true;
+            }
+            complete(response, closeAfter, remaining);
+          });
+        });
+      } catch (RejectedExecutionException e) {
+        // every worker is busy and the queue is full, shed load instead of queuing forever
+        rejected.increment();
+        pending.clear();
+        send(errorResponse(503, "Server busy, try again later"), true);
+      }
+    }
+
+    /** Queues a response produced on the selector thread */
+    private void send(HttpResponse response, boolean close) {
+      busy = true;
+      setConnectionHeaders(response, close, MAX_REQUESTS_PER_CONNECTION - requestCount);
+      outbound = response;
+      lastProgress = System.currentTimeMillis();
+      closeAfterWrite = close;
+      updateInterest();
+    }
+
+    /** Called on a worker thread once the handler is done */
+    private void complete(HttpResponse response, boolean close, int remaining) {
+      setConnectionHeaders(response, close, remaining);
+      producedClose = close;
+      produced = response;
+      finished.add(this);
+      selector.wakeup();
+    }
+
+    private void setConnectionHeaders(HttpResponse response, boolean close, int remaining) {
+      if (close) {
+        response.setHeader("Connection", "close");
+      } else {
+        response.setHeader("Connection", "keep-alive");
+        response.setHeader("Keep-Alive", "timeout=" + (IDLE_TIMEOUT_MILLIS / 1000)
+            + ", max=" + remaining);
+      }
+    }
+  }
+
+  /**
+   * HTTP/1.1 connections persist unless the client asks to close them,
+   * HTTP/1.0 connections only if the client asks to keep them.
+   */
+  private static boolean wantsKeepAlive(HttpRequest request) {
+    String connection = request.getHeader("Connection");
+    if (request.getVersion().equals("HTTP/1.1")) {
+      return connection == null || !connection.equalsIgnoreCase("close");
+    }
+    return connection != null && connection.equalsIgnoreCase("keep-alive");
+  }
+
+  private static String reason(int status) {
+    switch (status) {
+      case 400: return "Bad Request";
+      case 431: return "Request Header Fields Too Large";
+      case 500: return "Internal Server Error";
+      case 501: return "Not Implemented";
+      case 503: return "Service Unavailable";
+      default: return "Error";
+    }
+  }
+
+  private static HttpResponse errorResponse(int status, String message) {
+    return new HttpResponse(status, reason(status))
+        .setHeader("Content-Type", "text/html; charset=utf-8")
+        .setBody("Error " + status + ": " + message);
+  }
+}
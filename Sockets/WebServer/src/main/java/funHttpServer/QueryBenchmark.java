@@ -0,0 +1,134 @@
+package funHttpServer;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Microbenchmark for query string parsing. Reads the parameters of the
+ * "/multiply", "/projectile" and "/dice" routes in two ways. The first is
+ * splitQuery, the String based parser the server used before, plus
+ * Integer/Double.parseDouble. The second is a reused QueryParser. It reports
+ * time and bytes allocated per request for each. The parser should
+ * allocate nothing per request.
+ *
+ * Run through
+ *   gradle QueryBenchmark
+ */
+class QueryBenchmark {
+  private static final int ITERATIONS = 2_000_000;
+
+  private static final String[] QUERIES = {
+      "num1=3&num2=4",
+      "angle=45.5&velocity=100",
+      "dice1=6&dice2=20&rolls=10",
+      "num1=%2D12&num2=7"
+  };
+
+  public static void main(String args[]) throws Exception {
+    byte[][] targets = new byte[QUERIES.length][];
+    for (int i = 0; i < QUERIES.length; i++) {
+      targets[i] = ("/route?" + QUERIES[i]).getBytes(StandardCharsets.UTF_8);
+    }
+    QueryParser parser = new QueryParser();
+
+    // both ways have to agree before timing them means anything
+    if (splitQuery(QUERIES) != queryParser(parser, targets)) {
+      throw new IllegalStateException("splitQuery and QueryParser disagree");
+    }
+
+    // warm up so the JIT has compiled both paths before we measure
+    for (int round = 0; round < 5; round++) {
+      splitQuery(QUERIES);
+      queryParser(parser, targets);
+    }
+
+    System.out.printf("%14s %12s %16s%n", "parser", "ns/op", "bytes/op");
+    measure("splitQuery", () -> splitQuery(QUERIES));
+    measure("QueryParser", () -> queryParser(parser, targets));
+  }
+
+  private interface Run {
+    double run() throws Exception;
+  }
+
+  private static void measure(String name, Run run) throws Exception {
+    long allocated = allocatedBytes();
+    long start = System.nanoTime();
+    double check = run.run();
+    long elapsed = System.nanoTime() - start;
+    allocated = allocatedBytes() - allocated;
+    if (check == 0) {
+      throw new IllegalStateException("nothing parsed");
+    }
+    System.out.printf("%14s %12.1f %16.1f%n", name,
+        (double) elapsed / ITERATIONS, (double) allocated / ITERATIONS);
+  }
+
+  private static double splitQuery(String[] queries) throws Exception {
+    double sum = 0;
+    for (int i = 0; i < ITERATIONS; i++) {
+      Map<String, String> query = splitQuery(queries[i & 3]);
+      switch (i & 3) {
+        case 0:
+        case 3:
+          sum += Integer.parseInt(query.get("num1")) * Integer.parseInt(query.get("num2"));
+          break;
+        case 1:
+          sum += Double.parseDouble(query.get("angle")) + Double.parseDouble(query.get("velocity"));
+          break;
+        default:
+          sum += Integer.parseInt(query.get("dice1")) + Integer.parseInt(query.get("dice2"))
+              + Integer.parseInt(query.get("rolls"));
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * The former WebServer.splitQuery, kept here as the baseline: splits the
+   * query into a map of decoded names and values.
+   */
+  private static Map<String, String> splitQuery(String query) throws UnsupportedEncodingException {
+    Map<String, String> query_pairs = new LinkedHashMap<String, String>();
+    for (String pair : query.split("&")) {
+      int idx = pair.indexOf("=");
+      query_pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"),
+          URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+    }
+    return query_pairs;
+  }
+
+  private static double queryParser(QueryParser parser, byte[][] targets) {
+    double sum = 0;
+    for (int i = 0; i < ITERATIONS; i++) {
+      QueryParser query = parser.reset(targets[i & 3]);
+      switch (i & 3) {
+        case 0:
+        case 3:
+          sum += query.getInt("num1") * query.getInt("num2");
+          break;
+        case 1:
+          sum += query.getDouble("angle") + query.getDouble("velocity");
+          break;
+        default:
+          sum += query.getInt("dice1") + query.getInt("dice2") + query.getInt("rolls");
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * @return bytes allocated by this thread so far, 0 if the JVM cannot tell
+   */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+}
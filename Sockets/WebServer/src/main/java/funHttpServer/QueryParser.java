@@ -0,0 +1,281 @@
+package funHttpServer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Query string parser that works directly on the bytes of the request
+ * target.
+ *
+ * reset() makes one pass over the bytes and records where every name and
+ * value starts and ends, nothing else. Names are compared and numbers are
+ * parsed straight from the bytes, percent escapes and '+' are decoded on
+ * the fly, so getInt, getDouble and has never create a String or box a
+ * number. Only get(), which has to return a String, allocates.
+ *
+ * An instance is not thread safe but can be reused for request after
+ * request, e.g. one per worker thread. If a name occurs more than once the
+ * last value wins, the same as the String based splitQuery did.
+ */
+class QueryParser {
+  private byte[] bytes = new byte[0];
+  private int count = 0;
+  // per parameter: name start, name end (= '=' or value end), value start, value end
+  private int[] bounds = new int[4 * 8];
+  private int cursor;
+
+  /**
+   * Indexes the query part of a request target.
+   * @param target raw request target, e.g. "/multiply?num1=3&num2=4"
+   * @return this parser
+   */
+  public QueryParser reset(byte[] target) {
+    int question = 0;
+    while (question < target.length && target[question] != '?') {
+      question++;
+    }
+    return reset(target, Math.min(question + 1, target.length), target.length);
+  }
+
+  /**
+   * Indexes a query string held in part of an array.
+   * @param source array holding the query
+   * @param from index of the first query byte (after the '?')
+   * @param to index after the last query byte
+   * @return this parser
+   */
+  public QueryParser reset(byte[] source, int from, int to) {
+    bytes = source;
+    count = 0;
+    int start = from;
+    while (start < to) {
+      int end = start;
+      int equals = -1;
+      while (end < to && source[end] != '&') {
+        if (equals < 0 && source[end] == '=') {
+          equals = end;
+        }
+        end++;
+      }
+      if (end > start) {
+        if (4 * count + 4 > bounds.length) {
+          int[] grown = new int[bounds.length * 2];
+          System.arraycopy(bounds, 0, grown, 0, bounds.length);
+          bounds = grown;
+        }
+        int at = 4 * count++;
+        bounds[at] = start;
+        bounds[at + 1] = equals < 0 ? end : equals;
+        bounds[at + 2] = equals < 0 ? end : equals + 1;
+        bounds[at + 3] = end;
+      }
+      start = end + 1;
+    }
+    return this;
+  }
+
+  /**
+   * @return the number of parameters in the query
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @param name parameter name
+   * @return true if the query contains the parameter
+   */
+  public boolean has(String name) {
+    return indexOf(name) >= 0;
+  }
+
+  /**
+   * @param index parameter position, 0 to size() - 1
+   * @return the decoded name of the parameter
+   */
+  public String name(int index) {
+    return decode(bounds[4 * index], bounds[4 * index + 1]);
+  }
+
+  /**
+   * @param index parameter position, 0 to size() - 1
+   * @return the decoded value of the parameter
+   */
+  public String value(int index) {
+    return decode(bounds[4 * index + 2], bounds[4 * index + 3]);
+  }
+
+  /**
+   * @param name parameter name
+   * @return the decoded value or null if the parameter is missing
+   */
+  public String get(String name) {
+    int index = indexOf(name);
+    return index < 0 ? null : value(index);
+  }
+
+  /**
+   * Parses a decimal integer value without creating any objects.
+   * @param name parameter name
+   * @return the value
+   * @throws NumberFormatException if the parameter is missing or not an int,
+   *     the same as Integer.parseInt(get(name)) would
+   */
+  public int getInt(String name) {
+    int index = indexOf(name);
+    if (index < 0) {
+      throw new NumberFormatException("Missing parameter " + name);
+    }
+    int end = bounds[4 * index + 3];
+    cursor = bounds[4 * index + 2];
+
+    boolean negative = false;
+    int first = cursor < end ? next(end) : -1;
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      first = cursor < end ? next(end) : -1;
+    }
+    if (first < '0' || first > '9') {
+      throw new NumberFormatException("Not an integer: " + name);
+    }
+    // accumulate negatively so Integer.MIN_VALUE parses too
+    long result = -(first - '0');
+    while (cursor < end) {
+      int digit = next(end) - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("Not an integer: " + name);
+      }
+      result = result * 10 - digit;
+      if (result < Integer.MIN_VALUE) {
+        throw new NumberFormatException("Out of range: " + name);
+      }
+    }
+    if (!negative && result == Integer.MIN_VALUE) {
+      throw new NumberFormatException("Out of range: " + name);
+    }
+    return (int) (negative ? result : -result);
+  }
+
+  /**
+   * Parses a decimal value. Plain numbers like "45", "-3.25" or "100.5"
+   * with up to 15 significant digits are parsed straight from the bytes,
+   * which gives exactly the result Double.parseDouble would; anything else
+   * (exponents, very long numbers, NaN) falls back to Double.parseDouble.
+   * @param name parameter name
+   * @return the value
+   * @throws NumberFormatException if the parameter is missing or not a number
+   */
+  public double getDouble(String name) {
+    int index = indexOf(name);
+    if (index < 0) {
+      throw new NumberFormatException("Missing parameter " + name);
+    }
+    int end = bounds[4 * index + 3];
+    cursor = bounds[4 * index + 2];
+
+    boolean negative = false;
+    boolean sawDigit = false;
+    long mantissa = 0;
+    int digits = 0;
+    int fraction = -1;
+    boolean simple = true;
+    for (int position = 0; simple && cursor < end; position++) {
+      int c = next(end);
+      if (c >= '0' && c <= '9') {
+        sawDigit = true;
+        if (mantissa != 0 || c != '0') {
+          digits++;
+        }
+        mantissa = mantissa * 10 + (c - '0');
+        if (fraction >= 0) {
+          fraction++;
+        }
+      } else if (c == '.' && fraction < 0) {
+        fraction = 0;
+      } else if ((c == '-' || c == '+') && position == 0) {
+        negative = c == '-';
+      } else {
+        simple = false;
+      }
+      if (digits > 15 || fraction > 22) {
+        simple = false;
+      }
+    }
+    if (simple && sawDigit) {
+      // mantissa and 10^fraction are both exact doubles here, so one
+      // division is correctly rounded
+      double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+      return negative ? -value : value;
+    }
+    return Double.parseDouble(value(index));
+  }
+
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  /**
+   * @return index of the last parameter with this name, or -1
+   */
+  private int indexOf(String name) {
+    for (int i = count - 1; i >= 0; i--) {
+      if (nameEquals(i, name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Compares a decoded name with a String, byte by byte. Names outside of
+   * ASCII are compared through a decoded copy.
+   */
+  private boolean nameEquals(int index, String name) {
+    int end = bounds[4 * index + 1];
+    cursor = bounds[4 * index];
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c >= 0x80) {
+        return name.equals(name(index));
+      }
+      if (cursor >= end || next(end) != c) {
+        return false;
+      }
+    }
+    return cursor == end;
+  }
+
+  /**
+   * Reads one decoded byte at cursor and advances past it.
+   */
+  private int next(int end) {
+    int b = bytes[cursor] & 0xff;
+    if (b == '+') {
+      cursor++;
+      return ' ';
+    }
+    if (b == '%' && cursor + 2 < end) {
+      int high = Character.digit(bytes[cursor + 1], 16);
+      int low = Character.digit(bytes[cursor + 2], 16);
+      if (high >= 0 && low >= 0) {
+        cursor += 3;
+        return (high << 4) | low;
+      }
+    }
+    cursor++;
+    return b;
+  }
+
+  /**
+   * @return the bytes between from and to, decoded as UTF-8
+   */
+  private String decode(int from, int to) {
+    byte[] decoded = new byte[to - from];
+    int length = 0;
+    cursor = from;
+    while (cursor < to) {
+      decoded[length++] = (byte) next(to);
+    }
+    return new String(decoded, 0, length, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,248 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental HTTP request head parser. Bytes are fed in whatever pieces the
+ * socket delivers them and every request whose head is complete is handed
+ * out, so a head split over several reads, or several requests in one read,
+ * are both handled. Request bodies are skipped since none of our routes use
+ * them: Content-Length bytes, or the chunks of a chunked body up to its
+ * last chunk and trailer. Any other Transfer-Encoding is refused with 501,
+ * the end of such a body cannot be found.
+ */
+class RequestParser {
+  /** Largest request head we accept, same default most servers use */
+  public static final int MAX_HEAD_SIZE = 8192;
+
+  /**
+   * Thrown when the bytes on the wire cannot be a valid request head.
+   */
+  static class ParseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    ParseException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+
+    /** @return the HTTP status code that should be sent back */
+    public int getStatus() {
+      return status;
+    }
+  }
+
+  private final byte[] line = new byte[MAX_HEAD_SIZE];
+  private int lineLength = 0;
+  private int headSize = 0;
+  private long bodyRemaining = 0;
+
+  // where we are in a chunked body, the lines are read like header lines
+  private static final int NOT_CHUNKED = 0;
+  private static final int CHUNK_SIZE = 1;
+  private static final int CHUNK_END = 2;
+  private static final int TRAILER = 3;
+  private int chunked = NOT_CHUNKED;
+
+  private String method;
+  private String target;
+  private byte[] rawTarget;
+  private String version;
+  private Map<String, String> headers = new LinkedHashMap<>();
+
+  /**
+   * Consumes all remaining bytes of the buffer.
+   * @param buffer bytes read from the socket, in read mode
+   * @param completed list every completed request is appended to
+   * @throws ParseException if the head is malformed or too large
+   */
+  public void feed(ByteBuffer buffer, List<HttpRequest> completed) throws ParseException {
+    while (buffer.hasRemaining()) {
+      if (bodyRemaining > 0) {
+        int skip = (int) Math.min(bodyRemaining, buffer.remaining());
+        buffer.position(buffer.position() + skip);
+        bodyRemaining -= skip;
+        continue;
+      }
+
+      byte b = buffer.get();
+      if (++headSize > MAX_HEAD_SIZE) {
+        throw new ParseException(431, "Request header fields too large");
+      }
+      if (b != '\n') {
+        line[lineLength++] = b;
+        continue;
+      }
+
+      // strip the optional carriage return, we accept bare "\n" line ends
+      int length = lineLength;
+      if (length > 0 && line[length - 1] == '\r') {
+        length--;
+      }
+      lineLength = 0;
+      String text = new String(line, 0, length, StandardCharsets.UTF_8);
+
+      if (chunked != NOT_CHUNKED) {
+        chunkLine(text);
+      } else if (method == null) {
+        // empty lines in front of the request line are allowed and ignored
+        if (!text.isEmpty()) {
+          parseRequestLine(text, length);
+        } else {
+          headSize = 0;
+        }
+      } else if (text.isEmpty()) {
+        startBody();
+        completed.add(new HttpRequest(method, target, rawTarget, version, headers));
+        reset();
+      } else {
+        int colon = text.indexOf(':');
+        if (colon <= 0) {
+          throw new ParseException(400, "Malformed header line: " + text);
+        }
+        headers.put(text.substring(0, colon).trim().toLowerCase(), text.substring(colon + 1).trim());
+      }
+    }
+  }
+
+  /**
+   * @return true if part of a request has been received but not all of it
+   */
+  public boolean isPartial() {
+    return method != null || lineLength > 0 || bodyRemaining > 0 || chunked != NOT_CHUNKED;
+  }
+
+  private void parseRequestLine(String text, int length) throws ParseException {
+    int firstSpace = text.indexOf(' ');
+    int secondSpace = text.indexOf(' ', firstSpace + 1);
+    if (firstSpace <= 0) {
+      throw new ParseException(400, "Malformed request line: " + text);
+    }
+    method = text.substring(0, firstSpace);
+    if (secondSpace < 0) {
+      // HTTP/0.9 style "GET /path"
+      target = text.substring(firstSpace + 1);
+      version = "HTTP/1.0";
+    } else {
+      target = text.substring(firstSpace + 1, secondSpace);
+      version = text.substring(secondSpace + 1);
+    }
+    if (target.isEmpty()) {
+      throw new ParseException(400, "Missing request target");
+    }
+
+    // keep the target as received too, the query parser works on the bytes
+    int from = 0;
+    while (line[from] != ' ') {
+      from++;
+    }
+    int to = ++from;
+    while (to < length && line[to] != ' ') {
+      to++;
+    }
+    rawTarget = Arrays.copyOfRange(line, from, to);
+  }
+
+  /**
+   * Finds out from the head just read how long the body is.
+   */
+  private void startBody() throws ParseException {
+    String coding = headers.get("transfer-encoding");
+    if (coding == null) {
+      bodyRemaining = parseContentLength(headers.get("content-length"));
+      return;
+    }
+    if (headers.containsKey("content-length")) {
+      // the two could be read differently by a proxy in front of us
+      throw new ParseException(400, "Both Transfer-Encoding and Content-Length");
+    }
+    // chunked must be the last coding, only then are the chunks what ends the body
+    String last = coding.substring(coding.lastIndexOf(',') + 1).trim();
+    if (!last.equalsIgnoreCase("chunked")) {
+      throw new ParseException(501, "Transfer-Encoding not supported: " + coding);
+    }
+    chunked = CHUNK_SIZE;
+  }
+
+  /**
+   * Handles one line of a chunked body: a chunk size, the line end after a
+   * chunk's data or a trailer field. The data itself is skipped by feed.
+   */
+  private void chunkLine(String text) throws ParseException {
+    switch (chunked) {
+      case CHUNK_SIZE:
+        long size = parseChunkSize(text);
+        if (size == 0) {
+          chunked = TRAILER;
+        } else {
+          bodyRemaining = size;
+          chunked = CHUNK_END;
+        }
+        headSize = 0;
+        break;
+      case CHUNK_END:
+        if (!text.isEmpty()) {
+          throw new ParseException(400, "Chunk longer than its size");
+        }
+        chunked = CHUNK_SIZE;
+        headSize = 0;
+        break;
+      default:
+        // trailer fields are ignored like the body, an empty line ends them
+        if (text.isEmpty()) {
+          chunked = NOT_CHUNKED;
+          headSize = 0;
+        }
+    }
+  }
+
+  private static long parseChunkSize(String line) throws ParseException {
+    int end = line.indexOf(';');
+    // chunk extensions after ';' are ignored
+    String hex = (end < 0 ? line : line.substring(0, end)).trim();
+    if (hex.isEmpty() || hex.length() > 15) {
+      throw new ParseException(400, "Invalid chunk size: " + line);
+    }
+    long size = 0;
+    for (int i = 0; i < hex.length(); i++) {
+      int digit = Character.digit(hex.charAt(i), 16);
+      if (digit < 0) {
+        throw new ParseException(400, "Invalid chunk size: " + line);
+      }
+      size = size * 16 + digit;
+    }
+    return size;
+  }
+
+  private static long parseContentLength(String value) throws ParseException {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      long length = Long.parseLong(value);
+      if (length < 0) {
+        throw new ParseException(400, "Negative Content-Length");
+      }
+      return length;
+    } catch (NumberFormatException e) {
+      throw new ParseException(400, "Invalid Content-Length: " + value);
+    }
+  }
+
+  private void reset() {
+    method = null;
+    target = null;
+    rawTarget = null;
+    version = null;
+    headers = new LinkedHashMap<>();
+    headSize = 0;
+  }
+}
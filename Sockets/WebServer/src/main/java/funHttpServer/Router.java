@@ -0,0 +1,265 @@
+package funHttpServer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Maps a method and a path to a handler.
+ *
+ * Routes without parameters live in a hash map per method, so the common
+ * case is a single lookup no matter how many routes are registered. Routes
+ * with parameters are kept in a trie of path segments where a segment is
+ * either a literal, a named parameter ("{id}") or a trailing wildcard ("*")
+ * that captures the rest of the path. Matching a parameterized route costs
+ * one step per path segment, again independent of the number of routes.
+ *
+ * Only the path is matched, the query string is not part of it, so
+ * "/file/dice?x=1" goes to the file route and never to "/dice".
+ *
+ * Handlers either answer right away (Handler) or return a future
+ * (AsyncHandler) when they wait on something else, e.g. an upstream HTTP
+ * call, so the worker thread is not held while waiting.
+ */
+class Router {
+
+  /**
+   * Handles a matched request.
+   */
+  interface Handler {
+    /**
+     * @param request the request
+     * @param params path parameters by name, the wildcard is stored as "*"
+     * @return the response
+     */
+    HttpResponse handle(HttpRequest request, Map<String, String> params) throws Exception;
+  }
+
+  /**
+   * Handles a matched request without blocking the calling thread.
+   */
+  interface AsyncHandler {
+    /**
+     * @param request the request
+     * @param params path parameters by name, the wildcard is stored as "*"
+     * @return a future completed with the response
+     */
+    CompletableFuture<HttpResponse> handle(HttpRequest request, Map<String, String> params);
+  }
+
+  /**
+   * Result of a successful lookup.
+   */
+  static class Match {
+    private final Route route;
+    private final Map<String, String> params;
+
+    Match(Route route, Map<String, String> params) {
+      this.route = route;
+      this.params = params;
+    }
+
+    public Map<String, String> getParams() {
+      return params;
+    }
+
+    /**
+     * @return the pattern the route was registered with, e.g. "/file/*"
+     */
+    public String getPattern() {
+      return route.pattern;
+    }
+
+    /**
+     * @param request the request to answer
+     * @return a future completed with the response, or failed if the handler threw
+     */
+    public CompletableFuture<HttpResponse> handle(HttpRequest request) {
+      return route.handler.handle(request, params);
+    }
+  }
+
+  /**
+   * A registered handler and the pattern it was registered with.
+   */
+  private static class Route {
+    private final String pattern;
+    private final AsyncHandler handler;
+
+    Route(String pattern, AsyncHandler handler) {
+      this.pattern = pattern;
+      this.handler = handler;
+    }
+  }
+
+  /**
+   * One segment in the trie of parameterized routes.
+   */
+  private static class Node {
+    private final Map<String, Node> literals = new HashMap<>();
+    private Node param;
+    private String paramName;
+    private Route handler;
+    private Route wildcard;
+  }
+
+  private final Map<String, Map<String, Route>> exact = new HashMap<>();
+  private final Map<String, Node> trees = new HashMap<>();
+
+  /**
+   * Shortcut for add("GET", pattern, handler)
+   */
+  public Router get(String pattern, Handler handler) {
+    return add("GET", pattern, handler);
+  }
+
+  /**
+   * Shortcut for addAsync("GET", pattern, handler)
+   */
+  public Router getAsync(String pattern, AsyncHandler handler) {
+    return addAsync("GET", pattern, handler);
+  }
+
+  /**
+   * Registers a route.
+   * @param method request method, e.g. GET
+   * @param pattern path such as "/dice", "/users/{id}" or "/file/*"
+   * @param handler handler to run for matching requests
+   * @return this router so calls can be chained
+   */
+  public Router add(String method, String pattern, Handler handler) {
+    return addAsync(method, pattern, (request, params) -> {
+      try {
+        return CompletableFuture.completedFuture(handler.handle(request, params));
+      } catch (Exception e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    });
+  }
+
+  /**
+   * Registers a route whose handler completes later.
+   * @param method request method, e.g. GET
+   * @param pattern path such as "/dice", "/users/{id}" or "/file/*"
+   * @param handler handler to run for matching requests
+   * @return this router so calls can be chained
+   */
+  public Router addAsync(String method, String pattern, AsyncHandler handler) {
+    if (!pattern.startsWith("/")) {
+      throw new IllegalArgumentException("Route must start with '/': " + pattern);
+    }
+    Route route = new Route(pattern, handler);
+    if (pattern.indexOf('{') < 0 && pattern.indexOf('*') < 0) {
+      exact.computeIfAbsent(method, m -> new HashMap<>()).put(pattern, route);
+      return this;
+    }
+
+    Node node = trees.computeIfAbsent(method, m -> new Node());
+    String[] segments = pattern.substring(1).split("/", -1);
+    for (int i = 0; i < segments.length; i++) {
+      String segment = segments[i];
+      if (segment.equals("*")) {
+        if (i != segments.length - 1) {
+          throw new IllegalArgumentException("'*' must be the last segment: " + pattern);
+        }
+        node.wildcard = route;
+        return this;
+      } else if (segment.startsWith("{") && segment.endsWith("}")) {
+        String name = segment.substring(1, segment.length() - 1);
+        if (node.param == null) {
+          node.param = new Node();
+          node.paramName = name;
+        } else if (!node.paramName.equals(name)) {
+          throw new IllegalArgumentException("Conflicting parameter name {" + name + "} in " + pattern);
+        }
+        node = node.param;
+      } else {
+        node = node.literals.computeIfAbsent(segment, s -> new Node());
+      }
+    }
+    node.handler = route;
+    return this;
+  }
+
+  /**
+   * @param method request method
+   * @param path request path without the query string
+   * @return the match or null if no route fits
+   */
+  public Match match(String method, String path) {
+    Map<String, Route> byPath = exact.get(method);
+    if (byPath != null) {
+      Route route = byPath.get(path);
+      if (route != null) {
+        return new Match(route, Collections.emptyMap());
+      }
+    }
+
+    Node root = trees.get(method);
+    if (root == null || !path.startsWith("/")) {
+      return null;
+    }
+    Map<String, String> params = new LinkedHashMap<>();
+    Route route = find(root, path, 1, params);
+    return route == null ? null : new Match(route, params);
+  }
+
+  /**
+   * @param path request path without the query string
+   * @return the methods that have a route for this path, empty if none
+   */
+  public Set<String> allowedMethods(String path) {
+    Set<String> methods = new TreeSet<>();
+    for (String method : exact.keySet()) {
+      if (match(method, path) != null) {
+        methods.add(method);
+      }
+    }
+    for (String method : trees.keySet()) {
+      if (match(method, path) != null) {
+        methods.add(method);
+      }
+    }
+    return methods;
+  }
+
+  /**
+   * Walks the trie from the segment starting at index start. Literals win
+   * over parameters, parameters over the wildcard.
+   */
+  private static Route find(Node node, String path, int start, Map<String, String> params) {
+    if (start > path.length()) {
+      return node.handler;
+    }
+    int end = path.indexOf('/', start);
+    if (end < 0) {
+      end = path.length();
+    }
+    String segment = path.substring(start, end);
+
+    Node literal = node.literals.get(segment);
+    if (literal != null) {
+      Route handler = find(literal, path, end + 1, params);
+      if (handler != null) {
+        return handler;
+      }
+    }
+    if (node.param != null && !segment.isEmpty()) {
+      params.put(node.paramName, segment);
+      Route handler = find(node.param, path, end + 1, params);
+      if (handler != null) {
+        return handler;
+      }
+      params.remove(node.paramName);
+    }
+    if (node.wildcard != null) {
+      params.put("*", path.substring(start));
+      return node.wildcard;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,95 @@
+package funHttpServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Microbenchmark for route dispatch. For a growing number of routes it
+ * measures the average cost of a lookup through the Router (exact and
+ * parameterized routes) and through the old style chain of
+ * request.contains(...) checks. The Router should stay flat while the
+ * chain grows with the number of routes.
+ *
+ * Run through
+ *   gradle RouterBenchmark
+ */
+class RouterBenchmark {
+  private static final int LOOKUPS = 2_000_000;
+  private static final Router.Handler NOOP = (request, params) -> null;
+
+  public static void main(String args[]) {
+    int[] sizes = { 8, 64, 512, 4096 };
+
+    System.out.printf("%8s %16s %16s %16s%n", "routes", "exact ns/op", "param ns/op", "contains ns/op");
+    for (int size : sizes) {
+      Router router = new Router();
+      List<String> chain = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        router.get("/route" + i, NOOP);
+        router.get("/items" + i + "/{id}", NOOP);
+        chain.add("route" + i + "?");
+      }
+
+      String[] exactPaths = new String[1024];
+      String[] paramPaths = new String[1024];
+      String[] requests = new String[1024];
+      Random random = new Random(42);
+      for (int i = 0; i < exactPaths.length; i++) {
+        int route = random.nextInt(size);
+        exactPaths[i] = "/route" + route;
+        paramPaths[i] = "/items" + route + "/" + i;
+        requests[i] = "route" + route + "?num1=3&num2=4";
+      }
+
+      // warm up so the JIT has compiled all three paths before we measure
+      for (int round = 0; round < 3; round++) {
+        exact(router, exactPaths);
+        exact(router, paramPaths);
+        chain(chain, requests);
+      }
+
+      System.out.printf("%8d %16.1f %16.1f %16.1f%n", size,
+          exact(router, exactPaths), exact(router, paramPaths), chain(chain, requests));
+    }
+  }
+
+  private static double exact(Router router, String[] paths) {
+    int found = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < LOOKUPS; i++) {
+      if (router.match("GET", paths[i & 1023]) != null) {
+        found++;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    check(found);
+    return (double) elapsed / LOOKUPS;
+  }
+
+  private static double chain(List<String> chain, String[] requests) {
+    int found = 0;
+    // the linear scan gets expensive quickly, use fewer lookups to keep the run short
+    int lookups = LOOKUPS / 20;
+    long start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      String request = requests[i & 1023];
+      for (String route : chain) {
+        if (request.contains(route)) {
+          found++;
+          break;
+        }
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    check(found);
+    return (double) elapsed / lookups;
+  }
+
+  /** Keeps the JIT from dropping the loops as dead code */
+  private static void check(int found) {
+    if (found == 0) {
+      throw new IllegalStateException("no route matched");
+    }
+  }
+}
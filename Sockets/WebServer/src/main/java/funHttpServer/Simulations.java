@@ -0,0 +1,319 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The dice and projectile computations behind "/dice", "/projectile" and
+ * their batch versions.
+ *
+ * A batch is a sweep over every combination of the given parameter values,
+ * e.g. angle=0:90:5 and velocity=10,20 are 19 * 2 = 38 projectiles. The
+ * combinations are split into slices on a ForkJoinPool and every slice
+ * writes its results to a BodyStream as soon as it is done, one JSON object
+ * per line (NDJSON), so results arrive while the rest is still computed
+ * and the order of the lines is the order the slices finished in; every
+ * line carries the index of its combination. The last line is a summary.
+ *
+ * Dice are rolled with SplittableRandom, split once per fork so slices
+ * never share a generator. With a seed the whole batch is reproducible
+ * no matter how many threads compute it.
+ */
+class Simulations {
+  /** Upper bound on parameter combinations in one batch */
+  public static final int MAX_SETS = 100_000;
+
+  /** Upper bound on rolls for one combination */
+  public static final int MAX_ROLLS = 10_000_000;
+
+  /** Upper bound on rolls for a whole batch */
+  public static final long MAX_TOTAL_ROLLS = 200_000_000L;
+
+  /** A slice is not split further below this many dice rolls */
+  private static final long ROLLS_PER_SLICE = 200_000;
+
+  /** A slice is not split further below this many projectiles */
+  private static final int PROJECTILES_PER_SLICE = 2048;
+
+  private Simulations() {
+  }
+
+  /**
+   * @param angle launch angle in degrees
+   * @param velocity launch velocity in m/s
+   * @return max height, max distance and time of flight
+   */
+  public static double[] projectile(double angle, double velocity) {
+    double radians = Math.toRadians(angle);
+
+    double yVelocity = velocity * Math.sin(radians);
+    double xVelocity = velocity * Math.cos(radians);
+
+    double timeToMaxHeight = yVelocity / 9.81;
+    double maxHeight = yVelocity * timeToMaxHeight + .5 * (-9.81) * Math.pow(timeToMaxHeight, 2);
+
+    double timeOfFlight = timeToMaxHeight * 2;
+
+    double maxDistance = xVelocity * timeOfFlight;
+    return new double[] { maxHeight, maxDistance, timeOfFlight };
+  }
+
+  /**
+   * Parses the values of one sweep parameter: a comma separated list of
+   * numbers and inclusive ranges "start:end:step", e.g. "1,2,10:50:10".
+   * Error messages never repeat the input, they end up in HTML pages.
+   * @param spec the parameter value
+   * @param limit most values accepted
+   * @return the values in order
+   * @throws IllegalArgumentException if the spec is malformed or too long
+   */
+  public static double[] values(String spec, int limit) {
+    double[] values = new double[8];
+    int count = 0;
+    for (String part : spec.split(",")) {
+      String[] range = part.trim().split(":");
+      double start;
+      double end;
+      double step = 1;
+      try {
+        start = Double.parseDouble(range[0]);
+        end = start;
+        if (range.length == 3) {
+          end = Double.parseDouble(range[1]);
+          step = Double.parseDouble(range[2]);
+        } else if (range.length != 1) {
+          throw new NumberFormatException();
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Expected numbers or ranges start:end:step");
+      }
+      if (!(step > 0) || !(end >= start) || Double.isInfinite(end)) {
+        throw new IllegalArgumentException("Ranges must go up by a positive step");
+      }
+      // the small tolerance keeps 0:1:0.1 from losing its last value to rounding
+      long steps = (long) Math.floor((end - start) / step + 1e-9);
+      if (steps >= limit || count + steps + 1 > limit) {
+        throw new IllegalArgumentException("Too many values, at most " + limit);
+      }
+      for (long i = 0; i <= steps; i++) {
+        if (count == values.length) {
+          values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[count++] = start + i * step;
+      }
+    }
+    return Arrays.copyOf(values, count);
+  }
+
+  /**
+   * Parses a sweep parameter whose values must be whole numbers >= 1.
+   */
+  public static int[] positiveInts(String name, String spec, int max, int limit) {
+    double[] values = values(spec, limit);
+    int[] ints = new int[values.length];
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != Math.rint(values[i]) || values[i] < 1 || values[i] > max) {
+        throw new IllegalArgumentException(name + " must be whole numbers from 1 to " + max);
+      }
+      ints[i] = (int) values[i];
+    }
+    return ints;
+  }
+
+  /**
+   * Rolls two dice over every combination of sides and roll counts.
+   */
+  public static class DiceBatch extends Batch {
+    private final int[] dice1;
+    private final int[] dice2;
+    private final int[] rolls;
+    private final long meanRolls;
+
+    public DiceBatch(int[] dice1, int[] dice2, int[] rolls, long seed, BodyStream out) {
+      super((long) dice1.length * dice2.length * rolls.length, seed, out);
+      this.dice1 = dice1;
+      this.dice2 = dice2;
+      this.rolls = rolls;
+      long sum = 0;
+      for (int count : rolls) {
+        sum += count;
+      }
+      this.meanRolls = Math.max(1, sum / rolls.length);
+    }
+
+    /**
+     * @return rolls of the whole batch, to check against MAX_TOTAL_ROLLS
+     */
+    public long totalRolls() {
+      return meanRolls * size;
+    }
+
+    @Override
+    protected boolean isSmall(long from, long to) {
+      return (to - from) * meanRolls <= ROLLS_PER_SLICE;
+    }
+
+    @Override
+    protected void compute(long index, SplittableRandom random, StringBuilder line) {
+      int r = (int) (index % rolls.length);
+      int d2 = (int) (index / rolls.length % dice2.length);
+      int d1 = (int) (index / rolls.length / dice2.length);
+      int sides1 = dice1[d1];
+      int sides2 = dice2[d2];
+      int count = rolls[r];
+
+      int max = 0;
+      int min = Integer.MAX_VALUE;
+      long total = 0;
+      for (int i = 0; i < count; i++) {
+        int roll = random.nextInt(sides1) + random.nextInt(sides2) + 2;
+        max = Math.max(max, roll);
+        min = Math.min(min, roll);
+        total += roll;
+      }
+      line.append("{\"index\":").append(index)
+          .append(",\"dice1\":").append(sides1)
+          .append(",\"dice2\":").append(sides2)
+          .append(",\"rolls\":").append(count)
+          .append(",\"min\":").append(min)
+          .append(",\"max\":").append(max)
+          .append(",\"average\":").append((double) total / count)
+          .append("}\n");
+    }
+  }
+
+  /**
+   * Computes a projectile for every combination of angle and velocity.
+   */
+  public static class ProjectileBatch extends Batch {
+    private final double[] angles;
+    private final double[] velocities;
+
+    public ProjectileBatch(double[] angles, double[] velocities, BodyStream out) {
+      super((long) angles.length * velocities.length, 0, out);
+      this.angles = angles;
+      this.velocities = velocities;
+    }
+
+    @Override
+    protected boolean isSmall(long from, long to) {
+      return to - from <= PROJECTILES_PER_SLICE;
+    }
+
+    @Override
+    protected void compute(long index, SplittableRandom random, StringBuilder line) {
+      double angle = angles[(int) (index / velocities.length)];
+      double velocity = velocities[(int) (index % velocities.length)];
+      double[] result = projectile(angle, velocity);
+      line.append("{\"index\":").append(index)
+          .append(",\"angle\":").append(angle)
+          .append(",\"velocity\":").append(velocity)
+          .append(",\"maxHeight\":").append(result[0])
+          .append(",\"maxDistance\":").append(result[1])
+          .append(",\"timeOfFlight\":").append(result[2])
+          .append("}\n");
+    }
+  }
+
+  /**
+   * A sweep over size parameter combinations, numbered 0 to size - 1.
+   * Subclasses say how to compute one combination and when a slice is small
+   * enough to be computed on one thread.
+   */
+  abstract static class Batch {
+    protected final long size;
+    private final long seed;
+    private final BodyStream out;
+    private volatile boolean cancelled = false;
+
+    Batch(long size, long seed, BodyStream out) {
+      this.size = size;
+      this.seed = seed;
+      this.out = out;
+    }
+
+    /**
+     * @return number of parameter combinations
+     */
+    public long size() {
+      return size;
+    }
+
+    /**
+     * Computes the whole batch on the pool and closes the stream when done.
+     * Returns right away.
+     * @param pool pool to run the slices on
+     */
+    public void start(ForkJoinPool pool) {
+      pool.execute(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          long begin = System.nanoTime();
+          try {
+            new Slice(0, size, new SplittableRandom(seed)).invoke();
+            out.write("{\"count\":" + size + ",\"millis\":"
+                + (System.nanoTime() - begin) / 1_000_000 + "}\n");
+            out.close();
+          } catch (IOException | RuntimeException e) {
+            cancelled = true;
+            out.fail(e);
+          }
+        }
+      });
+    }
+
+    protected abstract boolean isSmall(long from, long to);
+
+    /**
+     * Appends the JSON line for one combination.
+     */
+    protected abstract void compute(long index, SplittableRandom random, StringBuilder line);
+
+    /**
+     * Combinations from up to (exclusive), split in halves until small.
+     */
+    private class Slice extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final long from;
+      private final long to;
+      private final SplittableRandom random;
+
+      Slice(long from, long to, SplittableRandom random) {
+        this.from = from;
+        this.to = to;
+        this.random = random;
+      }
+
+      @Override
+      protected void compute() {
+        if (cancelled) {
+          return;
+        }
+        if (to - from > 1 && !isSmall(from, to)) {
+          long middle = (from + to) >>> 1;
+          // split before forking so every slice gets the same generator for a given seed
+          Slice right = new Slice(middle, to, random.split());
+          invokeAll(new Slice(from, middle, random), right);
+          return;
+        }
+
+        StringBuilder lines = new StringBuilder((int) Math.min(to - from, 8192) * 128);
+        for (long index = from; index < to && !cancelled; index++) {
+          Batch.this.compute(index, random, lines);
+        }
+        try {
+          out.write(lines.toString());
+        } catch (IOException e) {
+          // the client is gone, let the other slices stop too
+          cancelled = true;
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Builds a response whose body is written while it is being sent.
+ *
+ * The route sets status and headers as usual and hands over a Producer.
+ * start() returns the response right away, so the server sends the head
+ * while the producer still runs on the executor and writes the body through
+ * a BodyWriter. The time to the first byte no longer depends on how long
+ * the body is, and the body never has to be held in memory as a whole.
+ *
+ * Compression has to be decided before the first byte goes out, so unlike
+ * Compression.apply for byte bodies it happens here: if the request accepts
+ * gzip or deflate and the type compresses well, the BodyWriter compresses
+ * on the fly.
+ *
+ *   return new StreamingResponse(request, 200, "OK")
+ *       .setHeader("Content-Type", "text/html; charset=utf-8")
+ *       .start(executor, out -> out.write("..."));
+ */
+class StreamingResponse {
+  /**
+   * Writes a body. Throwing fails the stream, the client then sees the
+   * connection drop instead of a complete looking body.
+   */
+  @FunctionalInterface
+  public interface Producer {
+    void write(BodyWriter out) throws Exception;
+  }
+
+  private final HttpRequest request;
+  private final HttpResponse response;
+
+  /**
+   * @param request the request being answered, for its Accept-Encoding
+   * @param status status code, e.g. 200
+   * @param reason reason phrase, e.g. OK
+   */
+  public StreamingResponse(HttpRequest request, int status, String reason) {
+    this.request = request;
+    this.response = new HttpResponse(status, reason);
+  }
+
+  /**
+   * @return this builder so calls can be chained
+   */
+  public StreamingResponse setHeader(String name, String value) {
+    response.setHeader(name, value);
+    return this;
+  }
+
+  /**
+   * Runs the producer on the executor and returns the response to send.
+   * @param executor runs the producer, it may block while the client is slow
+   * @param producer writes the body
+   * @return the response with a stream body
+   * @throws IOException if the compressor cannot be set up
+   * @throws java.util.concurrent.RejectedExecutionException if the executor
+   *     takes no more producers; nothing has been sent yet, so the caller
+   *     can still answer 503
+   */
+  public HttpResponse start(Executor executor, Producer producer) throws IOException {
+    String encoding = null;
+    if (response.getHeader("Content-Encoding") == null
+        && Compression.isCompressible(response.getHeader("Content-Type"))) {
+      response.setHeader("Vary", "Accept-Encoding");
+      encoding = Compression.negotiate(request.getHeader("Accept-Encoding"));
+    }
+    if (encoding != null) {
+      response.setHeader("Content-Encoding", encoding);
+      String etag = response.getHeader("ETag");
+      if (etag != null) {
+        response.setHeader("ETag", Compression.etag(etag, encoding));
+      }
+    }
+
+    BodyStream stream = new BodyStream();
+    BodyWriter out = new BodyWriter(stream, encoding);
+    response.setBody(stream);
+    executor.execute(() -> {
+      try {
+        producer.write(out);
+        out.close();
+      } catch (Exception e) {
+        // not closing the writer on purpose, the body must not look complete
+        stream.fail(e);
+      }
+    });
+    return response;
+  }
+}
@@ -6,8 +6,18 @@ You can also do some other simple GET requests:
 2) json shows you the response as JSON for /random instead the html page
 3) /file/filename shows you the raw file (not as HTML)
 4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result
-5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving
-   JSON which will for now only be printed in the console. See the todo below
+5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) lists the owner
+   and name of the public repos
+6) /projectile?angle=45&velocity=100 computes the flight of a projectile
+7) /dice?dice1=6&dice2=20&rolls=10 rolls two dice
+8) /dice/batch?dice1=4,6,8&dice2=6&rolls=1000:5000:1000&seed=42 and
+   /projectile/batch?angle=0:90:5&velocity=10,50,100 compute every combination of
+   the given values in parallel and stream the results back as JSON lines
+9) /metrics shows request counts, latencies per route, bytes sent and received and the
+   cache statistics in the Prometheus text format
+
+Requests are matched to the methods answering them through a Router, see the
+router field below.
 
 The reading of the request is done "manually", meaning no library that helps making things a 
 little easier is used. This is done so you see exactly how to pars the request and 
@@ -20,54 +30,51 @@ import org.json.*;
 
 import java.io.*;
 import java.net.*;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.Map;
-import java.util.LinkedHashMap;
-import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.time.Duration;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import metrics.AsyncLog;
+import metrics.Metrics;
 
 class WebServer {
   public static void main(String args[]) {
     WebServer server = new WebServer(9000);
   }
 
+  /** Threads that run the routes, the selector thread only does I/O */
+  private static final int WORKERS = Runtime.getRuntime().availableProcessors() * 2;
+
+  /** Requests allowed to wait for a worker before the server answers 503 */
+  private static final int QUEUE_DEPTH = 1024;
+
   /**
    * Main thread
    * @param port to listen on
    */
   public WebServer(int port) {
-    ServerSocket server = null;
-    Socket sock = null;
-    InputStream in = null;
-    OutputStream out = null;
-
-    try {
-      server = new ServerSocket(port);
-      while (true) {
-        sock = server.accept();
-        out = sock.getOutputStream();
-        in = sock.getInputStream();
-        byte[] response = createResponse(in);
-        out.write(response);
-        out.flush();
-        in.close();
-        out.close();
-        sock.close();
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      if (sock != null) {
-        try {
-          server.close();
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
-      }
-    }
+    NioServer server = new NioServer(port, this::createResponse, WORKERS, QUEUE_DEPTH, metrics);
+    metrics
+        .counter("rejected_requests_total", "Requests answered 503 because all workers were busy", server::getRejected)
+        .counter("malformed_requests_total", "Requests that could not be parsed", server::getMalformed)
+        .gauge("queued_requests", "Requests waiting for a worker", server::getQueuedRequests);
+    server.run();
   }
 
   /**
@@ -83,442 +90,533 @@ class WebServer {
   private Random random = new Random();
 
   /**
-   * Reads in socket stream and generates a response
-   * @param inStream HTTP input stream from socket
-   * @return the byte encoded HTTP response
+   * Contents of the files served from disk, validated against their
+   * modification time on every request
    */
-  public byte[] createResponse(InputStream inStream) {
+  private final FileCache fileCache = new FileCache(64 * 1024 * 1024, CACHE_FILE_LIMIT);
 
-    byte[] response = null;
-    BufferedReader in = null;
+  /**
+   * Talks to the GitHub API for "/github", answers are reused for a minute
+   */
+  private final GithubClient githubClient = new GithubClient(GithubClient.GITHUB,
+      Duration.ofMinutes(1), Duration.ofSeconds(20));
 
-    try {
+  /** Files larger than this are streamed from disk instead of going through the cache */
+  private static final long CACHE_FILE_LIMIT = 8 * 1024 * 1024;
 
-      // Read from socket's input stream. Must use an
-      // InputStreamReader to bridge from streams to a reader
-      in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+  /**
+   * Counters and latency histograms served at "/metrics"
+   */
+  private final Metrics metrics = new Metrics("funhttp")
+      .counter("file_cache_hits_total", "File lookups answered from memory", () -> fileCache.getHits())
+      .counter("file_cache_misses_total", "File lookups that read the disk", () -> fileCache.getMisses())
+      .gauge("file_cache_bytes", "Bytes held by the file cache", () -> fileCache.getSize())
+      .gauge("file_cache_files", "Files held by the file cache", () -> fileCache.getCount())
+      .gauge("github_cache_queries", "GitHub answers held in the cache", () -> githubClient.getCacheSize())
+      .counter("log_dropped_total", "Log messages dropped by the rate limit", () -> AsyncLog.getDefault().getDropped());
 
-      // Get header and save the request from the GET line:
-      // example GET format: GET /index.html HTTP/1.1
+  /**
+   * Runs the batch simulations, separate from the common pool so a big
+   * sweep cannot slow down everything else that uses it
+   */
+  private final ForkJoinPool simulations = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
-      String request = null;
+  /**
+   * Writes the bodies of streamed pages. A producer blocks while its client
+   * reads slowly, so these are not the workers that run the routes
+   */
+  private final ThreadPoolExecutor producers = new ThreadPoolExecutor(WORKERS, WORKERS, 0L,
+      TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_DEPTH));
 
-      boolean done = false;
-      while (!done) {
-        String line = in.readLine();
+  /**
+   * One query parser per worker thread, the numeric routes read their
+   * parameters straight from the request bytes with it
+   */
+  private static final ThreadLocal<QueryParser> QUERY = ThreadLocal.withInitial(QueryParser::new);
 
-        System.out.println("Received: " + line);
+  /**
+   * Maps every path this server knows to the method answering it
+   */
+  private final Router router = new Router()
+      .get("/", (request, params) -> rootPage(request))
+      .get("/json", (request, params) -> randomImageJson())
+      .get("/random", (request, params) -> randomImagePage(request))
+      .get("/file/*", (request, params) -> file(request, params.get("*")))
+      .get("/multiply", (request, params) -> multiply(request.parseQuery(QUERY.get())))
+      .getAsync("/github", (request, params) -> github(request.getQueryParams()))
+      .get("/projectile", (request, params) -> projectile(request.parseQuery(QUERY.get())))
+      .get("/dice", (request, params) -> dice(request, request.parseQuery(QUERY.get())))
+      .get("/projectile/batch", (request, params) -> projectileBatch(request.getQueryParams()))
+      .get("/dice/batch", (request, params) -> diceBatch(request.getQueryParams()))
+      .get("/metrics", (request, params) -> metricsPage());
 
-        // find end of header("\n\n")
-        if (line == null || line.equals(""))
-          done = true;
-        // parse GET format ("GET <path> HTTP/1.1")
-        else if (line.startsWith("GET")) {
-          int firstSpace = line.indexOf(" ");
-          int secondSpace = line.indexOf(" ", firstSpace + 1);
+  /**
+   * Generates a response for a request already parsed by the NIO front end
+   * @param request the parsed request head
+   * @return the response, framed by the front end so the connection can be kept open
+   */
+  public CompletableFuture<HttpResponse> createResponse(HttpRequest request) {
+    // one message per request, so the rate limit of the log counts requests
+    StringBuilder log = new StringBuilder("Received: ").append(request);
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      log.append("\nReceived: ").append(header.getKey()).append(": ").append(header.getValue());
+    }
+    AsyncLog.println(log.append("\nFINISHED PARSING HEADER\n").toString());
 
-          // extract the request, basically everything after the GET up to HTTP/1.1
-          request = line.substring(firstSpace + 2, secondSpace);
+    return route(request).thenApply(response -> Compression.apply(request, response));
+  }
+
+  /**
+   * Looks the request up in the route table and runs the matching handler
+   * @param request the parsed request
+   * @return a future with the response of the route, or an error if there is none
+   */
+  private CompletableFuture<HttpResponse> route(HttpRequest request) {
+    long start = System.nanoTime();
+    Router.Match match = router.match(request.getMethod(), request.getPath());
+    CompletableFuture<HttpResponse> response;
+    if (match == null) {
+      Set<String> allowed = router.allowedMethods(request.getPath());
+      if (!allowed.isEmpty()) {
+        response = CompletableFuture.completedFuture(
+            html(405, "Method Not Allowed", "Error 405: Only " + String.join(", ", allowed) + " is supported")
+                .setHeader("Allow", String.join(", ", allowed)));
+      } else {
+        // if the request is not recognized at all
+        response = CompletableFuture.completedFuture(html(400, "Bad Request", "I am not sure what you want me to do..."));
+      }
+    } else {
+      response = match.handle(request).exceptionally(e -> {
+        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+        if (cause instanceof RejectedExecutionException) {
+          // a streamed page found no free producer, shed load like the front end does
+          return html(503, "Service Unavailable", "Error 503: Server busy, try again later");
         }
+        AsyncLog.println("Exception in route " + match.getPattern() + ": " + cause);
+        return html(500, "Internal Server Error", "<html>ERROR: " + cause.getMessage() + "</html>");
+      });
+    }
 
+    // label by route pattern, never by path or unknown method, so the number of series stays small
+    String method = match == null ? "-" : request.getMethod();
+    String pattern = match == null ? "(unmatched)" : match.getPattern();
+    return response.whenComplete((result, error) -> metrics.recordRequest(method, pattern,
+        result == null ? 500 : result.getStatus(), System.nanoTime() - start));
+  }
+
+
+  /**
+   * @return an HTML response with the given status and body
+   */
+  private static HttpResponse html(int status, String reason, String body) {
+    return new HttpResponse(status, reason)
+        .setHeader("Content-Type", "text/html; charset=utf-8")
+        .setBody(body);
+  }
+
+  /**
+   * Answers with a file: 304 Not Modified if the client's copy is current,
+   * 206 Partial Content for a Range request, otherwise the whole file.
+   * Small files come from the cache, larger ones are sent straight from
+   * disk with FileChannel.transferTo so they never go through the heap.
+   */
+  private HttpResponse serveFile(HttpRequest request, File file) throws IOException {
+    FileCache.Entry entry = null;
+    long length = file.length();
+    long lastModified = file.lastModified();
+    String etag;
+    String lastModifiedHeader;
+    if (length <= CACHE_FILE_LIMIT) {
+      entry = fileCache.get(file);
+      length = entry.getBytes().length;
+      lastModified = entry.getLastModified();
+      etag = entry.getEtag();
+      lastModifiedHeader = entry.getLastModifiedHeader();
+    } else {
+      etag = FileCache.etag(length, lastModified);
+      lastModifiedHeader = FileCache.httpDate(lastModified);
+    }
+
+    HttpResponse response;
+    if (FileCache.notModified(request, etag, lastModified)) {
+      response = new HttpResponse(304, "Not Modified");
+    } else {
+      // If-Range: only honour the range if the client's copy is the current one
+      String ifRange = request.getHeader("If-Range");
+      ByteRange range = null;
+      if (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModifiedHeader)) {
+        range = ByteRange.parse(request.getHeader("Range"), length);
       }
-      System.out.println("FINISHED PARSING HEADER\n");
 
-      // Generate an appropriate response to the user
-      if (request == null) {
-        response = "<html>Illegal request: no GET</html>".getBytes();
+      if (range == ByteRange.UNSATISFIABLE) {
+        return html(416, "Range Not Satisfiable", "Error 416: Range outside of the file")
+            .setHeader("Content-Range", range.contentRange(length));
+      }
+      long start = range == null ? 0 : range.getStart();
+      long count = range == null ? length : range.getLength();
+
+      response = range == null ? new HttpResponse(200, "OK") : new HttpResponse(206, "Partial Content")
+          .setHeader("Content-Range", range.contentRange(length));
+      String type = contentType(file);
+      response.setHeader("Content-Type", type);
+      if (entry != null && range == null && Compression.isCompressible(type)) {
+        // serve the precompressed variant, it is only compressed once per file version
+        response.setHeader("Vary", "Accept-Encoding");
+        String encoding = Compression.negotiate(request.getHeader("Accept-Encoding"));
+        byte[] variant = encoding == null ? null : fileCache.variant(entry, encoding);
+        if (variant != null && variant.length < entry.getBytes().length) {
+          response.setHeader("Content-Encoding", encoding).setBody(variant);
+          etag = Compression.etag(etag, encoding);
+        } else {
+          response.setBody(entry.getBytes());
+        }
+      } else if (entry != null) {
+        response.setBody(range == null ? entry.getBytes()
+            : Arrays.copyOfRange(entry.getBytes(), (int) start, (int) (start + count)));
       } else {
-        // create output buffer
-        StringBuilder builder = new StringBuilder();
-        // NOTE: output from buffer is at the end
-
-        if (request.length() == 0) {
-          // shows the default directory page
-
-          // opens the root.html file
-          String page = new String(readFileInBytes(new File("www/root.html")));
-          // performs a template replacement in the page
-          page = page.replace("${links}", buildFileList());
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(page);
-
-        } else if (request.equalsIgnoreCase("json")) {
-          // shows the JSON of a random image and sets the header name for that image
-
-          // pick a index from the map
-          int index = random.nextInt(_images.size());
-
-          // pull out the information
-          String header = (String) _images.keySet().toArray()[index];
-          String url = _images.get(header);
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: application/json; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("{");
-          builder.append("\"header\":\"").append(header).append("\",");
-          builder.append("\"image\":\"").append(url).append("\"");
-          builder.append("}");
-
-        } else if (request.equalsIgnoreCase("random")) {
-          // opens the random image page
-
-          // open the index.html
-          File file = new File("www/index.html");
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(new String(readFileInBytes(file)));
-
-        } else if (request.contains("file/")) {
-          // tries to find the specified file and shows it or shows an error
-
-          // take the path and clean it. try to open the file
-          File file = new File(request.replace("file/", ""));
-
-          // Generate response
-          if (file.exists()) { // success
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append(new String(readFileInBytes(file)));
-          } else { // failure
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("File not found: " + file);
-          }
-        } else if (request.contains("multiply?")) {
-          // This multiplies two numbers, there is NO error handling, so when
-          // wrong data is given this just crashes
-
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          try
-          {
-	          query_pairs = splitQuery(request.replace("multiply?", ""));
-	
-	          // extract required fields from parameters
-	          try
-	          {
-	        	  Integer num1 = Integer.parseInt(query_pairs.get("num1"));
-	        	  Integer num2 = Integer.parseInt(query_pairs.get("num2"));
-	        	  // do math
-	        	  Integer result = num1 * num2;
-	          
-	        	  // Generate response
-	        	  builder.append("HTTP/1.1 200 OK\n");
-	        	  builder.append("Content-Type: text/html; charset=utf-8\n");
-	        	  builder.append("\n");
-	        	  builder.append("Result is: " + result);
-	
-	          }
-	          catch(NumberFormatException e)
-	          {
-	        	  builder.append("HTTP/1.1 400 Incorrect Syntax\n");
-	        	  builder.append("Content-Type: text/html; charset=utf-8\n");
-	        	  builder.append("\n");
-	        	  builder.append("Error 400: Please use integers or correct variable names");
-	          }
-          }
-          catch(Exception e)
-          {
-        	  builder.append("HTTP/1.1 400 Incorrect Syntax\n");
-        	  builder.append("Content-Type: text/html; charset=utf-8\n");
-        	  builder.append("\n");
-        	  builder.append("Error 400: Please include all parameters");
-          }
-          // TODO: Include error handling here with a correct error code and
-          // a response that makes sense
-
-        } else if (request.contains("github?")) {
-          // pulls the query from the request and runs it with GitHub's REST API
-          // check out https://docs.github.com/rest/reference/
-          //
-          // HINT: REST is organized by nesting topics. Figure out the biggest one first,
-          //     then drill down to what you care about
-          // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
-          //     "/repos/OWNERNAME/REPONAME/contributors"
-
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          try
-          {
-	          query_pairs = splitQuery(request.replace("github?", ""));
-	          try
-	          {
-	        	  String json = fetchURL("https://api.github.com/" + query_pairs.get("query"));
-	        	  //System.out.println(json);
-	        	  
-	        	  JSONArray repoArray = new JSONArray(json);
-	        	  JSONArray newArray = new JSONArray();
-	        	  for(int i = 0; i < repoArray.length(); i++)
-	        	  {
-	        		  JSONObject temp = new JSONObject();
-	        		  temp.put("ownerName", repoArray.getJSONObject(i).getJSONObject("owner").getString("login"));
-	        		  temp.put("ownerID",repoArray.getJSONObject(i).getJSONObject("owner").getInt("id"));
-	        		  temp.put("repoName", repoArray.getJSONObject(i).getString("name"));
-	        		  
-	        		  newArray.put(temp);
-	        	  }
-	        	  
-	        	  builder.append("HTTP/1.1 200 OK\n");
-	        	  builder.append("Content-Type: text/html; charset=utf-8\n");
-	        	  builder.append("\n");
-	        	  for(int i = 0; i < newArray.length();i++)
-	        	  {
-	        		  builder.append("<div>").append(newArray.getJSONObject(i).getString("ownerName") + ", "
-	        				  + newArray.getJSONObject(i).getInt("ownerID") + " -> "
-	        				  + newArray.getJSONObject(i).getString("repoName")+'\n');
-	        		  builder.append('\n').append("</div>");
-	        	  }
-	          }
-	          catch(Exception e)
-	          {
-	        	  builder.append("HTTP/1.1 400 Syntax Error\n");
-	        	  builder.append("Content-Type: text/html; charset=utf-8\n");
-	        	  builder.append("\n");
-	        	  builder.append("Error 400: The directory provided does not exist or your query is misspelled");
-	        	  e.printStackTrace();
-	          }
-          }
-          catch(Exception e)
-          {
-        	  	builder.append("HTTP/1.1 400 Syntax Error\n");
-      	  		builder.append("Content-Type: text/html; charset=utf-8\n");
-      	  		builder.append("\n");
-      	  		builder.append("Please include the parameters. i.e: /github?query=user/amehlhase316/repos");
+        response.setBody(FileChannel.open(file.toPath(), StandardOpenOption.READ), start, count);
+      }
+    }
+    return response
+        .setHeader("Accept-Ranges", "bytes")
+        .setHeader("ETag", etag)
+        .setHeader("Last-Modified", lastModifiedHeader);
+  }
+
+  /**
+   * @return the content type for a file, guessed from its name
+   */
+  private static String contentType(File file) {
+    String type = URLConnection.guessContentTypeFromName(file.getName());
+    if (type == null) {
+      return "application/octet-stream";
+    }
+    return type.startsWith("text/") ? type + "; charset=utf-8" : type;
+  }
+
+  /**
+   * "/" shows the default directory page
+   */
+  private HttpResponse rootPage(HttpRequest request) throws IOException {
+    // opens the root.html file
+    FileCache.Entry template = fileCache.get(new File("www/root.html"));
+    String page = new String(template.getBytes());
+
+    // the page is sent before the file list is known, so it is tagged by the
+    // template and the time the directory last changed instead of by its content
+    String etag = template.getEtag();
+    etag = etag.substring(0, etag.length() - 1) + "-" + Long.toHexString(new File("www/").lastModified()) + "\"";
+    if (FileCache.notModified(request, etag, -1)) {
+      return new HttpResponse(304, "Not Modified").setHeader("ETag", etag);
+    }
+
+    // performs a template replacement in the page while it is sent
+    int links = page.indexOf("${links}");
+    return new StreamingResponse(request, 200, "OK")
+        .setHeader("Content-Type", "text/html; charset=utf-8")
+        .setHeader("ETag", etag)
+        .start(producers, out -> {
+          if (links < 0) {
+            out.write(page);
+            return;
           }
-          //builder.append("Check the todos mentioned in the Java source file");
-          // TODO: Parse the JSON returned by your fetch and create an appropriate
-          // response
-          // and list the owner name, owner id and name of the public repo on your webpage, e.g.
+          out.write(page, 0, links);
+          // the top of the page goes out before the directory is read
+          out.flush();
+          writeFileList(out);
+          out.write(page, links + "${links}".length(), page.length() - links - "${links}".length());
+        });
+  }
+
+  /**
+   * "/json" shows the JSON of a random image and sets the header name for that image
+   */
+  private HttpResponse randomImageJson() {
+    // pick a index from the map
+    int index = random.nextInt(_images.size());
+
+    // pull out the information
+    String header = (String) _images.keySet().toArray()[index];
+    String url = _images.get(header);
+
+    StringBuilder builder = new StringBuilder();
+    builder.append("{");
+    builder.append("\"header\":\"").append(header).append("\",");
+    builder.append("\"image\":\"").append(url).append("\"");
+    builder.append("}");
+
+    return new HttpResponse(200, "OK")
+        .setHeader("Content-Type", "application/json; charset=utf-8")
+        .setBody(builder.toString());
+  }
+
+  /**
+   * "/random" opens the random image page
+   */
+  private HttpResponse randomImagePage(HttpRequest request) throws IOException {
+    // open the index.html
+    File file = new File("www/index.html");
+    return serveFile(request, file);
+  }
+
+  /**
+   * "/file/PATH" tries to find the specified file and shows it or shows an error
+   * @param path everything after /file/
+   */
+  private HttpResponse file(HttpRequest request, String path) throws IOException {
+    // take the path and try to open the file
+    File file = new File(path);
+
+    if (file.isFile()) { // success
+      return serveFile(request, file);
+    } else { // failure
+      return html(404, "Not Found", "File not found: " + file);
+    }
+  }
+
+  /**
+   * "/multiply?num1=3&num2=4" multiplies the two numbers
+   */
+  private HttpResponse multiply(QueryParser query) {
+    if (query.size() == 0) {
+      return html(400, "Incorrect Syntax", "Error 400: Please include all parameters");
+    }
+
+    // extract required fields from parameters
+    try {
+      int num1 = query.getInt("num1");
+      int num2 = query.getInt("num2");
+      // do math
+      int result = num1 * num2;
+
+      return html(200, "OK", "Result is: " + result);
+    } catch (NumberFormatException e) {
+      return html(400, "Incorrect Syntax", "Error 400: Please use integers or correct variable names");
+    }
+  }
+
+  /**
+   * "/github?query=users/amehlhase316/repos" pulls the query and runs it with GitHub's REST API
+   * check out https://docs.github.com/rest/reference/
+   *
+   * HINT: REST is organized by nesting topics. Figure out the biggest one first,
+   *     then drill down to what you care about
+   * "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
+   *     "/repos/OWNERNAME/REPONAME/contributors"
+   *
+   * The call to GitHub does not block a worker, the response is built when
+   * the upstream answer arrives.
+   */
+  private CompletableFuture<HttpResponse> github(Map<String, String> query_pairs) {
+    if (query_pairs.get("query") == null) {
+      return CompletableFuture.completedFuture(
+          html(400, "Syntax Error", "Please include the parameters. i.e: /github?query=user/amehlhase316/repos"));
+    }
+
+    return githubClient.fetch(query_pairs.get("query"))
+        .thenApply(json -> {
+          // list the owner name, owner id and name of the public repo, e.g.
           // amehlhase, 46384989 -> memoranda
-          // amehlhase, 46384989 -> ser316examples
-          // amehlhase, 46384989 -> test316
-          
+          JSONArray repoArray = new JSONArray(json);
+          StringBuilder builder = new StringBuilder();
+          for (int i = 0; i < repoArray.length(); i++) {
+            JSONObject repo = repoArray.getJSONObject(i);
+            builder.append("<div>").append(repo.getJSONObject("owner").getString("login") + ", "
+                + repo.getJSONObject("owner").getInt("id") + " -> "
+                + repo.getString("name") + '\n');
+            builder.append('\n').append("</div>");
+          }
+          return html(200, "OK", builder.toString());
+        })
+        .exceptionally(e -> {
+          AsyncLog.println("Exception in github request: " + e.getMessage());
+          return html(400, "Syntax Error", "Error 400: The directory provided does not exist or your query is misspelled");
+        });
+  }
 
-        }
-        else if(request.contains("projectile?")) {
-        	Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-            // extract path parameters
-        	try
-        	{
-            query_pairs = splitQuery(request.replace("projectile?", ""));
-            
-            Double angle = 0.0;
-            Double velocity = 0.0;
-            boolean pass = false;
-            boolean caught = false;
-            try
-            {
-            	angle = Double.parseDouble(query_pairs.get("angle"));
-            	velocity = Double.parseDouble(query_pairs.get("velocity"));
-            	pass = true;
-            	
-            } catch (NumberFormatException e)
-            {
-            	builder.append("HTTP/1.1 400 Syntax Error\n");
-          	  	builder.append("Content-Type: text/html; charset=utf-8\n");
-          	  	builder.append("\n");
-          	  	builder.append("Error 400: Please make sure you are using numbers for the values and that the parameter names are correctly spelled");
-          	  	caught = true;
-            }
-            
-            boolean goodAngle = true;
-            boolean goodVelocity = true;
-            if(angle < 0 || angle > 90)
-            {
-            	goodAngle = false;
-            }
-            if(velocity < 0)
-            {
-            	goodVelocity = false;
-            }
-            if(goodAngle == false || goodVelocity == false)
-            {
-            	pass = false;
-            }
-            
-            if(pass == true)
-            {
-            	double radians = Math.toRadians(angle);
-            	double maxHeight = 0;
-            	double maxDistance = 0;
-            	double timeOfFlight = 0;
-            	
-            	double yVelocity =  velocity * Math.sin(radians);
-            	double xVelocity = velocity * Math.cos(radians);
-            	
-            	double timeToMaxHeight = yVelocity / 9.81;
-            	maxHeight = yVelocity * timeToMaxHeight + .5 * (-9.81) * Math.pow(timeToMaxHeight, 2);
-            	
-            	timeOfFlight = timeToMaxHeight * 2;
-            	
-            	maxDistance = xVelocity * timeOfFlight;
-            	
-            	builder.append("HTTP/1.1 200 OK\n");
-          	  	builder.append("Content-Type: text/html; charset=utf-8\n");
-          	  	builder.append("\n");
-          	  	builder.append(String.format("<div>The max height of the projectile is: %.2f meters </div>",maxHeight));
-          	  	builder.append(String.format("<div>The max distance of the projectile is: %.2f meters </div>",maxDistance));
-          	  	builder.append(String.format("<div>The total time of flight of the projectile is: %.2f seconds </div>",timeOfFlight));
-            }
-            else
-            {
-            	if(caught == false)
-            	{
-            		builder.append("HTTP/1.1 400 Syntax Error\n");
-            		builder.append("Content-Type: text/html; charset=utf-8\n");
-          	  		builder.append("\n");
-            	}
-          	  	if(goodAngle == false)
-          	  		builder.append("<div>Please make sure the angle is between 0 and 90.</div>");
-          	  	if(goodVelocity == false)
-          	  		builder.append("<div>Please make sure that the velocity is greater than 0.</div>");
+  /**
+   * "/projectile?angle=45&velocity=100" computes the flight of a projectile
+   */
+  private HttpResponse projectile(QueryParser query) {
+    if (!query.has("angle") || !query.has("velocity")) {
+      return html(400, "Syntax Error", "Please include the parameters. i.e: /projectile?angle=45&velocity=100");
+    }
+
+    double angle;
+    double velocity;
+    try {
+      angle = query.getDouble("angle");
+      velocity = query.getDouble("velocity");
+    } catch (NumberFormatException e) {
+      return html(400, "Syntax Error", "Error 400: Please make sure you are using numbers for the values and that the parameter names are correctly spelled");
+    }
+
+    boolean goodAngle = angle >= 0 && angle <= 90;
+    boolean goodVelocity = velocity >= 0;
+    if (!goodAngle || !goodVelocity) {
+      StringBuilder builder = new StringBuilder();
+      if (!goodAngle)
+        builder.append("<div>Please make sure the angle is between 0 and 90.</div>");
+      if (!goodVelocity)
+        builder.append("<div>Please make sure that the velocity is greater than 0.</div>");
+      return html(400, "Syntax Error", builder.toString());
+    }
+
+    double[] flight = Simulations.projectile(angle, velocity);
+    double maxHeight = flight[0];
+    double maxDistance = flight[1];
+    double timeOfFlight = flight[2];
+
+    StringBuilder builder = new StringBuilder();
+    builder.append(String.format("<div>The max height of the projectile is: %.2f meters </div>", maxHeight));
+    builder.append(String.format("<div>The max distance of the projectile is: %.2f meters </div>", maxDistance));
+    builder.append(String.format("<div>The total time of flight of the projectile is: %.2f seconds </div>", timeOfFlight));
+    return html(200, "OK", builder.toString());
+  }
+
+  /**
+   * "/dice?dice1=6&dice2=20&rolls=10" rolls two dice a number of times
+   */
+  private HttpResponse dice(HttpRequest request, QueryParser query) throws IOException {
+    if (query.size() < 3) {
+      return html(400, "Syntax Error", "Please include the parameters. i.e: /dice?dice1=6&dice2=20&rolls=10");
+    }
+
+    int numSides1;
+    int numSides2;
+    int numRolls;
+    try {
+      numSides1 = query.getInt("dice1");
+      numSides2 = query.getInt("dice2");
+      numRolls = query.getInt("rolls");
+    } catch (NumberFormatException e) {
+      return html(400, "Syntax Error", "Error 400: Please make sure you are using numbers for the values and that the parameter names are correctly spelled");
+    }
+
+    if (numSides1 < 1 || numSides2 < 1 || numRolls < 1) {
+      return html(400, "Syntax Error", "Error 400: Please use a number greater than 0 for all variables");
+    }
+
+    // the rolls are written as they are made, a million of them never sit in memory at once
+    return new StreamingResponse(request, 200, "OK")
+        .setHeader("Content-Type", "text/html; charset=utf-8")
+        .start(producers, out -> {
+          int maxValue = 0;
+          long totalValue = 0;
+
+          // ThreadLocalRandom, Math.random() shares one generator between all workers
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          out.write("<div>Rolls: [");
+          for (int i = 0; i < numRolls; i++) {
+            int roll1 = random.nextInt(numSides1) + 1;
+            int roll2 = random.nextInt(numSides2) + 1;
+            int rollValue = roll1 + roll2;
+
+            if (rollValue > maxValue)
+              maxValue = rollValue;
+
+            totalValue += rollValue;
+            if (i > 0) {
+              out.write(", ");
             }
-        	}
-        	catch(Exception e)
-        	{
-        		builder.append("HTTP/1.1 400 Syntax Error\n");
-        	  	builder.append("Content-Type: text/html; charset=utf-8\n");
-        	  	builder.append("\n");
-        	  	builder.append("Please include the parameters. i.e: /projectile?angle=45&velocity=100");
-        	}
+            out.write(Integer.toString(rollValue));
+          }
+          double averageValue = totalValue * 1.0 / numRolls;
+
+          out.write("]</div>");
+          out.write(String.format("<div>Largest roll was: %1d</div>", maxValue));
+          out.write(String.format("<div>The average roll was: %.2f</div>", averageValue));
+        });
+  }
+
+  /**
+   * "/projectile/batch?angle=0:90:5&velocity=10,50,100" computes a projectile for every
+   * combination of angle and velocity. Values are lists of numbers and ranges start:end:step.
+   */
+  private HttpResponse projectileBatch(Map<String, String> query_pairs) {
+    if (query_pairs.get("angle") == null || query_pairs.get("velocity") == null) {
+      return html(400, "Syntax Error", "Please include the parameters. i.e: /projectile/batch?angle=0:90:5&velocity=10,50,100");
+    }
+
+    BodyStream out = new BodyStream();
+    Simulations.ProjectileBatch batch;
+    try {
+      double[] angles = Simulations.values(query_pairs.get("angle"), Simulations.MAX_SETS);
+      double[] velocities = Simulations.values(query_pairs.get("velocity"), Simulations.MAX_SETS);
+      for (double angle : angles) {
+        if (angle < 0 || angle > 90) {
+          throw new IllegalArgumentException("Please make sure all angles are between 0 and 90");
         }
-        else if(request.contains("dice?"))
-        {
-        	Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-            // extract path parameters
-        	try
-        	{
-	            query_pairs = splitQuery(request.replace("dice?", ""));
-	            if(query_pairs.size() < 3)
-	            {
-	            	builder.append("HTTP/1.1 400 Syntax Error\n");
-	          	  	builder.append("Content-Type: text/html; charset=utf-8\n");
-	          	  	builder.append("\n");
-	          	  	builder.append("Please include the parameters. i.e: /dice?dice1=6&dice2=20&roll=10");
-	            }
-	            else
-	            {
-			        int numSides1 = 0;
-			        int numSides2 = 0;
-			        int numRolls = 0;
-			        boolean valid = false;
-			        try
-			        {
-			        	numSides1 = Integer.parseInt(query_pairs.get("dice1"));
-			        	numSides2 = Integer.parseInt(query_pairs.get("dice2"));
-			        	numRolls = Integer.parseInt(query_pairs.get("rolls"));
-			        	valid = true;
-			        }
-			        catch (NumberFormatException e)
-			        {
-			        	builder.append("HTTP/1.1 400 Syntax Error\n");
-			      	  	builder.append("Content-Type: text/html; charset=utf-8\n");
-			      	  	builder.append("\n");
-			      	  	builder.append("Error 400: Please make sure you are using numbers for the values and that the parameter names are correctly spelled");
-			        }
-			        
-			        if(valid == true && (numSides1 < 1 || numSides2 < 1 || numRolls < 1))
-			        {
-			        	builder.append("HTTP/1.1 400 Syntax Error\n");
-			      	  	builder.append("Content-Type: text/html; charset=utf-8\n");
-			      	  	builder.append("\n");
-			      	  	builder.append("Error 400: Please use a number greater than 0 for all variables");
-			        }
-			        else if(valid == true)
-			        {
-			        	int[] rollValues = new int[numRolls];
-			        	int roll1 = 0;
-			        	int roll2 = 0;
-			        	int maxValue = 0;
-			        	int totalValue = 0;
-			        	String rolls = "";
-			        	
-			        	for(int i = 0; i < numRolls; i++)
-			        	{
-			        		roll1 = (int)(Math.random()*numSides1)+1;
-			        		roll2 = (int)(Math.random()*numSides2)+1;
-			        		rollValues[i] = roll1+roll2;
-			        		
-			        		if(rollValues[i] > maxValue)
-			        			maxValue = rollValues[i];
-			        		
-			        		totalValue += rollValues[i];
-			        		if(i + 1 != numRolls)
-			        		{
-			        			rolls += rollValues[i] + ", ";
-			        		}
-			        		else
-			        		{
-			        			rolls += rollValues[i];
-			        		}
-			        	}
-			        	double averageValue = totalValue * 1.0 / numRolls;
-			        	
-			        	builder.append("HTTP/1.1 200 OK\n");
-			      	  	builder.append("Content-Type: text/html; charset=utf-8\n");
-			      	  	builder.append("\n");
-			      	  	builder.append("<div>Rolls: ["+rolls+"]</div>");
-			      	  	builder.append(String.format("<div>Largest roll was: %1d</div>", maxValue));
-			      	  	builder.append(String.format("<div>The average roll was: %.2f</div>", averageValue));
-			        }
-	            }
-        	}
-        	catch(Exception e)
-        	{
-        		builder.append("HTTP/1.1 400 Syntax Error\n");
-        	  	builder.append("Content-Type: text/html; charset=utf-8\n");
-        	  	builder.append("\n");
-        	  	builder.append("Please include the parameters. i.e: /dice?dice1=6&dice2=20&roll=10");
-        	}
+      }
+      for (double velocity : velocities) {
+        if (velocity < 0) {
+          throw new IllegalArgumentException("Please make sure all velocities are greater than 0");
         }
-        else {
-          // if the request is not recognized at all
+      }
+      batch = new Simulations.ProjectileBatch(angles, velocities, out);
+    } catch (IllegalArgumentException e) {
+      return html(400, "Syntax Error", "Error 400: " + e.getMessage());
+    }
+    if (batch.size() > Simulations.MAX_SETS) {
+      return html(400, "Syntax Error", "Error 400: At most " + Simulations.MAX_SETS + " combinations per batch");
+    }
+    return streamBatch(batch, out);
+  }
 
-          builder.append("HTTP/1.1 400 Bad Request\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("I am not sure what you want me to do...");
-        }
+  /**
+   * "/dice/batch?dice1=4,6,8&dice2=6&rolls=1000:5000:1000&seed=42" rolls two dice for every
+   * combination of sides and roll counts. The seed is optional and makes the results repeatable.
+   */
+  private HttpResponse diceBatch(Map<String, String> query_pairs) {
+    if (query_pairs.get("dice1") == null || query_pairs.get("dice2") == null || query_pairs.get("rolls") == null) {
+      return html(400, "Syntax Error", "Please include the parameters. i.e: /dice/batch?dice1=4,6,8&dice2=6&rolls=1000:5000:1000");
+    }
 
-        // Output
-        response = builder.toString().getBytes();
+    BodyStream out = new BodyStream();
+    Simulations.DiceBatch batch;
+    try {
+      int[] dice1 = Simulations.positiveInts("dice1", query_pairs.get("dice1"), Integer.MAX_VALUE, Simulations.MAX_SETS);
+      int[] dice2 = Simulations.positiveInts("dice2", query_pairs.get("dice2"), Integer.MAX_VALUE, Simulations.MAX_SETS);
+      int[] rolls = Simulations.positiveInts("rolls", query_pairs.get("rolls"), Simulations.MAX_ROLLS, Simulations.MAX_SETS);
+      long seed;
+      try {
+        seed = query_pairs.get("seed") == null
+            ? ThreadLocalRandom.current().nextLong() : Long.parseLong(query_pairs.get("seed"));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("The seed must be a whole number");
       }
-    } catch (IOException e) {
-      e.printStackTrace();
-      response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
+      batch = new Simulations.DiceBatch(dice1, dice2, rolls, seed, out);
+    } catch (IllegalArgumentException e) {
+      return html(400, "Syntax Error", "Error 400: " + e.getMessage());
     }
+    if (batch.size() > Simulations.MAX_SETS) {
+      return html(400, "Syntax Error", "Error 400: At most " + Simulations.MAX_SETS + " combinations per batch");
+    }
+    if (batch.totalRolls() > Simulations.MAX_TOTAL_ROLLS) {
+      return html(400, "Syntax Error", "Error 400: At most " + Simulations.MAX_TOTAL_ROLLS + " rolls per batch");
+    }
+    return streamBatch(batch, out);
+  }
 
-    return response;
+  /**
+   * Starts a batch on the simulation pool and answers with its results
+   * as they come in.
+   */
+  private HttpResponse streamBatch(Simulations.Batch batch, BodyStream out) {
+    batch.start(simulations);
+    return new HttpResponse(200, "OK")
+        .setHeader("Content-Type", "application/x-ndjson; charset=utf-8")
+        .setBody(out);
   }
 
   /**
-   * Method to read in a query and split it up correctly
-   * @param query parameters on path
-   * @return Map of all parameters and their specific values
-   * @throws UnsupportedEncodingException If the URLs aren't encoded with UTF-8
+   * "/metrics" lists the counters and latencies in the Prometheus text format
    */
-  public static Map<String, String> splitQuery(String query) throws UnsupportedEncodingException {
-    Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-    // "q=hello+world%2Fme&bob=5"
-    String[] pairs = query.split("&");
-    // ["q=hello+world%2Fme", "bob=5"]
-    for (String pair : pairs) {
-      int idx = pair.indexOf("=");
-      query_pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"),
-          URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
-    }
-    // {{"q", "hello world/me"}, {"bob","5"}}
-    return query_pairs;
+  private HttpResponse metricsPage() {
+    return new HttpResponse(200, "OK")
+        .setHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+        .setHeader("Cache-Control", "no-store")
+        .setBody(metrics.render());
   }
 
   /**
@@ -526,23 +624,32 @@ class WebServer {
    * @return HTML string output of file list
    */
   public static String buildFileList() {
-    ArrayList<String> filenames = new ArrayList<>();
-
-    // Creating a File object for directory
-    File directoryPath = new File("www/");
-    filenames.addAll(Arrays.asList(directoryPath.list()));
+    StringWriter list = new StringWriter();
+    try {
+      writeFileList(list);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return list.toString();
+  }
 
-    if (filenames.size() > 0) {
-      StringBuilder builder = new StringBuilder();
-      builder.append("<ul>\n");
-      for (var filename : filenames) {
-        builder.append("<li>" + filename + "</li>");
+  /**
+   * Writes the HTML file list of the www directory one entry at a time,
+   * the directory is never listed into memory as a whole
+   * @param out where the list goes
+   */
+  public static void writeFileList(Writer out) throws IOException {
+    boolean empty = true;
+    try (DirectoryStream<Path> directory = Files.newDirectoryStream(Paths.get("www/"))) {
+      for (Path file : directory) {
+        if (empty) {
+          out.write("<ul>\n");
+          empty = false;
+        }
+        out.write("<li>" + file.getFileName() + "</li>");
       }
-      builder.append("</ul>\n");
-      return builder.toString();
-    } else {
-      return "No files in directory";
     }
+    out.write(empty ? "No files in directory" : "</ul>\n");
   }
 
   /**
@@ -567,42 +674,4 @@ class WebServer {
 
     return result;
   }
-
-  /**
-   *
-   * a method to make a web request. Note that this method will block execution
-   * for up to 20 seconds while the request is being satisfied. Better to use a
-   * non-blocking request.
-   * 
-   * @param aUrl the String indicating the query url for the OMDb api search
-   * @return the String result of the http request.
-   *
-   **/
-  public String fetchURL(String aUrl) {
-    StringBuilder sb = new StringBuilder();
-    URLConnection conn = null;
-    InputStreamReader in = null;
-    try {
-      URL url = new URL(aUrl);
-      conn =  url.openConnection();
-      if (conn != null)
-        conn.setReadTimeout(20 * 1000); // timeout in 20 seconds
-      if (conn != null && conn.getInputStream() != null) {
-        in = new InputStreamReader(conn.getInputStream(), Charset.defaultCharset());
-        BufferedReader br = new BufferedReader(in);
-        if (br != null) {
-          int ch;
-          // read the next character until end of reader
-          while ((ch = br.read()) != -1) {
-            sb.append((char) ch);
-          }
-          br.close();
-        }
-      }
-      in.close();
-    } catch (Exception ex) {
-      System.out.println("Exception in url request:" + ex.getMessage());
-    }
-    return sb.toString();
-  }
 }
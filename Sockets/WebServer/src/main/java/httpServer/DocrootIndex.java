@@ -0,0 +1,261 @@
+package httpServer;
+
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Every file below the document root, looked up by its request path.
+ *
+ * The tree is walked once at startup. Files up to maxFileSize are mapped
+ * into memory with FileChannel.map until maxMappedBytes are mapped, so a
+ * request for them is a map lookup and a write from the mapped pages:
+ * no stat, no open, no read and no copy onto the heap. Larger files are
+ * only listed and read from disk when requested. A path that is not in the
+ * index does not exist as far as the server is concerned, which also keeps
+ * requests like "../secret" or "//etc/passwd" out of the file system.
+ *
+ * A WatchService thread keeps the index current: a created or modified
+ * file is mapped again, a deleted one removed, a new directory walked.
+ * Hidden files and directories, whose names start with a dot, are skipped.
+ *
+ * A mapped file that is truncated by another process before the watcher
+ * has caught up makes reads past the new end fail with an InternalError,
+ * the server treats that like a broken connection.
+ */
+class DocrootIndex {
+
+    /**
+     * One file: its size, its type and, if it is mapped, its contents
+     */
+    static class Entry {
+        private final Path path;
+        private final long size;
+        private final String contentType;
+        private final MappedByteBuffer mapped;
+
+        Entry(Path path, long size, String contentType, MappedByteBuffer mapped) {
+            this.path = path;
+            this.size = size;
+            this.contentType = contentType;
+            this.mapped = mapped;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public boolean isMapped() {
+            return mapped != null;
+        }
+
+        /**
+         * @return a view of the mapped contents with its own position, or
+         *     null if the file is not mapped
+         */
+        public ByteBuffer contents() {
+            return mapped == null ? null : mapped.duplicate();
+        }
+    }
+
+    private final Path root;
+    private final long maxFileSize;
+    private final long maxMappedBytes;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final WatchService watcher;
+
+    /**
+     * Indexes the tree below root and starts watching it.
+     * @param root the document root
+     * @param maxFileSize files larger than this are not mapped
+     * @param maxMappedBytes most bytes mapped at the same time
+     * @throws IOException if the root cannot be read
+     */
+    public DocrootIndex(Path root, long maxFileSize, long maxMappedBytes) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.maxFileSize = maxFileSize;
+        this.maxMappedBytes = maxMappedBytes;
+        this.watcher = this.root.getFileSystem().newWatchService();
+        addTree(this.root);
+
+        Thread thread = new Thread(this::watch, "docroot-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param name the request path without the leading slash, e.g. "www/index.html"
+     * @return the file or null if there is no such file
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public int getCount() {
+        return entries.size();
+    }
+
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    /**
+     * Walks a directory and indexes and watches everything in it.
+     */
+    private void addTree(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(root) && isHidden(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                directories.put(dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !isHidden(file)) {
+                    add(file, attrs.size());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // unreadable, leave it out
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Indexes one file, mapping it if it is small enough and there is room.
+     */
+    private void add(Path file, long size) {
+        MappedByteBuffer mapped = null;
+        if (size <= maxFileSize && mappedBytes.addAndGet(size) <= maxMappedBytes) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                // the mapping stays valid after the channel is closed
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IOException e) {
+                // gone or unreadable since it was listed, it is indexed unmapped
+            }
+        }
+        if (mapped == null && size <= maxFileSize) {
+            mappedBytes.addAndGet(-size);
+        }
+
+        String contentType = URLConnection.guessContentTypeFromName(file.getFileName().toString());
+        Entry old = entries.put(name(file), new Entry(file, size, contentType == null
+            ? "application/octet-stream" : contentType, mapped));
+        release(old);
+    }
+
+    private void remove(Path file) {
+        release(entries.remove(name(file)));
+    }
+
+    /**
+     * Stops counting a replaced entry, its pages are unmapped once the
+     * requests still sending it are done and it is garbage collected
+     */
+    private void release(Entry entry) {
+        if (entry != null && entry.isMapped()) {
+            mappedBytes.addAndGet(-entry.getSize());
+        }
+    }
+
+    /**
+     * Runs on the watcher thread: applies the changes the OS reports.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = directories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    if (event.kind() == OVERFLOW || dir == null) {
+                        rescan();
+                        break;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    if (isHidden(path)) {
+                        continue;
+                    }
+                    if (event.kind() == ENTRY_DELETE) {
+                        remove(path);
+                        // a deleted directory takes its files with it
+                        String prefix = name(path) + "/";
+                        for (String name : entries.keySet()) {
+                            if (name.startsWith(prefix)) {
+                                release(entries.remove(name));
+                            }
+                        }
+                    } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        if (event.kind() == ENTRY_CREATE) {
+                            addTree(path);
+                        }
+                    } else if (Files.isRegularFile(path)) {
+                        add(path, Files.size(path));
+                    }
+                } catch (IOException e) {
+                    // changed again while we looked, the next event fixes it
+                }
+            }
+            if (!key.reset()) {
+                directories.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Events were lost, rebuild the index. Requests keep using the old
+     * entries until they are replaced.
+     */
+    private void rescan() throws IOException {
+        for (String name : entries.keySet()) {
+            if (!Files.isRegularFile(root.resolve(name))) {
+                release(entries.remove(name));
+            }
+        }
+        for (WatchKey key : directories.keySet()) {
+            key.cancel();
+        }
+        directories.clear();
+        addTree(root);
+    }
+
+    private String name(Path file) {
+        return root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    private static boolean isHidden(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+}
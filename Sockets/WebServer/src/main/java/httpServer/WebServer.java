@@ -2,37 +2,260 @@ package httpServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.AsyncLog;
+import metrics.Metrics;
 
+/**
+ * A static file server with one connection per request.
+ *
+ * One acceptor thread takes the connections and hands them to a fixed pool
+ * of workers. At most queueDepth connections wait for a worker; when the
+ * queue is full the acceptor answers 503 right away instead of letting the
+ * backlog grow, so a client sees an overloaded server at once rather than
+ * a timeout. A client that does not send its request within READ_TIMEOUT
+ * gets 408, and a client that does not read the response within
+ * WRITE_TIMEOUT is disconnected, so slow clients cannot hold workers.
+ *
+ * Files are looked up in a DocrootIndex built at startup, most of them are
+ * written straight from memory mapped pages with one gathering write of
+ * head and contents.
+ */
 class WebServer {
 
+    /** Default number of worker threads */
+    public static final int WORKERS = Runtime.getRuntime().availableProcessors() * 2;
+
+    /** Default number of connections that may wait for a worker */
+    public static final int QUEUE_DEPTH = 256;
+
+    /** Connections the OS may hold before the acceptor takes them */
+    private static final int BACKLOG = 1024;
+
+    /** Milliseconds a client may take to send its request */
+    private static final int READ_TIMEOUT = 10_000;
+
+    /** Milliseconds a client may take to read the response */
+    private static final int WRITE_TIMEOUT = 10_000;
+
+    /** Milliseconds a rejected connection stays open to read the request */
+    private static final int REJECT_LINGER = 100;
+
+    /** Most request bytes read from a rejected connection */
+    private static final int REJECT_DRAIN = 64 * 1024;
+
+    /** Larger files are read from disk on every request instead of mapped */
+    private static final long MAX_MAPPED_FILE = 16 * 1024 * 1024;
+
+    /** Most bytes of the docroot mapped at the same time */
+    private static final long MAX_MAPPED = 512L * 1024 * 1024;
+
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n"
+        + "Content-Type: text/html\r\n"
+        + "Content-Length: 37\r\n"
+        + "Retry-After: 1\r\n"
+        + "Connection: close\r\n"
+        + "\r\n"
+        + "<html>Server busy, try again.</html>\n").getBytes();
+
+    private final LongAdder rejected = new LongAdder();
+
+    // every file below the current directory, mapped into memory if small enough
+    private final DocrootIndex docroot;
+
+    // request counts, latencies and bytes, served at /metrics
+    private final Metrics metrics = new Metrics("simplehttp")
+        .counter("log_dropped_total", "Log messages dropped by the rate limit",
+                 () -> AsyncLog.getDefault().getDropped())
+        .counter("rejected_requests_total", "Connections answered 503 because the queue was full",
+                 rejected::sum);
+
+    // closes connections whose response could not be written in time
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "write-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     // 
     public static void main(String args[]) {
-        if (args.length != 1) {
-            System.out.println("Usage: WebServer <port>");
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Usage: WebServer <port> [workers [queueDepth]]");
             System.exit(1);
         }
         
-        WebServer server = new WebServer(Integer.parseInt(args[0]));
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : WORKERS;
+        int queueDepth = args.length > 2 ? Integer.parseInt(args[2]) : QUEUE_DEPTH;
+        WebServer server = new WebServer(Integer.parseInt(args[0]), workers, queueDepth);
     }
 
     public WebServer(int port) {
+        this(port, WORKERS, QUEUE_DEPTH);
+    }
+
+    /**
+     * Accepts connections forever on the calling thread
+     * @param port to listen on
+     * @param workers threads answering requests
+     * @param queueDepth connections that may wait for a worker before 503
+     */
+    public WebServer(int port, int workers, int queueDepth) {
         
-        ServerSocket    server = null;
-        Socket          sock = null;
-        InputStream     in = null;
-        OutputStream    out = null;
+        // our docroot is the current dir
+        try {
+            docroot = new DocrootIndex(Paths.get(""), MAX_MAPPED_FILE, MAX_MAPPED);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        metrics
+            .gauge("docroot_files", "Files in the docroot index", () -> docroot.getCount())
+            .gauge("docroot_mapped_bytes", "Bytes of the docroot mapped into memory", () -> docroot.getMappedBytes());
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueDepth));
+        metrics.gauge("queued_requests", "Connections waiting for a worker", () -> pool.getQueue().size());
 
         //*** Open the server socket on the specified port
-        //*** Loop forever accepting socket requests
-        //***   Get the response bytes from createResponse
-        //***   Write the bytes to the socket's output stream
-        //***   close streams and socket appropriatels
+        // a blocking channel rather than a ServerSocket, so mapped files can be written without copying
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), BACKLOG);
+            AsyncLog.println("Listening on port " + port + " with " + workers + " workers, "
+                             + docroot.getCount() + " files indexed");
+
+            //*** Loop forever accepting socket requests
+            while (true) {
+                SocketChannel sock = server.accept();
+                metrics.connectionOpened();
+                try {
+                    pool.execute(() -> serve(sock));
+                } catch (RejectedExecutionException e) {
+                    // every worker is busy and the queue is full, answer 503 without waiting
+                    rejected.increment();
+                    reject(sock);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Runs on a worker: answers one request and closes the connection
+     */
+    private void serve(SocketChannel sock) {
+        try (InputStream in = sock.socket().getInputStream()) {
+
+            sock.socket().setSoTimeout(READ_TIMEOUT);
+            //***   Get the response head and body from respond
+            ByteBuffer[] response = respond(in);
+
+            //***   Write the bytes to the socket
+            // a blocking write has no timeout of its own, so a timer closes the socket instead
+            ScheduledFuture<?> deadline = timeouts.schedule(() -> close(sock), WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+            try {
+                // check the head too, an empty file has no body to wait for
+                while (response[0].hasRemaining() || response[1].hasRemaining()) {
+                    sock.write(response);
+                }
+            } finally {
+                deadline.cancel(false);
+            }
+        } catch (IOException | InternalError e) {
+            // the client went away or was too slow, or a mapped file was
+            // truncated under us, nothing left to answer
+        } finally {
+            //***   close streams and socket appropriately
+            close(sock);
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Runs on the acceptor: answers 503 and closes the connection. The answer
+     * fits into the socket buffer, so the write does not block.
+     *
+     * Closing a socket with the request still unread sends a reset, and a
+     * reset can make the client drop the 503 before reading it. So the
+     * output is shut down after the answer and the connection closed only
+     * REJECT_LINGER later by the timer thread, after reading the request.
+     */
+    private void reject(SocketChannel sock) {
+        try {
+            sock.write(ByteBuffer.wrap(SERVICE_UNAVAILABLE));
+            metrics.addBytesOut(SERVICE_UNAVAILABLE.length);
+            sock.shutdownOutput();
+            sock.configureBlocking(false);
+            timeouts.schedule(() -> drainAndClose(sock), REJECT_LINGER, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            // the client is gone already
+            close(sock);
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Runs on the timer thread: reads what the client sent, up to
+     * REJECT_DRAIN bytes, and closes the connection.
+     */
+    private void drainAndClose(SocketChannel sock) {
+        try {
+            ByteBuffer discard = ByteBuffer.allocate(4096);
+            int drained = 0;
+            int read;
+            while (drained < REJECT_DRAIN && (read = sock.read(discard)) > 0) {
+                drained += read;
+                discard.clear();
+            }
+        } catch (IOException e) {
+            // the client is gone already
+        } finally {
+            close(sock);
+            metrics.connectionClosed();
+        }
+    }
+
+    private static void close(SocketChannel sock) {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
     }
 
 
     public byte[] createResponse(InputStream inStream) {
+        ByteBuffer[] response = respond(inStream);
+        ByteBuffer message = ByteBuffer.allocate(response[0].remaining() + response[1].remaining());
+        message.put(response[0]).put(response[1]);
+        return message.array();
+    }
+
+    /**
+     * Reads a request and generates the response to it
+     * @param inStream the request
+     * @return the head and the body of the response
+     */
+    ByteBuffer[] respond(InputStream inStream) {
 
+        long start = System.nanoTime();
+        String route = "(none)";
+        int status = 400;
+        String contentType = "text/html";
         byte[] response = null;
+        ByteBuffer contents = null;
         BufferedReader in = null;
 
         try {
@@ -51,7 +274,7 @@ class WebServer {
             while (!done) {
                 String line = in.readLine();
 
-System.out.println("Received: " + line);
+                AsyncLog.println("Received: " + line);
                 if (line == null || line.equals(""))
                     done = true;
 
@@ -64,31 +287,72 @@ System.out.println("Received: " + line);
                 }
 
             }
-System.out.println("FINISHED\n");
+            AsyncLog.println("FINISHED\n");
 
 
             // Generate an appropriate response to the user
             if (filename == null) {
                 response =
                     "<html>Illegal request: no GET</html>".getBytes();
+            } else if (filename.equals("metrics")) {
+                route = "/metrics";
+                status = 200;
+                contentType = "text/plain; version=0.0.4; charset=utf-8";
+                response = metrics.render().getBytes("UTF-8");
             } else {
             
-                File file = new File(filename);
-                if (!file.exists()) {
+                route = "(file)";
+                // a map lookup, the file system is only asked for files too big to map
+                DocrootIndex.Entry file = docroot.get(filename);
+                if (file == null) {
+                    status = 404;
                     response = ("<html>File not found: " +
                                 filename + "</html>").getBytes();
                 } else {
-                    response = readFileInBytes(file);
+                    status = 200;
+                    contentType = file.getContentType();
+                    if (file.isMapped()) {
+                        contents = file.contents();
+                    } else {
+                        response = readFileInBytes(file.getPath().toFile());
+                    }
                 }
             }
         }
+        catch (SocketTimeoutException e) {
+            // the client did not finish its request within READ_TIMEOUT
+            status = 408;
+            response = "<html>Request timed out</html>".getBytes();
+        }
         catch (IOException e) {
             e.printStackTrace();
+            status = 500;
             response = ("<html>ERROR: " +
                         e.getMessage() + "</html>").getBytes();
         }
 
-        return response;
+        ByteBuffer body = contents != null ? contents : ByteBuffer.wrap(response);
+
+        // status line and headers, the connection is closed after every response
+        byte[] head = ("HTTP/1.1 " + status + " " + reason(status) + "\r\n"
+                       + "Content-Type: " + contentType + "\r\n"
+                       + "Content-Length: " + body.remaining() + "\r\n"
+                       + "Connection: close\r\n"
+                       + "\r\n").getBytes();
+
+        metrics.recordRequest("GET", route, status, System.nanoTime() - start);
+        metrics.addBytesOut(head.length + body.remaining());
+        return new ByteBuffer[] { ByteBuffer.wrap(head), body };
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 408: return "Request Timeout";
+            default: return "Internal Server Error";
+        }
     }
 
     /** Read bytes from a file and return them in the byte array.
@@ -0,0 +1,129 @@
+package metrics;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Console logging that never makes a request thread wait.
+ *
+ * System.out.println takes a lock and writes to the console while holding
+ * it, so under load every request thread queues up behind the terminal.
+ * println() here only puts the message on a lock-free queue; one daemon
+ * thread takes the messages off and writes them in batches.
+ *
+ * At most MAX_QUEUED messages wait and at most linesPerSecond are printed
+ * per second. Messages over either limit are dropped and counted, and the
+ * count is printed once a second so nothing disappears silently.
+ */
+public class AsyncLog {
+  /** Messages that may wait for the writer thread */
+  public static final int MAX_QUEUED = 10_000;
+
+  /** Default rate limit */
+  public static final int LINES_PER_SECOND = 1000;
+
+  private static final AsyncLog DEFAULT = new AsyncLog(System.out, LINES_PER_SECOND);
+
+  private final PrintStream out;
+  private final int linesPerSecond;
+  private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * @param out where the messages go
+   * @param linesPerSecond most messages printed per second
+   */
+  public AsyncLog(PrintStream out, int linesPerSecond) {
+    this.out = out;
+    this.linesPerSecond = linesPerSecond;
+    Thread writer = new Thread(this::drain, "async-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Logs through the shared instance that writes to System.out.
+   * @param message the message, may span several lines
+   */
+  public static void println(String message) {
+    DEFAULT.log(message);
+  }
+
+  /**
+   * @return the shared instance that writes to System.out
+   */
+  public static AsyncLog getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Queues a message without blocking, or drops it if the queue is full.
+   * @param message the message, may span several lines
+   */
+  public void log(String message) {
+    if (queued.incrementAndGet() > MAX_QUEUED) {
+      queued.decrementAndGet();
+      dropped.increment();
+      return;
+    }
+    queue.add(message);
+  }
+
+  /**
+   * @return messages dropped so far because of the queue or rate limit
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Runs on the writer thread: prints up to linesPerSecond messages per
+   * one second window and drops the rest.
+   */
+  private void drain() {
+    StringBuilder batch = new StringBuilder(8192);
+    long windowStart = System.nanoTime();
+    int printed = 0;
+    long reportedDropped = 0;
+    while (true) {
+      long now = System.nanoTime();
+      if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+        long droppedNow = dropped.sum();
+        if (droppedNow > reportedDropped) {
+          batch.append("[log] ").append(droppedNow - reportedDropped).append(" messages dropped\n");
+          reportedDropped = droppedNow;
+        }
+        windowStart = now;
+        printed = 0;
+      }
+
+      String message;
+      while ((message = queue.poll()) != null) {
+        queued.decrementAndGet();
+        if (printed < linesPerSecond) {
+          batch.append(message).append('\n');
+          printed++;
+        } else {
+          dropped.increment();
+        }
+        if (batch.length() >= 8192) {
+          break;
+        }
+      }
+
+      if (batch.length() > 0) {
+        out.print(batch);
+        out.flush();
+        batch.setLength(0);
+      } else {
+        // nothing to do, look again shortly instead of making producers signal us
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram.
+ *
+ * Values (nanoseconds) are counted in buckets whose width grows with the
+ * value: every power of two is split into 2^SUB_BITS equal sub-buckets, so
+ * any value is known to within 1 / 2^SUB_BITS (about 6%) no matter if it is
+ * a microsecond or a minute, with a fixed 1000 or so counters. Recording is
+ * a single atomic increment, so it can sit on the request path of every
+ * thread without a lock.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * @param nanos the value to count, negative values count as 0
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucket(value));
+    count.increment();
+    sum.add(value);
+  }
+
+  /**
+   * @return number of recorded values
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return sum of all recorded values in nanoseconds
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Computes several quantiles from one pass over the buckets. Recording
+   * may go on meanwhile, the answer is then a close approximation.
+   * @param quantiles quantiles between 0 and 1 in ascending order
+   * @return for every quantile the highest value of its bucket, in nanoseconds
+   */
+  public long[] getValuesAt(double... quantiles) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+
+    long[] values = new long[quantiles.length];
+    long seen = 0;
+    int bucket = 0;
+    for (int q = 0; q < quantiles.length; q++) {
+      long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+      while (bucket < BUCKETS && seen + snapshot[bucket] < rank) {
+        seen += snapshot[bucket];
+        bucket++;
+      }
+      values[q] = total == 0 ? 0 : highestValue(Math.min(bucket, BUCKETS - 1));
+    }
+    return values;
+  }
+
+  /**
+   * Values below 2^SUB_BITS get a bucket each, above that the position of
+   * the highest bit picks the power of two and the next SUB_BITS bits the
+   * sub-bucket.
+   */
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @return the largest value that falls into the bucket
+   */
+  static long highestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BITS);
+    long lowest = (SUB_BUCKETS + sub) * width;
+    return lowest + width - 1;
+  }
+}
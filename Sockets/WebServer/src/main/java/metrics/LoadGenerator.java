@@ -0,0 +1,467 @@
+package metrics;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Open-loop load generator for the two web servers of this module.
+ *
+ * Starts a server in this JVM and sends requests at a fixed rate over a
+ * number of connections, picking paths from a weighted mix. Request i is
+ * due at start + i / rate no matter how long earlier requests took, and its
+ * latency is measured from that moment, not from when a connection was
+ * free to send it. A closed-loop client that waits for every answer before
+ * sending the next one sends less when the server stalls and so never sees
+ * the stall in its numbers (coordinated omission); here a stall shows up
+ * as latency of every request that was due during it. The time from
+ * sending to the last byte is reported separately as service time.
+ *
+ * GC pauses are collected from the garbage collectors' notifications. They
+ * include the generator's own garbage since both run in the same JVM.
+ *
+ * The result is printed as one JSON object, and also written to a file
+ * with --out, so runs before and after a change can be compared. Run
+ * through
+ *   gradle LoadGenerator -Pserver=fun -Prate=2000 -Pconnections=32 -Pseconds=20
+ *
+ * Options, all --name=value: server (fun or simple), port, rate (requests
+ * per second), connections, seconds, warmup (seconds not measured), mix
+ * ("weight path" entries separated by |, e.g. "4 /multiply?num1=3&num2=4|1 /")
+ * and out.
+ */
+public class LoadGenerator {
+  private static final Map<String, String> SERVERS = Map.of(
+      "fun", "funHttpServer.WebServer",
+      "simple", "httpServer.WebServer");
+
+  private static final Map<String, String> MIXES = Map.of(
+      "fun", "1 /|2 /file/www/index.html|4 /multiply?num1=3&num2=4|2 /dice?dice1=6&dice2=6&rolls=10"
+          + "|1 /projectile?angle=45&velocity=100",
+      "simple", "3 /www/index.html|1 /www/root.html");
+
+  private final String host = "localhost";
+  private final int port;
+  private final double rate;
+  private final int connections;
+  private final String[] paths;
+  private final long[] cumulativeWeights;
+
+  // requests due before measureStart only warm up and are not reported
+  private final Run warmupRun = new Run();
+  private final Run measuredRun = new Run();
+  private final AtomicLong sequence = new AtomicLong();
+  private volatile long start;
+  private volatile long measureStart;
+  private volatile long end;
+
+  /**
+   * Counters of one measured period.
+   */
+  private static class Run {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram service = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Map<String, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final List<long[]> gcPauses = Collections.synchronizedList(new ArrayList<>());
+  }
+
+  public LoadGenerator(int port, double rate, int connections, String mix) {
+    this.port = port;
+    this.rate = rate;
+    this.connections = connections;
+    String[] entries = mix.split("\\|");
+    this.paths = new String[entries.length];
+    this.cumulativeWeights = new long[entries.length];
+    long total = 0;
+    for (int i = 0; i < entries.length; i++) {
+      String entry = entries[i].trim();
+      int space = entry.indexOf(' ');
+      total += space < 0 ? 1 : Long.parseLong(entry.substring(0, space));
+      paths[i] = entry.substring(space + 1).trim();
+      cumulativeWeights[i] = total;
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    Map<String, String> options = new LinkedHashMap<>();
+    options.put("server", "fun");
+    options.put("port", "9300");
+    options.put("rate", "1000");
+    options.put("connections", "16");
+    options.put("seconds", "10");
+    options.put("warmup", "3");
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0) {
+        System.out.println("Usage: LoadGenerator [--server=fun|simple] [--port=9300] [--rate=1000] "
+            + "[--connections=16] [--seconds=10] [--warmup=3] [--mix=\"4 /path|1 /other\"] [--out=file.json]");
+        System.exit(1);
+      }
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    String server = options.get("server");
+    if (!SERVERS.containsKey(server)) {
+      System.out.println("Unknown server " + server + ", use fun or simple");
+      System.exit(1);
+    }
+    options.putIfAbsent("mix", MIXES.get(server));
+
+    int port = Integer.parseInt(options.get("port"));
+    startServer(SERVERS.get(server), port);
+
+    LoadGenerator generator = new LoadGenerator(port, Double.parseDouble(options.get("rate")),
+        Integer.parseInt(options.get("connections")), options.get("mix"));
+    String result = generator.measure(Double.parseDouble(options.get("warmup")),
+        Double.parseDouble(options.get("seconds")), options);
+
+    System.out.println(result);
+    if (options.containsKey("out")) {
+      Files.write(Paths.get(options.get("out")), (result + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    // the servers have no way to stop
+    System.exit(0);
+  }
+
+  /**
+   * Runs a server's accept loop on a daemon thread and waits until it
+   * takes connections. The servers are package private, hence reflection.
+   */
+  private static void startServer(String className, int port) throws Exception {
+    Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(int.class);
+    constructor.setAccessible(true);
+    Thread thread = new Thread(() -> {
+      try {
+        constructor.newInstance(port);
+      } catch (ReflectiveOperationException e) {
+        e.printStackTrace();
+      }
+    }, "server");
+    thread.setDaemon(true);
+    thread.start();
+
+    long deadline = System.nanoTime() + 10_000_000_000L;
+    while (true) {
+      try (Socket probe = new Socket()) {
+        probe.connect(new InetSocketAddress("localhost", port), 200);
+        return;
+      } catch (IOException e) {
+        if (System.nanoTime() > deadline) {
+          throw new IOException(className + " did not start on port " + port, e);
+        }
+        Thread.sleep(50);
+      }
+    }
+  }
+
+  /**
+   * Sends load for warmup plus seconds and reports the last seconds.
+   * @return the report as JSON
+   */
+  public String measure(double warmup, double seconds, Map<String, String> options) throws InterruptedException {
+    NotificationListener gcListener = this::gcNotification;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gc instanceof NotificationEmitter) {
+        ((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+      }
+    }
+
+    long nanosPerRequest = (long) (1e9 / rate);
+    start = System.nanoTime();
+    measureStart = start + (long) (warmup * 1e9);
+    end = measureStart + (long) (seconds * 1e9);
+
+    List<Thread> clients = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      Thread client = new Thread(() -> drive(nanosPerRequest), "client-" + i);
+      client.setDaemon(true);
+      client.start();
+      clients.add(client);
+    }
+
+    for (Thread client : clients) {
+      client.join();
+    }
+    // an overloaded server finishes the due requests late, the throughput is what it managed
+    double elapsed = (System.nanoTime() - measureStart) / 1e9;
+    return report(measuredRun, seconds, elapsed, options);
+  }
+
+  /**
+   * One connection: takes the next due request, sends it once it is due
+   * and records when its answer was complete.
+   */
+  private void drive(long nanosPerRequest) {
+    SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+    Connection connection = null;
+    while (true) {
+      long index = sequence.getAndIncrement();
+      long due = start + index * nanosPerRequest;
+      if (due >= end) {
+        break;
+      }
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+
+      Run current = due >= measureStart ? measuredRun : warmupRun;
+      String path = pick(random.nextLong(cumulativeWeights[cumulativeWeights.length - 1]));
+      long sentAt = System.nanoTime();
+      try {
+        if (connection == null) {
+          connection = new Connection(host, port);
+        }
+        int status = connection.get(path);
+        long done = System.nanoTime();
+        // measured from when the request was due, not from when it was sent
+        current.latency.record(done - due);
+        current.service.record(done - sentAt);
+        current.bytes.add(connection.lastBytes);
+        current.statuses.computeIfAbsent(String.valueOf(status), key -> new LongAdder()).increment();
+        if (connection.closed) {
+          connection = null;
+        }
+      } catch (IOException e) {
+        current.latency.record(System.nanoTime() - due);
+        current.errors.increment();
+        if (connection != null) {
+          connection.close();
+          connection = null;
+        }
+      }
+    }
+    if (connection != null) {
+      connection.close();
+    }
+  }
+
+  private String pick(long ticket) {
+    for (int i = 0; i < cumulativeWeights.length; i++) {
+      if (ticket < cumulativeWeights[i]) {
+        return paths[i];
+      }
+    }
+    return paths[paths.length - 1];
+  }
+
+  /**
+   * Records the duration of every collection as [end time, millis].
+   */
+  private void gcNotification(Notification notification, Object handback) {
+    if (!"com.sun.management.gc.notification".equals(notification.getType())) {
+      return;
+    }
+    CompositeData info = (CompositeData) notification.getUserData();
+    CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+    String name = (String) info.get("gcName");
+    // concurrent cycles report their total duration, not a pause
+    if (name.contains("Concurrent") || name.contains("Cycles")) {
+      return;
+    }
+    long now = System.nanoTime();
+    (now >= measureStart ? measuredRun : warmupRun).gcPauses.add(new long[] { now, (Long) gcInfo.get("duration") });
+  }
+
+  private String report(Run measured, double seconds, double elapsed, Map<String, String> options) {
+    long count = measured.latency.getCount();
+    long[] latency = measured.latency.getValuesAt(0.5, 0.99, 0.999, 1.0);
+    long[] service = measured.service.getValuesAt(0.5, 0.99, 0.999, 1.0);
+    long gcCount;
+    long gcTotal = 0;
+    long gcMax = 0;
+    synchronized (measured.gcPauses) {
+      gcCount = measured.gcPauses.size();
+      for (long[] pause : measured.gcPauses) {
+        gcTotal += pause[1];
+        gcMax = Math.max(gcMax, pause[1]);
+      }
+    }
+
+    StringBuilder json = new StringBuilder("{");
+    json.append("\"options\":{");
+    boolean first = true;
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      json.append(first ? "" : ",").append(quote(option.getKey())).append(':').append(quote(option.getValue()));
+      first = false;
+    }
+    json.append("},");
+    json.append("\"targetRate\":").append(format(rate)).append(',');
+    json.append("\"expected\":").append(Math.round(rate * seconds)).append(',');
+    json.append("\"elapsedSeconds\":").append(format(elapsed)).append(',');
+    json.append("\"completed\":").append(count - measured.errors.sum()).append(',');
+    json.append("\"errors\":").append(measured.errors.sum()).append(',');
+    json.append("\"throughput\":").append(format((count - measured.errors.sum()) / elapsed)).append(',');
+    json.append("\"bytesPerSecond\":").append(format(measured.bytes.sum() / elapsed)).append(',');
+    json.append("\"statuses\":{");
+    first = true;
+    for (Map.Entry<String, LongAdder> status : new TreeMap<>(measured.statuses).entrySet()) {
+      json.append(first ? "" : ",").append(quote(status.getKey())).append(':').append(status.getValue().sum());
+      first = false;
+    }
+    json.append("},");
+    json.append("\"latencyMillis\":").append(percentiles(latency)).append(',');
+    json.append("\"serviceTimeMillis\":").append(percentiles(service)).append(',');
+    json.append("\"gc\":{\"pauses\":").append(gcCount)
+        .append(",\"totalMillis\":").append(gcTotal)
+        .append(",\"maxMillis\":").append(gcMax).append('}');
+    return json.append('}').toString();
+  }
+
+  private static String percentiles(long[] nanos) {
+    return "{\"p50\":" + format(nanos[0] / 1e6) + ",\"p99\":" + format(nanos[1] / 1e6)
+        + ",\"p999\":" + format(nanos[2] / 1e6) + ",\"max\":" + format(nanos[3] / 1e6) + "}";
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.3f", value);
+  }
+
+  private static String quote(String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * A minimal HTTP/1.1 client connection with keep-alive. Reads bodies
+   * framed by Content-Length, by chunks or by the end of the connection.
+   */
+  private static class Connection {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] request;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private final byte[] skip = new byte[16 * 1024];
+    private long lastBytes;
+    private boolean closed;
+
+    Connection(String host, int port) throws IOException {
+      socket = new Socket();
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port), 5000);
+      socket.setSoTimeout(30_000);
+      in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+      out = socket.getOutputStream();
+      request = ("Host: " + host + ":" + port + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the status of the answer; its bytes are in lastBytes
+     */
+    int get(String path) throws IOException {
+      out.write(("GET " + path + " HTTP/1.1\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      out.write(request);
+      out.flush();
+
+      String statusLine = readLine();
+      long bytes = statusLine.length() + 2;
+      if (!statusLine.startsWith("HTTP/1.")) {
+        throw new IOException("Not an HTTP response");
+      }
+      int status = Integer.parseInt(statusLine.substring(9, 12));
+      long length = -1;
+      boolean chunked = false;
+      closed = statusLine.startsWith("HTTP/1.0");
+      String header;
+      while (!(header = readLine()).isEmpty()) {
+        bytes += header.length() + 2;
+        String lower = header.toLowerCase(Locale.ROOT);
+        if (lower.startsWith("content-length:")) {
+          length = Long.parseLong(lower.substring(15).trim());
+        } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+          chunked = true;
+        } else if (lower.startsWith("connection:")) {
+          closed = lower.contains("close");
+        }
+      }
+
+      if (status == 204 || status == 304) {
+        length = 0;
+      }
+      if (chunked) {
+        long size;
+        while ((size = Long.parseLong(readLine().split(";")[0].trim(), 16)) > 0) {
+          bytes += skip(size);
+          readLine();
+        }
+        while (!readLine().isEmpty()) {
+          // trailers
+        }
+      } else if (length >= 0) {
+        bytes += skip(length);
+      } else {
+        bytes += skip(Long.MAX_VALUE);
+        closed = true;
+      }
+      lastBytes = bytes;
+      if (closed) {
+        close();
+      }
+      return status;
+    }
+
+    private long skip(long count) throws IOException {
+      long skipped = 0;
+      while (skipped < count) {
+        int read = in.read(skip, 0, (int) Math.min(skip.length, count - skipped));
+        if (read < 0) {
+          if (count == Long.MAX_VALUE) {
+            break;
+          }
+          throw new IOException("Connection closed in the body");
+        }
+        skipped += read;
+      }
+      return skipped;
+    }
+
+    private String readLine() throws IOException {
+      line.reset();
+      int b;
+      while ((b = in.read()) != '\n') {
+        if (b < 0) {
+          throw new IOException("Connection closed");
+        }
+        if (b != '\r') {
+          line.write(b);
+        }
+      }
+      return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // done with it anyway
+      }
+    }
+  }
+}
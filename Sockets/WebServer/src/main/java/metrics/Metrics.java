@@ -0,0 +1,194 @@
+package metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request metrics of a web server, rendered in the Prometheus text format.
+ *
+ * Everything on the request path is lock-free: counters are LongAdders and
+ * the per route latencies go into LatencyHistograms, both only do atomic
+ * additions. Routes are looked up in a ConcurrentHashMap, which does not
+ * lock for routes it has seen before. Values kept elsewhere, e.g. cache hit
+ * counts, are registered as suppliers and read when the metrics are
+ * rendered.
+ *
+ * Latencies are exported as a summary with the quantiles of QUANTILES, the
+ * histogram itself is too fine grained to export bucket by bucket.
+ */
+public class Metrics {
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  /**
+   * Counters and latencies of one method and route.
+   */
+  private static class RouteStats {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * A value read when rendering.
+   */
+  private static class Supplied {
+    private final String type;
+    private final String help;
+    private final LongSupplier value;
+
+    Supplied(String type, String help, LongSupplier value) {
+      this.type = type;
+      this.help = help;
+      this.value = value;
+    }
+  }
+
+  private final String prefix;
+  private final Map<String, RouteStats> routes = new ConcurrentHashMap<>();
+  private final Map<String, Supplied> supplied = new ConcurrentHashMap<>();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder connectionsOpened = new LongAdder();
+  private final LongAdder connectionsClosed = new LongAdder();
+
+  /**
+   * @param prefix put in front of every metric name, e.g. "funhttp"
+   */
+  public Metrics(String prefix) {
+    this.prefix = prefix;
+  }
+
+  /**
+   * Counts a finished request.
+   * @param method request method
+   * @param route the route pattern that answered, not the path, so the
+   *     number of label values stays small
+   * @param status response status
+   * @param nanos time taken to produce the response
+   */
+  public void recordRequest(String method, String route, int status, long nanos) {
+    RouteStats stats = routes.get(method + " " + route);
+    if (stats == null) {
+      stats = routes.computeIfAbsent(method + " " + route, key -> new RouteStats());
+    }
+    stats.latency.record(nanos);
+    LongAdder count = stats.statuses.get(status);
+    if (count == null) {
+      count = stats.statuses.computeIfAbsent(status, key -> new LongAdder());
+    }
+    count.increment();
+  }
+
+  public void addBytesIn(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  public void addBytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  public void connectionOpened() {
+    connectionsOpened.increment();
+  }
+
+  public void connectionClosed() {
+    connectionsClosed.increment();
+  }
+
+  /**
+   * Registers a value that only goes up and is kept somewhere else.
+   * @param name metric name without prefix, should end in _total
+   */
+  public Metrics counter(String name, String help, LongSupplier value) {
+    supplied.put(name, new Supplied("counter", help, value));
+    return this;
+  }
+
+  /**
+   * Registers a value that goes up and down and is kept somewhere else.
+   * @param name metric name without prefix
+   */
+  public Metrics gauge(String name, String help, LongSupplier value) {
+    supplied.put(name, new Supplied("gauge", help, value));
+    return this;
+  }
+
+  /**
+   * @return all metrics in the Prometheus text exposition format
+   */
+  public String render() {
+    StringBuilder out = new StringBuilder(4096);
+    Map<String, RouteStats> sorted = new TreeMap<>(routes);
+
+    family(out, "requests_total", "counter", "Requests answered by method, route and status");
+    for (Map.Entry<String, RouteStats> route : sorted.entrySet()) {
+      for (Map.Entry<Integer, LongAdder> status : new TreeMap<>(route.getValue().statuses).entrySet()) {
+        sample(out, "requests_total", labels(route.getKey(), "status", String.valueOf(status.getKey())),
+            status.getValue().sum());
+      }
+    }
+
+    family(out, "request_duration_seconds", "summary", "Time to produce the response by method and route");
+    for (Map.Entry<String, RouteStats> route : sorted.entrySet()) {
+      LatencyHistogram latency = route.getValue().latency;
+      long[] values = latency.getValuesAt(QUANTILES);
+      for (int i = 0; i < QUANTILES.length; i++) {
+        sample(out, "request_duration_seconds",
+            labels(route.getKey(), "quantile", String.valueOf(QUANTILES[i])), values[i] / 1e9);
+      }
+      sample(out, "request_duration_seconds_sum", labels(route.getKey(), null, null), latency.getSum() / 1e9);
+      sample(out, "request_duration_seconds_count", labels(route.getKey(), null, null), latency.getCount());
+    }
+
+    family(out, "received_bytes_total", "counter", "Bytes read from clients");
+    sample(out, "received_bytes_total", "", bytesIn.sum());
+    family(out, "sent_bytes_total", "counter", "Bytes written to clients");
+    sample(out, "sent_bytes_total", "", bytesOut.sum());
+    family(out, "connections_total", "counter", "Connections accepted");
+    sample(out, "connections_total", "", connectionsOpened.sum());
+    family(out, "open_connections", "gauge", "Connections currently open");
+    sample(out, "open_connections", "", connectionsOpened.sum() - connectionsClosed.sum());
+
+    for (Map.Entry<String, Supplied> entry : new TreeMap<>(supplied).entrySet()) {
+      Supplied value = entry.getValue();
+      family(out, entry.getKey(), value.type, value.help);
+      sample(out, entry.getKey(), "", value.value.getAsLong());
+    }
+    return out.toString();
+  }
+
+  private void family(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(prefix).append('_').append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(prefix).append('_').append(name).append(' ').append(type).append('\n');
+  }
+
+  private void sample(StringBuilder out, String name, String labels, double value) {
+    out.append(prefix).append('_').append(name).append(labels).append(' ');
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      out.append((long) value);
+    } else {
+      out.append(value);
+    }
+    out.append('\n');
+  }
+
+  /**
+   * @param route "METHOD pattern" as used as key of the routes map
+   * @param extra name of one more label, or null
+   */
+  private static String labels(String route, String extra, String extraValue) {
+    int space = route.indexOf(' ');
+    StringBuilder labels = new StringBuilder("{method=\"").append(escape(route.substring(0, space)))
+        .append("\",route=\"").append(escape(route.substring(space + 1))).append('"');
+    if (extra != null) {
+      labels.append(',').append(extra).append("=\"").append(escape(extraValue)).append('"');
+    }
+    return labels.append('}').toString();
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}